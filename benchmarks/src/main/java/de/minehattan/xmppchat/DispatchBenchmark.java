@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.ChatColor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures what the message command does before the message is queued:
+ * resolving the alias, collecting its recipients and formatting the message.
+ * Colors are rendered once per recipient by the bot, see
+ * {@link de.minehattan.xmppchat.bot.SendBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DispatchBenchmark {
+
+    /**
+     * The number of contacts.
+     */
+    @Param({ "100", "10000" })
+    private int contacts;
+
+    /**
+     * The number of contacts that share the alias the message is send to.
+     */
+    @Param({ "1", "40", "500" })
+    private int fanOut;
+
+    private final MessageTemplate sendFrom = MessageTemplate.compile("%s hat dir eine Nachricht gesendet: ");
+    private AliasIndex index;
+
+    /**
+     * Creates the contacts. Every contact has an alias of its own and the
+     * first contacts share the alias 'staff'.
+     */
+    @Setup
+    public void setUp() {
+        Map<String, List<String>> raw = new HashMap<String, List<String>>();
+        for (int i = 0; i < contacts; i++) {
+            List<String> aliases = new ArrayList<String>(Arrays.asList("user" + i));
+            if (i < fanOut) {
+                aliases.add("staff");
+            }
+            raw.put("user" + i + "@example.org", aliases);
+        }
+        index = AliasIndex.of(raw);
+    }
+
+    /**
+     * Resolves the start of the shared alias and prepares the message for
+     * all recipients, as the message command does.
+     * 
+     * @param hole the blackhole that consumes the results
+     */
+    @Benchmark
+    public void resolveAndFormat(Blackhole hole) {
+        String fullMessage = sendFrom.format(ChatColor.GOLD + "Notch") + "Bitte kommt in den Support-Channel.";
+        String alias = index.resolveAlias("sta");
+        hole.consume(new ArrayList<String>(index.getUserIds(alias)));
+        hole.consume(fullMessage);
+    }
+
+    /**
+     * Adds a contact to the index, as the add command does.
+     * 
+     * @return the new index
+     */
+    @Benchmark
+    public AliasIndex addContact() {
+        return index.withUser("new@example.org", Arrays.asList("new", "staff"));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.ChatColor;
+import org.jivesoftware.smack.packet.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the individual steps that turn the text of a command into a
+ * stanza.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FormatBenchmark {
+
+    private final String sendFrom = "%s hat dir eine Nachricht gesendet: ";
+    private final MessageTemplate sendFromTemplate = MessageTemplate.compile(sendFrom);
+    private final String sender = ChatColor.GOLD + "Notch";
+    private final String text = "Kannst du bitte kurz auf den Server kommen? Es gibt " + ChatColor.RED
+            + "Probleme" + ChatColor.RESET + " mit dem Spawn.";
+
+    /**
+     * Formats the message with {@code String.format}, which parses the
+     * pattern every time.
+     * 
+     * @return the formatted message
+     */
+    @Benchmark
+    public String format() {
+        return String.format(sendFrom, sender) + text;
+    }
+
+    /**
+     * Formats the message as the message command does.
+     * 
+     * @return the formatted message
+     */
+    @Benchmark
+    public String template() {
+        return sendFromTemplate.format(sender) + text;
+    }
+
+    /**
+     * Builds and serializes the stanza.
+     * 
+     * @return the serialized stanza
+     */
+    @Benchmark
+    public CharSequence serialize() {
+        Message message = new Message("user@example.org", Message.Type.chat);
+        message.setBody(text);
+        return message.toXML();
+    }
+}
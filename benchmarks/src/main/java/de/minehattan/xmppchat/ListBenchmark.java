@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bukkit.command.CommandSender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sk89q.commandbook.commands.PaginatedResult;
+import com.sk89q.minecraft.util.commands.CommandException;
+
+import de.minehattan.xmppchat.bot.ChatBot;
+import de.minehattan.xmppchat.bot.ChatBotListener;
+
+/**
+ * Measures a page of the list command: {@link ContactList#view(boolean, String)}
+ * displayed by CommandBook's {@link PaginatedResult}, with 10,000 contacts of
+ * which every third is online.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ListBenchmark {
+
+    /**
+     * The number of contacts.
+     */
+    private static final int CONTACTS = 10000;
+
+    /**
+     * Whether only online contacts are listed ({@code -o}).
+     */
+    @Param({ "false", "true" })
+    private boolean onlineOnly;
+
+    /**
+     * The alias filter ({@code -f}), empty for none. Matches 1,111 contacts.
+     */
+    @Param({ "", "user4" })
+    private String filter;
+
+    private ContactList contactList;
+    private PaginatedResult<String> result;
+    private CommandSender sender;
+
+    /**
+     * Creates the contacts and a sender that discards the output.
+     */
+    @Setup
+    public void setUp() {
+        contactList = new ContactList(new StatusBot());
+        Map<String, List<String>> contacts = new HashMap<String, List<String>>();
+        for (int i = 0; i < CONTACTS; i++) {
+            contacts.put("user" + i + "@example.org", Arrays.asList("user" + i));
+        }
+        contactList.setContacts(contacts);
+
+        result = new PaginatedResult<String>("XMPP-Users") {
+
+            @Override
+            public String format(String row) {
+                return row;
+            }
+        };
+        sender = (CommandSender) Proxy.newProxyInstance(CommandSender.class.getClassLoader(),
+                new Class<?>[] { CommandSender.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        // the output is discarded
+                        return null;
+                    }
+                });
+    }
+
+    /**
+     * Displays the first page, as {@code /xmpp list} does.
+     * 
+     * @return the list that was displayed
+     * @throws CommandException
+     *             never
+     */
+    @Benchmark
+    public List<String> firstPage() throws CommandException {
+        List<String> rows = contactList.view(onlineOnly, filter.isEmpty() ? null : filter);
+        result.display(sender, rows, 1);
+        return rows;
+    }
+
+    /**
+     * Gives every third contact the status present.
+     */
+    private static final class StatusBot implements ChatBot {
+
+        @Override
+        public UserStatus getUserStatus(String userId) {
+            return userId.hashCode() % 3 == 0 ? UserStatus.PRESENT : UserStatus.OFFLINE;
+        }
+
+        @Override
+        public ConnectionState getConnectionState() {
+            return ConnectionState.CONNECTED;
+        }
+
+        @Override
+        public ConnectionState getConnectionState(String userId) {
+            return ConnectionState.CONNECTED;
+        }
+
+        @Override
+        public void closeConnection() {
+            // nothing to close
+        }
+
+        @Override
+        public void addListener(ChatBotListener listener) {
+            // the statuses never change
+        }
+
+        @Override
+        public void removeListener(ChatBotListener listener) {
+            // the statuses never change
+        }
+
+        @Override
+        public void sendMessage(String recipientId, String msg) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sendMessage(Collection<String> recipientIds, String msg) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void sendRoomMessage(String roomId, String msg) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void updateBuddyList(Collection<String> userIds, boolean removeNotIncluded) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.lang.reflect.Constructor;
+
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * A connection that never touches the network. Every packet that is send is
+ * serialized, as the real connection would do before writing it to the
+ * socket, and then discarded.
+ */
+public class InMemoryConnection extends XMPPConnection {
+
+    private boolean connected;
+    private boolean authenticated;
+    private String user;
+    private long packets;
+    private long characters;
+    private Roster roster;
+
+    /**
+     * Constructs this connection.
+     */
+    public InMemoryConnection() {
+        super(new ConnectionConfiguration("localhost"));
+    }
+
+    @Override
+    protected void connectInternal() {
+        connected = true;
+    }
+
+    @Override
+    public void login(String username, String password, String resource) {
+        user = username + "@localhost/" + resource;
+        authenticated = true;
+    }
+
+    @Override
+    public void loginAnonymously() {
+        user = "anonymous@localhost";
+        authenticated = true;
+    }
+
+    @Override
+    protected void sendPacketInternal(Packet packet) {
+        packets++;
+        characters += packet.toXML().length();
+    }
+
+    @Override
+    protected void shutdown() {
+        connected = false;
+        authenticated = false;
+    }
+
+    @Override
+    public String getConnectionID() {
+        return "in-memory";
+    }
+
+    @Override
+    public String getUser() {
+        return user;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public boolean isAuthenticated() {
+        return authenticated;
+    }
+
+    @Override
+    public boolean isAnonymous() {
+        return false;
+    }
+
+    @Override
+    public boolean isSecureConnection() {
+        return true;
+    }
+
+    @Override
+    public boolean isUsingCompression() {
+        return false;
+    }
+
+    @Override
+    public synchronized Roster getRoster() {
+        if (roster == null) {
+            // the constructor is not public, the benchmarks use an empty buddy list
+            try {
+                Constructor<Roster> constructor = Roster.class.getDeclaredConstructor(XMPPConnection.class);
+                constructor.setAccessible(true);
+                roster = constructor.newInstance(this);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Failed to create the buddy list.", e);
+            }
+        }
+        return roster;
+    }
+
+    /**
+     * Gets the number of packets that have been send.
+     * 
+     * @return the number of packets
+     */
+    public long getPackets() {
+        return packets;
+    }
+
+    /**
+     * Gets the number of characters of all packets that have been send.
+     * 
+     * @return the number of characters
+     */
+    public long getCharacters() {
+        return characters;
+    }
+}
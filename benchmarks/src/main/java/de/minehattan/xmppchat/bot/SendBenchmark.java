@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bukkit.ChatColor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.minehattan.xmppchat.testkit.CommandBookShim;
+
+/**
+ * Measures {@link XMPPBot#sendMessage(String, String)}: looking up the chat
+ * session, rendering colors, building the stanza and serializing it. The bot
+ * sends through an {@link InMemoryConnection}.
+ * 
+ * @see de.minehattan.xmppchat.FormatBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SendBenchmark {
+
+    /**
+     * The number of recipients a message is send to.
+     */
+    @Param({ "1", "40", "500" })
+    private int recipients;
+
+    private InMemoryConnection connection;
+    private XMPPBot bot;
+    private List<String> recipientIds;
+    private String msg;
+
+    /**
+     * Connects the bot through the in-memory connection and prepares the
+     * recipients.
+     * 
+     * @throws Exception
+     *             if CommandBook cannot be provided
+     */
+    @Setup
+    public void setUp() throws Exception {
+        Logger discarded = Logger.getAnonymousLogger();
+        discarded.setLevel(Level.OFF);
+        CommandBookShim.install(discarded);
+
+        connection = new InMemoryConnection();
+        bot = new XMPPBot(connection, "bot", "secret", "XMPPChat", "", "Available.");
+        bot.connect();
+
+        recipientIds = new ArrayList<String>(recipients);
+        for (int i = 0; i < recipients; i++) {
+            recipientIds.add("user" + i + "@example.org");
+        }
+        msg = ChatColor.GOLD + "Notch" + ChatColor.RESET + " hat dir eine Nachricht gesendet: "
+                + "Kannst du bitte kurz auf den Server kommen?";
+    }
+
+    /**
+     * Closes the bot.
+     */
+    @TearDown
+    public void tearDown() {
+        bot.closeConnection();
+    }
+
+    /**
+     * Sends the message to every recipient individually, as XMPPBot does when
+     * the server does not support multicast.
+     * 
+     * @return the number of packets send, to prevent dead-code elimination
+     * @throws BotException
+     *             never
+     */
+    @Benchmark
+    public long unicast() throws BotException {
+        for (String recipientId : recipientIds) {
+            bot.sendMessage(recipientId, msg);
+        }
+        return connection.getPackets();
+    }
+}
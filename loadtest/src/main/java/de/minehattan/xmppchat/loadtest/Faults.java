@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.loadtest;
+
+import java.util.Random;
+
+/**
+ * The faults the {@link StubServer} injects into its sessions.
+ */
+class Faults {
+
+    private final Random random = new Random();
+    private final long readDelay;
+    private final double disconnectProbability;
+    private final double rosterErrorProbability;
+
+    /**
+     * Initializes the faults.
+     * 
+     * @param readDelay
+     *            the milliseconds the server waits before it reads a stanza,
+     *            to emulate a slow server or a congested network
+     * @param disconnectProbability
+     *            the probability that the server drops the connection after a
+     *            message
+     * @param rosterErrorProbability
+     *            the probability that the server answers a roster request with
+     *            an error
+     */
+    Faults(long readDelay, double disconnectProbability, double rosterErrorProbability) {
+        this.readDelay = readDelay;
+        this.disconnectProbability = disconnectProbability;
+        this.rosterErrorProbability = rosterErrorProbability;
+    }
+
+    /**
+     * Waits for the configured read delay.
+     * 
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    void beforeRead() throws InterruptedException {
+        if (readDelay > 0) {
+            Thread.sleep(readDelay);
+        }
+    }
+
+    /**
+     * Decides whether the connection should be dropped after a message.
+     * 
+     * @return {@code true} if the connection should be dropped
+     */
+    boolean disconnect() {
+        return roll(disconnectProbability);
+    }
+
+    /**
+     * Decides whether a roster request should fail.
+     * 
+     * @return {@code true} if the request should fail
+     */
+    boolean rosterError() {
+        return roll(rosterErrorProbability);
+    }
+
+    /**
+     * Rolls the dice.
+     * 
+     * @param probability
+     *            the probability that {@code true} is returned
+     * @return {@code true} with the given probability
+     */
+    private boolean roll(double probability) {
+        if (probability <= 0) {
+            return false;
+        }
+        synchronized (random) {
+            return random.nextDouble() < probability;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "read delay " + readDelay + " ms, disconnects " + disconnectProbability + ", roster errors "
+                + rosterErrorProbability;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.net.ssl.SSLContext;
+
+import org.bukkit.ChatColor;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+import de.minehattan.xmppchat.bot.BotException;
+import de.minehattan.xmppchat.bot.QueuedChatBot;
+import de.minehattan.xmppchat.bot.XMPPBot;
+import de.minehattan.xmppchat.metrics.Histogram;
+import de.minehattan.xmppchat.metrics.Metrics;
+import de.minehattan.xmppchat.testkit.CommandBookShim;
+import eu.geekplace.javapinning.JavaPinning;
+
+/**
+ * Connects the bot to a {@link StubServer} and lets simulated players send
+ * messages, like the message command does. Reports the throughput, the
+ * latency from the command until the message arrives at the server and the
+ * metrics of the bot.
+ * 
+ * <p>
+ * The test is configured by system properties, for example
+ * {@code -Dloadtest.players=500 -Dloadtest.disconnects=0.001}:
+ * </p>
+ * <ul>
+ * <li>{@code loadtest.port} - the port of the server, Smack connects to
+ * 5222 (default: 5222)</li>
+ * <li>{@code loadtest.players} - the number of players (default: 200)</li>
+ * <li>{@code loadtest.messages} - the messages per player (default: 25)</li>
+ * <li>{@code loadtest.contacts} - the number of contacts (default: 50)</li>
+ * <li>{@code loadtest.thinkTime} - the maximum milliseconds between two
+ * messages of a player (default: 50)</li>
+ * <li>{@code loadtest.receiptTimeout} - the milliseconds the bot waits for
+ * receipts, 0 disables receipts (default: 0)</li>
+ * <li>{@code loadtest.readDelay} - the milliseconds the server waits before
+ * reading a stanza (default: 0)</li>
+ * <li>{@code loadtest.disconnects} - the probability that the server drops
+ * the connection after a message (default: 0)</li>
+ * <li>{@code loadtest.rosterErrors} - the probability that the server fails
+ * a roster request (default: 0)</li>
+ * <li>{@code loadtest.timeout} - the seconds to wait for outstanding messages
+ * (default: 60)</li>
+ * </ul>
+ */
+public final class LoadTest {
+
+    private static final Logger LOGGER = Logger.getLogger(LoadTest.class.getName());
+    private static final String DOMAIN = "localhost";
+    private static final String SEND_FROM = ChatColor.GOLD + "%s" + ChatColor.RESET
+            + " hat dir eine Nachricht gesendet: ";
+    private static final String TIMESTAMP = " #";
+
+    /**
+     * Hidden constructor.
+     */
+    private LoadTest() {
+    }
+
+    /**
+     * Runs the load test.
+     * 
+     * @param args
+     *            ignored
+     * @throws Exception
+     *             if the test could not be run or no message arrived
+     */
+    public static void main(String[] args) throws Exception {
+        int players = Integer.getInteger("loadtest.players", 200);
+        int messages = Integer.getInteger("loadtest.messages", 25);
+        int contacts = Integer.getInteger("loadtest.contacts", 50);
+        long thinkTime = Long.getLong("loadtest.thinkTime", 50);
+        long receiptTimeout = Long.getLong("loadtest.receiptTimeout", 0);
+        Faults faults = new Faults(Long.getLong("loadtest.readDelay", 0), probability("loadtest.disconnects"),
+                probability("loadtest.rosterErrors"));
+
+        CommandBookShim.install(LOGGER);
+
+        final Histogram latency = new Histogram();
+        final AtomicLong delivered = new AtomicLong();
+        StubServer server = new StubServer(Integer.getInteger("loadtest.port", 5222), DOMAIN, faults,
+                new StubServer.MessageSink() {
+
+                    @Override
+                    public void messageReceived(String senderId, String recipientId, String body) {
+                        int index = body.lastIndexOf(TIMESTAMP);
+                        if (index >= 0) {
+                            latency.record(System.nanoTime() - Long.parseLong(body.substring(index
+                                    + TIMESTAMP.length())));
+                        }
+                        delivered.incrementAndGet();
+                    }
+                });
+        LOGGER.info("Stub server started with " + faults + ", certificate pin " + server.getCertificatePin());
+
+        QueuedChatBot bot = null;
+        try {
+            SSLContext sslContext = JavaPinning.forPin(server.getCertificatePin());
+            XMPPBot xmppBot = new XMPPBot(DOMAIN, sslContext, "xmppchat", "secret", "LoadTest", "", "Load test",
+                    null);
+            if (receiptTimeout > 0) {
+                xmppBot.enableReceipts(receiptTimeout);
+            }
+            xmppBot.connect();
+
+            List<String> contactIds = new ArrayList<String>(contacts);
+            for (int i = 0; i < contacts; i++) {
+                contactIds.add("contact" + i + "@" + DOMAIN);
+            }
+            try {
+                xmppBot.updateBuddyList(contactIds, true);
+            } catch (BotException e) {
+                LOGGER.warning("Failed to update the buddy list: " + e.getMessage());
+            }
+            bot = new QueuedChatBot(xmppBot, 10000);
+
+            run(bot, players, messages, contactIds, thinkTime, delivered);
+        } finally {
+            if (bot != null) {
+                bot.closeConnection();
+            }
+            server.close();
+        }
+
+        report(latency, delivered.get(), players * messages);
+        if (delivered.get() == 0) {
+            throw new IllegalStateException("No message arrived at the server.");
+        }
+    }
+
+    /**
+     * Reads the probability from the given system property.
+     * 
+     * @param property
+     *            the name of the property
+     * @return the probability, 0 if the property is not set
+     */
+    private static double probability(String property) {
+        return Double.parseDouble(System.getProperty(property, "0"));
+    }
+
+    /**
+     * Lets the players send their messages and waits until all messages are
+     * send or failed.
+     * 
+     * @param bot
+     *            the bot
+     * @param players
+     *            the number of players
+     * @param messages
+     *            the number of messages every player sends
+     * @param contactIds
+     *            the contacts the messages are send to
+     * @param thinkTime
+     *            the maximum milliseconds between two messages of a player
+     * @param delivered
+     *            the number of messages that arrived at the server
+     * @throws InterruptedException
+     *             if the thread is interrupted while waiting
+     */
+    private static void run(final QueuedChatBot bot, int players, final int messages,
+            final List<String> contactIds, final long thinkTime, AtomicLong delivered) throws InterruptedException {
+        final CountDownLatch completed = new CountDownLatch(players * messages);
+        final FutureCallback<Void> callback = new FutureCallback<Void>() {
+
+            @Override
+            public void onSuccess(Void result) {
+                completed.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                completed.countDown();
+            }
+        };
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(players);
+        for (int i = 0; i < players; i++) {
+            final String player = "Player" + i;
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    for (int j = 0; j < messages; j++) {
+                        String recipientId = contactIds.get(random.nextInt(contactIds.size()));
+                        long commandStart = System.nanoTime();
+                        String msg = String.format(SEND_FROM, player) + "Nachricht " + j + TIMESTAMP
+                                + commandStart;
+                        Futures.addCallback(bot.sendMessageAsync(recipientId, msg), callback);
+                        Metrics.get().record(Metrics.Latency.COMMAND, commandStart);
+                        try {
+                            Thread.sleep((long) (random.nextDouble() * thinkTime));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        long timeout = Long.getLong("loadtest.timeout", 60);
+        if (!executor.awaitTermination(timeout, TimeUnit.SECONDS)
+                || !completed.await(timeout, TimeUnit.SECONDS)) {
+            LOGGER.warning(completed.getCount() + " messages are still outstanding.");
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        LOGGER.info(String.format("%d messages arrived in %.1f s: %.0f messages/s", delivered.get(), seconds,
+                delivered.get() / seconds));
+    }
+
+    /**
+     * Reports the results.
+     * 
+     * @param latency
+     *            the latency from the command until the message arrived at
+     *            the server
+     * @param delivered
+     *            the number of messages that arrived at the server
+     * @param issued
+     *            the number of messages the players send
+     */
+    private static void report(Histogram latency, long delivered, long issued) {
+        Metrics metrics = Metrics.get();
+        StringBuilder out = new StringBuilder("Results:\n");
+        out.append(String.format("  issued %d, arrived %d, sent %d, failed %d, dropped %d, reconnects %d%n",
+                issued, delivered, metrics.getMessagesSent(), metrics.getMessagesFailed(),
+                metrics.getMessagesDropped(), metrics.getReconnects()));
+        append(out, "end-to-end", latency.snapshot(1e6));
+        for (Map.Entry<String, Histogram.Snapshot> entry : metrics.getLatencies().entrySet()) {
+            append(out, entry.getKey(), entry.getValue());
+        }
+        LOGGER.info(out.toString());
+    }
+
+    /**
+     * Appends a line with the given latencies.
+     * 
+     * @param out
+     *            the builder to append to
+     * @param name
+     *            the name of the measured operation
+     * @param snapshot
+     *            the latencies in milliseconds
+     */
+    private static void append(StringBuilder out, String name, Histogram.Snapshot snapshot) {
+        out.append(String.format("  %-12s n=%d p50=%.2f ms p90=%.2f ms p99=%.2f ms max=%.2f ms%n", name,
+                snapshot.getCount(), snapshot.getMedian(), snapshot.getPercentile90(),
+                snapshot.getPercentile99(), snapshot.getMax()));
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.loadtest;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits an XMPP stream into the stream header and the top-level stanzas. This
+ * is not a complete XML parser: it only tracks the nesting of elements, which
+ * is sufficient for the stanzas Smack sends.
+ */
+class StanzaReader {
+
+    /**
+     * Returned by {@link #next()} when the client opened a new stream.
+     */
+    static final String STREAM_OPENED = "<stream:stream>";
+
+    private final Reader reader;
+    private final StringBuilder stanza = new StringBuilder();
+    private final StringBuilder tag = new StringBuilder();
+    private int depth;
+
+    /**
+     * Initializes this reader.
+     * 
+     * @param reader
+     *            the reader of the stream
+     */
+    StanzaReader(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the next complete stanza. Returns {@link #STREAM_OPENED} if the
+     * client opened a new stream and {@code null} if the client closed the
+     * stream or the connection.
+     * 
+     * @return the stanza, {@link #STREAM_OPENED} or {@code null}
+     * @throws IOException
+     *             if the stream cannot be read
+     */
+    String next() throws IOException {
+        while (true) {
+            int c = reader.read();
+            if (c == -1) {
+                return null;
+            }
+            if (c != '<') {
+                if (depth > 1) {
+                    stanza.append((char) c);
+                }
+                continue;
+            }
+
+            readTag();
+            String element = tag.toString();
+            if (element.startsWith("<?")) {
+                continue;
+            }
+            if (element.startsWith("<stream:stream")) {
+                depth = 1;
+                return STREAM_OPENED;
+            }
+            if (element.startsWith("</")) {
+                depth--;
+                if (depth <= 0) {
+                    return null;
+                }
+                stanza.append(element);
+                if (depth == 1) {
+                    return complete();
+                }
+                continue;
+            }
+            stanza.append(element);
+            if (element.endsWith("/>")) {
+                if (depth == 1) {
+                    return complete();
+                }
+            } else {
+                depth++;
+            }
+        }
+    }
+
+    /**
+     * Reads the remaining tag after the opening bracket into {@link #tag}.
+     * 
+     * @throws IOException
+     *             if the stream cannot be read or ends within the tag
+     */
+    private void readTag() throws IOException {
+        tag.setLength(0);
+        tag.append('<');
+        char quote = 0;
+        while (true) {
+            int c = reader.read();
+            if (c == -1) {
+                throw new IOException("The stream ended within a tag.");
+            }
+            tag.append((char) c);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = (char) c;
+            } else if (c == '>') {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the buffered stanza and clears the buffer.
+     * 
+     * @return the stanza
+     */
+    private String complete() {
+        String ret = stanza.toString();
+        stanza.setLength(0);
+        return ret;
+    }
+}
@@ -0,0 +1,622 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.loadtest;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A minimal XMPP server for load tests. It supports STARTTLS with a
+ * self-signed certificate, SASL PLAIN, resource binding, the roster,
+ * presence subscriptions, message receipts and nothing else. Every contact
+ * in a roster is considered online.
+ */
+class StubServer implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(StubServer.class.getName());
+    private static final String KEYSTORE = "/stub-server.jks";
+    private static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+
+    /**
+     * Receives the messages the server receives.
+     */
+    interface MessageSink {
+
+        /**
+         * Called when the server receives a message.
+         * 
+         * @param senderId
+         *            the bare JID of the sender
+         * @param recipientId
+         *            the JID of the recipient
+         * @param body
+         *            the body of the message
+         */
+        void messageReceived(String senderId, String recipientId, String body);
+    }
+
+    private final Map<String, Set<String>> rosters = new ConcurrentHashMap<String, Set<String>>();
+    private final Set<Session> sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+    private final AtomicInteger ids = new AtomicInteger();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setNameFormat("StubServer-%d").setDaemon(true).build());
+
+    private final String domain;
+    private final Faults faults;
+    private final MessageSink sink;
+    private final SSLContext sslContext;
+    private final String certificatePin;
+    private final ServerSocket serverSocket;
+
+    /**
+     * Starts the server on the loopback interface.
+     * 
+     * @param port
+     *            the port
+     * @param domain
+     *            the domain of the server
+     * @param faults
+     *            the faults to inject
+     * @param sink
+     *            receives the messages send to the server
+     * @throws IOException
+     *             if the port cannot be bound
+     * @throws GeneralSecurityException
+     *             if the keystore cannot be loaded
+     */
+    StubServer(int port, String domain, Faults faults, MessageSink sink) throws IOException,
+            GeneralSecurityException {
+        this.domain = domain;
+        this.faults = faults;
+        this.sink = sink;
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = StubServer.class.getResourceAsStream(KEYSTORE);
+        if (in == null) {
+            throw new IOException(KEYSTORE + " is missing.");
+        }
+        try {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagers.getKeyManagers(), null, null);
+        certificatePin = pin(keyStore.getCertificate(keyStore.aliases().nextElement()));
+
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+        executor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    /**
+     * Calculates the pin of the given certificate in the format of
+     * {@code xmpp.ssl.certificate-pin}: the SHA-256 hash of the public key.
+     * 
+     * @param certificate
+     *            the certificate
+     * @return the pin
+     * @throws GeneralSecurityException
+     *             if SHA-256 is not supported
+     */
+    private static String pin(Certificate certificate) throws GeneralSecurityException {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(certificate.getPublicKey().getEncoded());
+        StringBuilder ret = new StringBuilder("SHA256:");
+        for (byte b : hash) {
+            ret.append(String.format("%02x", b & 0xff));
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Gets the pin of the certificate this server uses, in the format of
+     * {@code xmpp.ssl.certificate-pin}.
+     * 
+     * @return the pin
+     */
+    String getCertificatePin() {
+        return certificatePin;
+    }
+
+    /**
+     * Gets the number of open sessions.
+     * 
+     * @return the number of sessions
+     */
+    int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Accepts connections until the server is closed.
+     */
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(new Session(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.log(Level.WARNING, "Failed to accept a connection.", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Session session : sessions) {
+            session.close();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Escapes the given text for XML.
+     * 
+     * @param text
+     *            the text
+     * @return the escaped text
+     */
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("'", "&apos;")
+                .replace("\"", "&quot;");
+    }
+
+    /**
+     * Gets the first child element with the given name.
+     * 
+     * @param parent
+     *            the parent element
+     * @param name
+     *            the name of the child
+     * @return the child or {@code null} if there is none
+     */
+    private static Element child(Element parent, String name) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element && (name == null || node.getNodeName().equals(name))) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A connection of a client.
+     */
+    private class Session implements Runnable {
+
+        private final DocumentBuilder parser;
+        private Socket socket;
+        private Writer writer;
+        private boolean secure;
+        private boolean authenticated;
+        private String username;
+        private String jid;
+
+        /**
+         * Initializes the session.
+         * 
+         * @param socket
+         *            the socket of the client
+         */
+        Session(Socket socket) {
+            this.socket = socket;
+            try {
+                parser = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            sessions.add(this);
+            try {
+                StanzaReader reader = open();
+                String stanza = reader.next();
+                while (stanza != null) {
+                    if (StanzaReader.STREAM_OPENED.equals(stanza)) {
+                        openStream();
+                    } else {
+                        faults.beforeRead();
+                        Element element = parser.parse(new InputSource(new StringReader(stanza)))
+                                .getDocumentElement();
+                        if (!handle(element)) {
+                            return;
+                        }
+                        if ("starttls".equals(element.getNodeName())) {
+                            reader = upgrade();
+                        }
+                    }
+                    stanza = reader.next();
+                }
+                write("</stream:stream>");
+            } catch (SocketException e) {
+                // the connection was closed
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Session of " + jid + " failed.", e);
+            } catch (SAXException e) {
+                LOGGER.log(Level.WARNING, "Received malformed stanza from " + jid + ".", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Opens the reader and the writer of the current socket.
+         * 
+         * @return the reader
+         * @throws IOException
+         *             if the streams of the socket cannot be opened
+         */
+        private StanzaReader open() throws IOException {
+            writer = new OutputStreamWriter(socket.getOutputStream(), Charsets.UTF_8);
+            return new StanzaReader(new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    Charsets.UTF_8)));
+        }
+
+        /**
+         * Upgrades the connection to TLS.
+         * 
+         * @return the reader of the secured connection
+         * @throws IOException
+         *             if the handshake fails
+         */
+        private StanzaReader upgrade() throws IOException {
+            SSLSocket sslSocket = (SSLSocket) sslContext.getSocketFactory().createSocket(socket,
+                    socket.getInetAddress().getHostAddress(), socket.getPort(), true);
+            sslSocket.setUseClientMode(false);
+            sslSocket.startHandshake();
+            socket = sslSocket;
+            secure = true;
+            return open();
+        }
+
+        /**
+         * Answers a stream header with the header of the server and the
+         * features of the current stage of the session.
+         * 
+         * @throws IOException
+         *             if the answer cannot be written
+         */
+        private void openStream() throws IOException {
+            StringBuilder out = new StringBuilder();
+            out.append("<?xml version='1.0' encoding='UTF-8'?><stream:stream xmlns='jabber:client' ");
+            out.append("xmlns:stream='http://etherx.jabber.org/streams' version='1.0' from='");
+            out.append(domain).append("' id='").append(ids.incrementAndGet()).append("'><stream:features>");
+            if (!secure) {
+                out.append("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'><required/></starttls>");
+            } else if (!authenticated) {
+                out.append("<mechanisms xmlns='urn:ietf:params:xml:ns:xmpp-sasl'>");
+                out.append("<mechanism>PLAIN</mechanism></mechanisms>");
+            } else {
+                out.append("<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'/>");
+                out.append("<session xmlns='urn:ietf:params:xml:ns:xmpp-session'/>");
+            }
+            out.append("</stream:features>");
+            write(out.toString());
+        }
+
+        /**
+         * Handles the given stanza.
+         * 
+         * @param element
+         *            the stanza
+         * @return {@code false} if the connection should be closed
+         * @throws IOException
+         *             if the answer cannot be written
+         */
+        private boolean handle(Element element) throws IOException {
+            String name = element.getNodeName();
+            if ("starttls".equals(name)) {
+                write("<proceed xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
+            } else if ("auth".equals(name)) {
+                return authenticate(element);
+            } else if ("iq".equals(name)) {
+                handleIq(element);
+            } else if ("presence".equals(name)) {
+                handlePresence(element);
+            } else if ("message".equals(name)) {
+                handleMessage(element);
+                return !faults.disconnect();
+            }
+            return true;
+        }
+
+        /**
+         * Authenticates the client with SASL PLAIN. Every password that is not
+         * empty is accepted.
+         * 
+         * @param auth
+         *            the authentication request
+         * @return {@code false} if the authentication failed
+         * @throws IOException
+         *             if the answer cannot be written
+         */
+        private boolean authenticate(Element auth) throws IOException {
+            String[] credentials = new String(StringUtils.decodeBase64(auth.getTextContent().trim()),
+                    Charsets.UTF_8).split("\0");
+            if (!"PLAIN".equals(auth.getAttribute("mechanism")) || credentials.length != 3
+                    || credentials[2].isEmpty()) {
+                write("<failure xmlns='urn:ietf:params:xml:ns:xmpp-sasl'><not-authorized/></failure>");
+                return false;
+            }
+            username = credentials[1];
+            authenticated = true;
+            write("<success xmlns='urn:ietf:params:xml:ns:xmpp-sasl'/>");
+            return true;
+        }
+
+        /**
+         * Handles an IQ.
+         * 
+         * @param iq
+         *            the IQ
+         * @throws IOException
+         *             if the answer cannot be written
+         */
+        private void handleIq(Element iq) throws IOException {
+            String type = iq.getAttribute("type");
+            if ("result".equals(type) || "error".equals(type)) {
+                return;
+            }
+            String id = escape(iq.getAttribute("id"));
+            Element query = child(iq, null);
+            String namespace = query == null ? "" : query.getAttribute("xmlns");
+
+            if ("urn:ietf:params:xml:ns:xmpp-bind".equals(namespace)) {
+                Element resource = child(query, "resource");
+                jid = username + "@" + domain + "/"
+                        + (resource == null ? "stub" + ids.incrementAndGet() : resource.getTextContent());
+                write("<iq type='result' id='" + id + "'><bind xmlns='" + namespace + "'><jid>" + escape(jid)
+                        + "</jid></bind></iq>");
+            } else if ("urn:ietf:params:xml:ns:xmpp-session".equals(namespace)
+                    || "urn:xmpp:ping".equals(namespace)) {
+                write("<iq type='result' id='" + id + "'" + to() + "/>");
+            } else if ("jabber:iq:roster".equals(namespace)) {
+                handleRoster(id, type, query);
+            } else if ("http://jabber.org/protocol/disco#info".equals(namespace)) {
+                String from = iq.hasAttribute("to") ? iq.getAttribute("to") : domain;
+                write("<iq type='result' id='" + id + "' from='" + escape(from) + "'" + to()
+                        + "><query xmlns='" + namespace + "'><identity category='server' type='im'/>"
+                        + "<feature var='" + namespace + "'/></query></iq>");
+            } else {
+                writeError(id, "cancel", "service-unavailable");
+            }
+        }
+
+        /**
+         * Handles a roster request.
+         * 
+         * @param id
+         *            the ID of the request
+         * @param type
+         *            the type of the request
+         * @param query
+         *            the query of the request
+         * @throws IOException
+         *             if the answer cannot be written
+         */
+        private void handleRoster(String id, String type, Element query) throws IOException {
+            if (faults.rosterError()) {
+                writeError(id, "wait", "internal-server-error");
+                return;
+            }
+            Set<String> roster = getRoster();
+            if ("get".equals(type)) {
+                StringBuilder out = new StringBuilder();
+                out.append("<iq type='result' id='").append(id).append("'").append(to());
+                out.append("><query xmlns='jabber:iq:roster'>");
+                for (String contact : roster) {
+                    out.append("<item jid='").append(escape(contact)).append("' subscription='both'/>");
+                }
+                out.append("</query></iq>");
+                write(out.toString());
+                return;
+            }
+
+            Element item = child(query, "item");
+            if (item == null) {
+                writeError(id, "modify", "bad-request");
+                return;
+            }
+            String contact = StringUtils.parseBareAddress(item.getAttribute("jid"));
+            String subscription = "remove".equals(item.getAttribute("subscription")) ? "remove" : "both";
+            if ("remove".equals(subscription)) {
+                roster.remove(contact);
+            } else {
+                roster.add(contact);
+            }
+            write("<iq type='result' id='" + id + "'" + to() + "/>");
+            write("<iq type='set' id='push" + ids.incrementAndGet() + "'" + to()
+                    + "><query xmlns='jabber:iq:roster'><item jid='" + escape(contact) + "' subscription='"
+                    + subscription + "'/></query></iq>");
+        }
+
+        /**
+         * Handles a presence. Subscription requests are approved immediately
+         * and the initial presence is answered with the presence of every
+         * contact.
+         * 
+         * @param presence
+         *            the presence
+         * @throws IOException
+         *             if the answer cannot be written
+         */
+        private void handlePresence(Element presence) throws IOException {
+            String type = presence.getAttribute("type");
+            if ("subscribe".equals(type)) {
+                String contact = escape(StringUtils.parseBareAddress(presence.getAttribute("to")));
+                write("<presence from='" + contact + "'" + to() + " type='subscribed'/>");
+                write("<presence from='" + contact + "/stub'" + to() + "/>");
+            } else if (type.isEmpty() && !presence.hasAttribute("to")) {
+                StringBuilder out = new StringBuilder();
+                for (String contact : getRoster()) {
+                    out.append("<presence from='").append(escape(contact)).append("/stub'");
+                    out.append(to()).append("/>");
+                }
+                write(out.toString());
+            }
+        }
+
+        /**
+         * Handles a message. Requested receipts are send in the name of the
+         * recipient.
+         * 
+         * @param message
+         *            the message
+         * @throws IOException
+         *             if the receipt cannot be written
+         */
+        private void handleMessage(Element message) throws IOException {
+            String recipientId = message.getAttribute("to");
+            Element body = child(message, "body");
+            if (body != null) {
+                sink.messageReceived(StringUtils.parseBareAddress(jid), recipientId, body.getTextContent());
+            }
+            Element request = child(message, "request");
+            if (request != null && "urn:xmpp:receipts".equals(request.getAttribute("xmlns"))
+                    && message.hasAttribute("id")) {
+                write("<message from='" + escape(recipientId) + "'" + to()
+                        + "><received xmlns='urn:xmpp:receipts' id='" + escape(message.getAttribute("id"))
+                        + "'/></message>");
+            }
+        }
+
+        /**
+         * Gets the roster of the user of this session.
+         * 
+         * @return the roster
+         */
+        private Set<String> getRoster() {
+            String key = username + "@" + domain;
+            synchronized (rosters) {
+                Set<String> roster = rosters.get(key);
+                if (roster == null) {
+                    roster = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                    rosters.put(key, roster);
+                }
+                return roster;
+            }
+        }
+
+        /**
+         * Gets the attribute that addresses stanzas to the client, if a
+         * resource is bound already.
+         * 
+         * @return the attribute or an empty string
+         */
+        private String to() {
+            return jid == null ? "" : " to='" + escape(jid) + "'";
+        }
+
+        /**
+         * Answers an IQ with an error.
+         * 
+         * @param id
+         *            the ID of the IQ
+         * @param type
+         *            the type of the error
+         * @param condition
+         *            the condition of the error
+         * @throws IOException
+         *             if the answer cannot be written
+         */
+        private void writeError(String id, String type, String condition) throws IOException {
+            write("<iq type='error' id='" + id + "'" + to() + "><error type='" + type + "'><"
+                    + condition + " xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/></error></iq>");
+        }
+
+        /**
+         * Writes the given XML to the client.
+         * 
+         * @param xml
+         *            the XML
+         * @throws IOException
+         *             if the XML cannot be written
+         */
+        private synchronized void write(String xml) throws IOException {
+            writer.write(xml);
+            writer.flush();
+        }
+
+        /**
+         * Closes the connection.
+         */
+        private void close() {
+            sessions.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // the connection is gone anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sk89q.commandbook.CommandBook;
+
+/**
+ * Collects alerts and hands them over as a single digest per type and time
+ * window. The window of a type starts with its first alert, identical alerts
+ * within a window are merged and counted.
+ */
+class AlertAggregator {
+
+    /**
+     * The maximum number of distinct alerts kept per window. Further alerts
+     * are only counted.
+     */
+    private static final int MAX_DISTINCT = 100;
+
+    /**
+     * Receives the digests.
+     */
+    interface Sink {
+
+        /**
+         * Called on the thread of the aggregator when a window ends.
+         * 
+         * @param type
+         *            the type of the alerts
+         * @param digest
+         *            the alerts of the window
+         */
+        void send(String type, Digest digest);
+    }
+
+    /**
+     * The alerts of a single window.
+     */
+    static class Digest {
+
+        private final Map<String, Integer> alerts = new LinkedHashMap<String, Integer>();
+        private final long window;
+        private int count;
+
+        /**
+         * Constructs an empty digest.
+         * 
+         * @param window
+         *            the length of the window in seconds
+         */
+        private Digest(long window) {
+            this.window = window;
+        }
+
+        /**
+         * Adds the given alert.
+         * 
+         * @param text
+         *            the text of the alert
+         */
+        private void add(String text) {
+            count++;
+            Integer repeated = alerts.get(text);
+            if (repeated != null) {
+                alerts.put(text, repeated + 1);
+            } else if (alerts.size() < MAX_DISTINCT) {
+                alerts.put(text, 1);
+            }
+        }
+
+        /**
+         * Gets the number of alerts in the window, including alerts that are
+         * not kept.
+         * 
+         * @return the number of alerts
+         */
+        int getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the distinct alerts in the order they first occurred, mapped
+         * to the number of times they occurred.
+         * 
+         * @return the alerts
+         */
+        Map<String, Integer> getAlerts() {
+            return Collections.unmodifiableMap(alerts);
+        }
+
+        /**
+         * Gets the length of the window.
+         * 
+         * @return the length in seconds
+         */
+        long getWindow() {
+            return window;
+        }
+    }
+
+    private final Sink sink;
+    private final ScheduledExecutorService executor = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("XMPPChat-Alerts-%d")
+                    .setDaemon(true).build());
+
+    /**
+     * The open windows by type. Guarded by this.
+     */
+    private final Map<String, Digest> windows = new HashMap<String, Digest>();
+
+    /**
+     * The length of new windows in seconds.
+     */
+    private volatile long window;
+
+    /**
+     * Constructs this aggregator.
+     * 
+     * @param sink
+     *            receives the digests
+     * @param window
+     *            the length of a window in seconds
+     */
+    AlertAggregator(Sink sink, long window) {
+        this.sink = sink;
+        this.window = window;
+    }
+
+    /**
+     * Sets the length of windows that are started afterwards.
+     * 
+     * @param window
+     *            the length in seconds
+     */
+    void setWindow(long window) {
+        this.window = window;
+    }
+
+    /**
+     * Records the given alert. Starts a new window if none is open for the
+     * type.
+     * 
+     * @param type
+     *            the type of the alert
+     * @param text
+     *            the text of the alert
+     */
+    synchronized void record(final String type, String text) {
+        Digest digest = windows.get(type);
+        if (digest == null) {
+            long length = window;
+            try {
+                executor.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        flush(type);
+                    }
+                }, length, TimeUnit.SECONDS);
+            } catch (RejectedExecutionException e) {
+                // closed
+                return;
+            }
+            digest = new Digest(length);
+            windows.put(type, digest);
+        }
+        digest.add(text);
+    }
+
+    /**
+     * Closes the window of the given type and hands its digest to the sink.
+     * 
+     * @param type
+     *            the type
+     */
+    private void flush(String type) {
+        Digest digest;
+        synchronized (this) {
+            digest = windows.remove(type);
+        }
+        if (digest == null) {
+            return;
+        }
+        try {
+            sink.send(type, digest);
+        } catch (RuntimeException e) {
+            CommandBook.logger().log(Level.WARNING, "Failed to send the '" + type + "' alerts.", e);
+        }
+    }
+
+    /**
+     * Stops aggregating. Open windows are discarded.
+     */
+    void close() {
+        executor.shutdownNow();
+        synchronized (this) {
+            windows.clear();
+        }
+    }
+}
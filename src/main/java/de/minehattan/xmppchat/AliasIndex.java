@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+/**
+ * An immutable index of aliases and the users they refer to. Changes create a
+ * new index, so an index can be published to other threads by a single
+ * volatile write and is never observed while it is being built.
+ * 
+ * <p>
+ * The new index shares the alias sets of all unaffected users and aliases
+ * with the previous one, but the two maps that hold them are copied, which
+ * takes time linear in the number of aliases. Several changes should
+ * therefore be applied through a single {@link Builder}, which copies the
+ * maps once.
+ * </p>
+ * 
+ * <p>
+ * The tries used for completion are only built when they are first needed, so
+ * changes that are not followed by a completion request do not pay for them.
+ * A trie cannot be updated, so the first completion after a change builds it
+ * again from all aliases, which takes time in O(n log n). This assumes that
+ * the contacts change rarely compared to completions, as they are only
+ * changed by commands. If they changed between most completions, every
+ * completion would pay for a full build.
+ * </p>
+ * 
+ * <p>
+ * Users are identified by their bare JIDs in lower case, like the bot keys its
+ * roster, so the case of a configured JID does not matter.
+ * </p>
+ */
+final class AliasIndex {
+
+    /**
+     * An index without any users.
+     */
+    static final AliasIndex EMPTY = new AliasIndex(new HashMap<String, Set<String>>(),
+            new HashMap<String, Set<String>>());
+
+    /**
+     * The identifiers of the users each alias refers to.
+     */
+    private final Map<String, Set<String>> usersByAlias;
+
+    /**
+     * The aliases of each user.
+     */
+    private final Map<String, Set<String>> aliasesByUser;
+
+    /**
+     * All aliases, for completion, or {@code null} until first needed.
+     */
+    private volatile PrefixTrie aliasTrie;
+
+    /**
+     * The identifiers of all users, for completion, or {@code null} until
+     * first needed.
+     */
+    private volatile PrefixTrie userTrie;
+
+    /**
+     * Constructs this index. The given maps and the sets they contain must
+     * not be modified afterwards.
+     * 
+     * @param usersByAlias
+     *            the identifiers of the users each alias refers to
+     * @param aliasesByUser
+     *            the aliases of each user
+     */
+    private AliasIndex(Map<String, Set<String>> usersByAlias, Map<String, Set<String>> aliasesByUser) {
+        this.usersByAlias = usersByAlias;
+        this.aliasesByUser = aliasesByUser;
+    }
+
+    /**
+     * Gets the trie of all aliases, building it if necessary. Concurrent
+     * callers may build it more than once, but all of them get an equal trie.
+     * 
+     * @return the trie
+     */
+    private PrefixTrie getAliasTrie() {
+        PrefixTrie trie = aliasTrie;
+        if (trie == null) {
+            trie = new PrefixTrie(usersByAlias.keySet());
+            aliasTrie = trie;
+        }
+        return trie;
+    }
+
+    /**
+     * Gets the trie of all user identifiers, building it if necessary.
+     * 
+     * @return the trie
+     */
+    private PrefixTrie getUserTrie() {
+        PrefixTrie trie = userTrie;
+        if (trie == null) {
+            trie = new PrefixTrie(aliasesByUser.keySet());
+            userTrie = trie;
+        }
+        return trie;
+    }
+
+    /**
+     * Creates an index from the given contacts.
+     * 
+     * @param contacts
+     *            the aliases of each user
+     * @return the index
+     */
+    static AliasIndex of(Map<String, ? extends Collection<String>> contacts) {
+        Map<String, Set<String>> usersByAlias = new HashMap<String, Set<String>>();
+        Map<String, Set<String>> aliasesByUser = new HashMap<String, Set<String>>();
+
+        for (Entry<String, ? extends Collection<String>> entry : contacts.entrySet()) {
+            String userId = normalize(entry.getKey());
+            Set<String> aliases = new HashSet<String>(entry.getValue());
+            Set<String> previous = aliasesByUser.get(userId);
+            if (previous != null) {
+                // configured twice with different case
+                aliases.addAll(previous);
+            }
+            aliasesByUser.put(userId, Collections.unmodifiableSet(aliases));
+            for (String alias : entry.getValue()) {
+                Set<String> users = usersByAlias.get(alias);
+                if (users == null) {
+                    users = new HashSet<String>();
+                    usersByAlias.put(alias, users);
+                }
+                users.add(userId);
+            }
+        }
+        for (Entry<String, Set<String>> entry : usersByAlias.entrySet()) {
+            entry.setValue(Collections.unmodifiableSet(entry.getValue()));
+        }
+        return new AliasIndex(usersByAlias, aliasesByUser);
+    }
+
+    /**
+     * Returns an index in which the given user has the given aliases. Existing
+     * aliases of the user are replaced.
+     * 
+     * @param userId
+     *            the identifier of the user
+     * @param aliases
+     *            the aliases of the user
+     * @return the new index
+     */
+    AliasIndex withUser(String userId, List<String> aliases) {
+        return edit().putUser(userId, aliases).build();
+    }
+
+    /**
+     * Returns an index without the given user.
+     * 
+     * @param userId
+     *            the identifier of the user
+     * @return the new index
+     */
+    AliasIndex withoutUser(String userId) {
+        if (!containsUser(userId)) {
+            return this;
+        }
+        return edit().removeUser(userId).build();
+    }
+
+    /**
+     * Starts a batch of changes to this index.
+     * 
+     * @return a builder that starts with the entries of this index
+     */
+    Builder edit() {
+        return new Builder(this);
+    }
+
+    /**
+     * Returns whether the given alias exists.
+     * 
+     * @param alias
+     *            the alias
+     * @return whether the alias exists
+     */
+    boolean containsAlias(String alias) {
+        return usersByAlias.containsKey(alias);
+    }
+
+    /**
+     * Resolves the given alias or the start of an alias to an existing alias.
+     * 
+     * @param prefix
+     *            the alias or its start
+     * @return the alias itself if it exists, otherwise the only alias that
+     *         starts with the given prefix, or {@code null} if there is no
+     *         such alias or more than one
+     */
+    @Nullable
+    String resolveAlias(String prefix) {
+        return usersByAlias.containsKey(prefix) ? prefix : getAliasTrie().resolve(prefix);
+    }
+
+    /**
+     * Gets the aliases that start with the given prefix, in lexicographical
+     * order.
+     * 
+     * @param prefix
+     *            the prefix
+     * @param limit
+     *            the maximum number of aliases returned
+     * @return the aliases
+     */
+    List<String> completeAlias(String prefix, int limit) {
+        return getAliasTrie().complete(prefix, limit);
+    }
+
+    /**
+     * Gets the identifiers of the users that start with the given prefix, in
+     * lexicographical order.
+     * 
+     * @param prefix
+     *            the prefix
+     * @param limit
+     *            the maximum number of identifiers returned
+     * @return the identifiers
+     */
+    List<String> completeUser(String prefix, int limit) {
+        return getUserTrie().complete(prefix, limit);
+    }
+
+    /**
+     * Returns whether the given user exists.
+     * 
+     * @param userId
+     *            the identifier of the user
+     * @return whether the user exists
+     */
+    boolean containsUser(String userId) {
+        return aliasesByUser.containsKey(normalize(userId));
+    }
+
+    /**
+     * Gets the identifiers of the users the given alias refers to.
+     * 
+     * @param alias
+     *            the alias
+     * @return the identifiers, empty if the alias does not exist
+     */
+    Set<String> getUserIds(String alias) {
+        Set<String> users = usersByAlias.get(alias);
+        return users != null ? users : Collections.<String>emptySet();
+    }
+
+    /**
+     * Gets the aliases of the given user.
+     * 
+     * @param userId
+     *            the identifier of the user
+     * @return the aliases, empty if the user does not exist
+     */
+    Set<String> getAliases(String userId) {
+        Set<String> aliases = aliasesByUser.get(normalize(userId));
+        return aliases != null ? aliases : Collections.<String>emptySet();
+    }
+
+    /**
+     * Gets the identifiers of all users.
+     * 
+     * @return the identifiers
+     */
+    Set<String> getUserIds() {
+        return Collections.unmodifiableSet(aliasesByUser.keySet());
+    }
+
+    /**
+     * Normalizes the given identifier of a user to the bare JID in lower case.
+     * 
+     * @param userId
+     *            the identifier, possibly a full JID
+     * @return the normalized identifier
+     */
+    static String normalize(String userId) {
+        return StringUtils.parseBareAddress(userId).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Applies several changes to an index and creates the new index once.
+     * The maps of the index are copied when the builder is created, the alias
+     * sets only when they are changed. A builder must not be used after
+     * {@link #build()}.
+     */
+    static final class Builder {
+
+        private Map<String, Set<String>> usersByAlias;
+        private Map<String, Set<String>> aliasesByUser;
+
+        /**
+         * Constructs a builder that starts with the entries of the given
+         * index.
+         * 
+         * @param base
+         *            the index
+         */
+        private Builder(AliasIndex base) {
+            usersByAlias = new HashMap<String, Set<String>>(base.usersByAlias);
+            aliasesByUser = new HashMap<String, Set<String>>(base.aliasesByUser);
+        }
+
+        /**
+         * Sets the aliases of the given user. Existing aliases of the user are
+         * replaced.
+         * 
+         * @param userId
+         *            the identifier of the user
+         * @param aliases
+         *            the aliases of the user
+         * @return this builder
+         */
+        Builder putUser(String userId, Collection<String> aliases) {
+            checkNotBuilt();
+            String key = normalize(userId);
+            removeAliases(key);
+            aliasesByUser.put(key, Collections.unmodifiableSet(new HashSet<String>(aliases)));
+            for (String alias : aliases) {
+                Set<String> previous = usersByAlias.get(alias);
+                Set<String> users = previous != null ? new HashSet<String>(previous) : new HashSet<String>();
+                users.add(key);
+                usersByAlias.put(alias, Collections.unmodifiableSet(users));
+            }
+            return this;
+        }
+
+        /**
+         * Removes the given user.
+         * 
+         * @param userId
+         *            the identifier of the user
+         * @return this builder
+         */
+        Builder removeUser(String userId) {
+            checkNotBuilt();
+            String key = normalize(userId);
+            removeAliases(key);
+            aliasesByUser.remove(key);
+            return this;
+        }
+
+        /**
+         * Removes the given user from all of its aliases.
+         * 
+         * @param key
+         *            the normalized identifier of the user
+         */
+        private void removeAliases(String key) {
+            Set<String> aliases = aliasesByUser.get(key);
+            if (aliases == null) {
+                return;
+            }
+            for (String alias : aliases) {
+                Set<String> users = new HashSet<String>(usersByAlias.get(alias));
+                users.remove(key);
+                if (users.isEmpty()) {
+                    usersByAlias.remove(alias);
+                } else {
+                    usersByAlias.put(alias, Collections.unmodifiableSet(users));
+                }
+            }
+        }
+
+        /**
+         * Creates the index.
+         * 
+         * @return the new index
+         */
+        AliasIndex build() {
+            checkNotBuilt();
+            AliasIndex ret = new AliasIndex(usersByAlias, aliasesByUser);
+            usersByAlias = null;
+            aliasesByUser = null;
+            return ret;
+        }
+
+        /**
+         * Ensures that {@link #build()} has not been called yet.
+         */
+        private void checkNotBuilt() {
+            if (aliasesByUser == null) {
+                throw new IllegalStateException("The index has already been built.");
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import javax.annotation.Nullable;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.sk89q.commandbook.CommandBook;
+
+import de.minehattan.xmppchat.bot.AbstractChatBotListener;
+import de.minehattan.xmppchat.bot.BotException;
+import de.minehattan.xmppchat.bot.ChatBot.ConnectionState;
+import de.minehattan.xmppchat.bot.ChatBot.UserStatus;
+import de.minehattan.xmppchat.bot.Priority;
+import de.minehattan.xmppchat.bot.QueuedChatBot;
+
+/**
+ * Implements the {@link XMPPChatService} on top of the bot and the aliases of
+ * the component.
+ */
+class ChatServiceProvider extends AbstractChatBotListener implements XMPPChatService {
+
+    private final Supplier<AliasIndex> aliases;
+    private final QueuedChatBot chatBot;
+    @Nullable
+    private final OutboxRelay outboxRelay;
+    private final Executor mainThread;
+    private final List<PresenceListener> listeners = new CopyOnWriteArrayList<PresenceListener>();
+
+    /**
+     * Constructs this provider.
+     * 
+     * @param aliases
+     *            supplies the current aliases
+     * @param chatBot
+     *            the bot used to send the messages
+     * @param outboxRelay
+     *            stores messages while the bot is not connected, {@code null}
+     *            if such messages fail
+     * @param mainThread
+     *            executes the presence listeners on the main thread
+     */
+    ChatServiceProvider(Supplier<AliasIndex> aliases, QueuedChatBot chatBot, @Nullable OutboxRelay outboxRelay,
+            Executor mainThread) {
+        this.aliases = aliases;
+        this.chatBot = chatBot;
+        this.outboxRelay = outboxRelay;
+        this.mainThread = mainThread;
+    }
+
+    @Override
+    public ConnectionState getConnectionState() {
+        return chatBot.getConnectionState();
+    }
+
+    @Override
+    public boolean containsAlias(String alias) {
+        return aliases.get().containsAlias(alias);
+    }
+
+    @Override
+    public UserStatus getStatus(String alias) {
+        UserStatus best = UserStatus.OFFLINE;
+        for (String userId : aliases.get().getUserIds(alias)) {
+            UserStatus status = chatBot.getUserStatus(userId);
+            // the constants are ordered from the most to the least available
+            if (status.ordinal() < best.ordinal()) {
+                best = status;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public ListenableFuture<Void> sendAsync(String alias, String msg) {
+        return sendAsync(alias, msg, Priority.NORMAL);
+    }
+
+    @Override
+    public ListenableFuture<Void> sendAsync(String alias, String msg, Priority priority) {
+        Set<String> userIds = aliases.get().getUserIds(alias);
+        if (userIds.isEmpty()) {
+            return Futures.immediateFailedFuture(new BotException("The alias '" + alias + "' does not exist."));
+        }
+        return send(userIds, msg, priority);
+    }
+
+    /**
+     * Sends the given message to all given users as one message of the bot,
+     * or stores it for each of them if the bot is not connected.
+     * 
+     * @param userIds
+     *            the users
+     * @param msg
+     *            the message
+     * @param priority
+     *            the priority of the message
+     * @return a future that completes once the message has been send or stored
+     */
+    private ListenableFuture<Void> send(Set<String> userIds, String msg, Priority priority) {
+        if (outboxRelay != null && chatBot.getConnectionState() != ConnectionState.CONNECTED) {
+            // keep the message on disk until the connection is established
+            for (String userId : userIds) {
+                outboxRelay.store(userId, msg);
+            }
+            return Futures.immediateFuture(null);
+        }
+        return chatBot.sendMessageAsync(userIds, msg, priority);
+    }
+
+    @Override
+    public ListenableFuture<Void> sendBatch(Map<String, ? extends Collection<String>> messages, Priority priority) {
+        // coalesce the batch: every distinct text is send once to all users
+        // that should receive it, whatever alias they were addressed by
+        AliasIndex index = aliases.get();
+        Map<String, Set<String>> recipients = new LinkedHashMap<String, Set<String>>();
+        List<ListenableFuture<Void>> sends = new ArrayList<ListenableFuture<Void>>();
+        for (Entry<String, ? extends Collection<String>> entry : messages.entrySet()) {
+            Set<String> userIds = index.getUserIds(entry.getKey());
+            if (userIds.isEmpty()) {
+                sends.add(Futures.<Void> immediateFailedFuture(new BotException("The alias '" + entry.getKey()
+                        + "' does not exist.")));
+                continue;
+            }
+            for (String msg : entry.getValue()) {
+                Set<String> users = recipients.get(msg);
+                if (users == null) {
+                    users = new LinkedHashSet<String>();
+                    recipients.put(msg, users);
+                }
+                users.addAll(userIds);
+            }
+        }
+        for (Entry<String, Set<String>> entry : recipients.entrySet()) {
+            sends.add(send(entry.getValue(), entry.getKey(), priority));
+        }
+        if (sends.isEmpty()) {
+            return Futures.immediateFuture(null);
+        }
+
+        final SettableFuture<Void> result = SettableFuture.create();
+        final AtomicInteger remaining = new AtomicInteger(sends.size());
+        FutureCallback<Void> callback = new FutureCallback<Void>() {
+
+            @Override
+            public void onSuccess(Void ignored) {
+                if (remaining.decrementAndGet() == 0) {
+                    result.set(null);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // the first failure wins, the remaining messages are still send
+                result.setException(t);
+            }
+        };
+        for (ListenableFuture<Void> send : sends) {
+            Futures.addCallback(send, callback);
+        }
+        return result;
+    }
+
+    @Override
+    public void subscribe(PresenceListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void unsubscribe(PresenceListener listener) {
+        listeners.remove(listener);
+    }
+
+    @Override
+    public void userStatusChanged(final String userId, final UserStatus status) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        final Set<String> userAliases = Collections.unmodifiableSet(aliases.get().getAliases(userId));
+        if (userAliases.isEmpty()) {
+            return;
+        }
+        mainThread.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                for (PresenceListener listener : listeners) {
+                    try {
+                        listener.presenceChanged(userId, userAliases, status);
+                    } catch (RuntimeException e) {
+                        CommandBook.logger().log(Level.WARNING,
+                                "A presence listener failed to handle the status of " + userId + ".", e);
+                    }
+                }
+            }
+        });
+    }
+}
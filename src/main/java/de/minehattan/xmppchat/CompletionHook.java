@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.lang.reflect.Field;
+import java.util.List;
+import java.util.logging.Level;
+
+import javax.annotation.Nullable;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandMap;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.SimpleCommandMap;
+import org.bukkit.command.TabCompleter;
+
+import com.sk89q.commandbook.CommandBook;
+
+/**
+ * Adds tab completion to a command that CommandBook registered for a
+ * component.
+ * 
+ * <p>
+ * CommandBook registers the commands of its components as dynamic commands
+ * that ask their executor, the CommandBook plugin, for completions, and
+ * offers components no way to provide their own. The hook therefore looks up
+ * the command in the server's command map and wraps its executor. As neither
+ * is part of the Bukkit API, this is done by reflection; if it fails, the
+ * command simply stays without completion.
+ * </p>
+ */
+final class CompletionHook {
+
+    private final Command command;
+    private final Field executorField;
+    private final CommandExecutor original;
+
+    /**
+     * Constructs a hook.
+     * 
+     * @param command
+     *            the command
+     * @param executorField
+     *            the field that holds the executor of the command
+     * @param original
+     *            the original executor
+     */
+    private CompletionHook(Command command, Field executorField, CommandExecutor original) {
+        this.command = command;
+        this.executorField = executorField;
+        this.original = original;
+    }
+
+    /**
+     * Installs the given completer for the command with the given name.
+     * 
+     * @param name
+     *            the name of the command
+     * @param completer
+     *            the completer, which may return {@code null} to fall back to
+     *            the original completion
+     * @return the hook or {@code null} if it could not be installed
+     */
+    @Nullable
+    static CompletionHook install(String name, TabCompleter completer) {
+        try {
+            Object pluginManager = CommandBook.server().getPluginManager();
+            CommandMap commandMap = (CommandMap) findField(pluginManager.getClass(), SimpleCommandMap.class).get(
+                    pluginManager);
+            Command command = commandMap.getCommand(name);
+            if (command == null) {
+                return null;
+            }
+            Field executorField = findField(command.getClass(), CommandExecutor.class);
+            CommandExecutor original = (CommandExecutor) executorField.get(command);
+            executorField.set(command, new CompletingExecutor(original, completer));
+            return new CompletionHook(command, executorField, original);
+        } catch (NoSuchFieldException e) {
+            CommandBook.logger().log(Level.INFO, "Tab completion for /" + name + " is not supported: " + e.getMessage());
+        } catch (IllegalAccessException e) {
+            CommandBook.logger().log(Level.INFO, "Tab completion for /" + name + " is not supported.", e);
+        }
+        return null;
+    }
+
+    /**
+     * Finds a field of exactly the given type that is declared by the given
+     * class or one of its super classes and makes it accessible.
+     * 
+     * @param clazz
+     *            the class
+     * @param type
+     *            the type of the field
+     * @return the field
+     * @throws NoSuchFieldException
+     *             if there is no such field
+     */
+    private static Field findField(Class<?> clazz, Class<?> type) throws NoSuchFieldException {
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (field.getType() == type) {
+                    field.setAccessible(true);
+                    return field;
+                }
+            }
+        }
+        throw new NoSuchFieldException(clazz.getName() + " has no field of type " + type.getName());
+    }
+
+    /**
+     * Restores the original executor of the command.
+     */
+    void uninstall() {
+        try {
+            executorField.set(command, original);
+        } catch (IllegalAccessException e) {
+            CommandBook.logger().log(Level.WARNING, "Failed to remove tab completion from /" + command.getName(),
+                    e);
+        }
+    }
+
+    /**
+     * Executes commands with the original executor and asks the completer for
+     * completions first.
+     */
+    private static class CompletingExecutor implements CommandExecutor, TabCompleter {
+
+        private final CommandExecutor original;
+        private final TabCompleter completer;
+
+        /**
+         * Constructs the executor.
+         * 
+         * @param original
+         *            the original executor
+         * @param completer
+         *            the completer
+         */
+        CompletingExecutor(CommandExecutor original, TabCompleter completer) {
+            this.original = original;
+            this.completer = completer;
+        }
+
+        @Override
+        public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+            return original.onCommand(sender, command, label, args);
+        }
+
+        @Override
+        public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+            List<String> ret = completer.onTabComplete(sender, command, alias, args);
+            if (ret == null && original instanceof TabCompleter) {
+                ret = ((TabCompleter) original).onTabComplete(sender, command, alias, args);
+            }
+            return ret;
+        }
+    }
+}
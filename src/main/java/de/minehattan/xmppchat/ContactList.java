@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.Nullable;
+
+import org.apache.commons.lang.text.StrBuilder;
+import org.bukkit.ChatColor;
+
+import de.minehattan.xmppchat.bot.AbstractChatBotListener;
+import de.minehattan.xmppchat.bot.ChatBot;
+import de.minehattan.xmppchat.bot.ChatBot.ConnectionState;
+import de.minehattan.xmppchat.bot.ChatBot.UserStatus;
+
+/**
+ * The contacts as shown by {@code /xmpp list}: sorted by their identifier,
+ * with the rendered line of every contact cached until its aliases or its
+ * status change.
+ * 
+ * <p>
+ * The rows are kept in an array that is replaced as a whole when contacts are
+ * added, removed or get other aliases, so the views handed out by
+ * {@link #view(boolean, String)} can be paged without copying. A status change
+ * only updates the status of its row and marks the positions of the online
+ * contacts as outdated, so a storm of presences after connecting costs
+ * constant time per presence. The online positions are computed again by the
+ * next view that needs them. The positions of the contacts that match an alias
+ * filter are computed once and cached until the contacts change. Showing a
+ * page therefore only renders the rows on that page.
+ * </p>
+ */
+class ContactList extends AbstractChatBotListener {
+
+    /**
+     * The maximum number of alias filters whose matches are cached.
+     */
+    private static final int MAX_CACHED_FILTERS = 16;
+
+    /**
+     * Sorts the rows case-insensitively by the identifier of their user.
+     */
+    private static final Comparator<Row> ORDER = new Comparator<Row>() {
+
+        @Override
+        public int compare(Row o1, Row o2) {
+            int ret = String.CASE_INSENSITIVE_ORDER.compare(o1.userId, o2.userId);
+            return ret != 0 ? ret : o1.userId.compareTo(o2.userId);
+        }
+    };
+
+    private final ChatBot chatBot;
+
+    /**
+     * The current rows. Guarded by this list for writing.
+     */
+    private volatile Snapshot snapshot = new Snapshot(new Row[0]);
+
+    /**
+     * The positions of the online rows of the current snapshot, ascending, or
+     * {@code null} if a status changed since they were computed. Guarded by
+     * this list.
+     */
+    @Nullable
+    private int[] online;
+
+    /**
+     * The positions of the rows that match an alias filter, keyed by the
+     * lower-case filter. Cleared whenever rows are added or removed. Guarded
+     * by this list.
+     */
+    private final Map<String, int[]> filters = new LinkedHashMap<String, int[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+            return size() > MAX_CACHED_FILTERS;
+        }
+    };
+
+    /**
+     * Constructs an empty list.
+     * 
+     * @param chatBot
+     *            the bot that knows the statuses of the contacts
+     */
+    ContactList(ChatBot chatBot) {
+        this.chatBot = chatBot;
+    }
+
+    /**
+     * Replaces all contacts.
+     * 
+     * @param contacts
+     *            the aliases of every contact
+     */
+    synchronized void setContacts(Map<String, ? extends Collection<String>> contacts) {
+        Row[] rows = new Row[contacts.size()];
+        int i = 0;
+        for (Entry<String, ? extends Collection<String>> entry : contacts.entrySet()) {
+            rows[i++] = new Row(entry.getKey(), entry.getValue(), chatBot.getUserStatus(entry.getKey()));
+        }
+        Arrays.sort(rows, ORDER);
+        publish(rows);
+    }
+
+    /**
+     * Adds the given contact or replaces its aliases.
+     * 
+     * @param userId
+     *            the identifier of the contact
+     * @param aliases
+     *            the aliases of the contact
+     */
+    synchronized void put(String userId, Collection<String> aliases) {
+        Row row = new Row(userId, aliases, chatBot.getUserStatus(userId));
+        Row[] rows = snapshot.rows;
+        int position = Arrays.binarySearch(rows, row, ORDER);
+        if (position >= 0) {
+            Row[] copy = rows.clone();
+            copy[position] = row;
+            // the layout is unchanged, but the cached matches may differ
+            publish(copy);
+            return;
+        }
+        position = -position - 1;
+        Row[] copy = new Row[rows.length + 1];
+        System.arraycopy(rows, 0, copy, 0, position);
+        copy[position] = row;
+        System.arraycopy(rows, position, copy, position + 1, rows.length - position);
+        publish(copy);
+    }
+
+    /**
+     * Removes the given contact.
+     * 
+     * @param userId
+     *            the identifier of the contact
+     */
+    synchronized void remove(String userId) {
+        Snapshot current = snapshot;
+        Integer position = current.positions.get(toKey(userId));
+        if (position == null) {
+            return;
+        }
+        Row[] copy = new Row[current.rows.length - 1];
+        System.arraycopy(current.rows, 0, copy, 0, position);
+        System.arraycopy(current.rows, position + 1, copy, position, copy.length - position);
+        publish(copy);
+    }
+
+    /**
+     * Publishes the given rows. The cached positions of online rows and of
+     * filter matches are outdated afterwards.
+     * 
+     * @param rows
+     *            the new rows, must not be modified afterwards
+     */
+    private void publish(Row[] rows) {
+        filters.clear();
+        online = null;
+        snapshot = new Snapshot(rows);
+    }
+
+    @Override
+    public void connectionStateChanged(ConnectionState state) {
+        // the bot forgets the statuses when the connection changes
+        synchronized (this) {
+            for (Row row : snapshot.rows) {
+                UserStatus status = chatBot.getUserStatus(row.userId);
+                if (status != row.status) {
+                    row.status = status;
+                    online = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void userStatusChanged(String userId, UserStatus status) {
+        synchronized (this) {
+            Snapshot current = snapshot;
+            Integer position = current.positions.get(toKey(userId));
+            if (position == null || current.rows[position].status == status) {
+                return;
+            }
+            current.rows[position].status = status;
+            online = null;
+        }
+    }
+
+    /**
+     * Gets the rendered rows, optionally restricted to online contacts and
+     * contacts with an alias that contains the given text.
+     * 
+     * @param onlineOnly
+     *            whether only online contacts are included
+     * @param aliasFilter
+     *            the text an alias must contain, case-insensitive, or
+     *            {@code null} to include all contacts
+     * @return an unmodifiable view of the rendered rows, which shows the
+     *         current status of the included contacts
+     */
+    List<String> view(boolean onlineOnly, @Nullable String aliasFilter) {
+        Snapshot current;
+        int[] positions = null;
+        synchronized (this) {
+            current = snapshot;
+            if (aliasFilter != null) {
+                String key = aliasFilter.toLowerCase(Locale.ENGLISH);
+                positions = filters.get(key);
+                if (positions == null) {
+                    positions = current.match(key);
+                    filters.put(key, positions);
+                }
+            } else if (onlineOnly) {
+                if (online == null) {
+                    online = current.online(null);
+                }
+                return new RowView(current.rows, online);
+            }
+        }
+        if (onlineOnly) {
+            positions = current.online(positions);
+        }
+        return new RowView(current.rows, positions);
+    }
+
+    /**
+     * Normalizes the identifier of a user for lookups.
+     * 
+     * @param userId
+     *            the identifier
+     * @return the key
+     */
+    private static String toKey(String userId) {
+        return userId.toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * A set of rows that is never modified, except for the statuses of the
+     * rows.
+     */
+    private static final class Snapshot {
+
+        private final Row[] rows;
+
+        /**
+         * The position of every row, keyed by the lower-case identifier of its
+         * user.
+         */
+        private final Map<String, Integer> positions;
+
+        /**
+         * Constructs a snapshot.
+         * 
+         * @param rows
+         *            the sorted rows
+         */
+        Snapshot(Row[] rows) {
+            this.rows = rows;
+            positions = new HashMap<String, Integer>(rows.length * 2);
+            for (int i = 0; i < rows.length; i++) {
+                positions.put(toKey(rows[i].userId), i);
+            }
+        }
+
+        /**
+         * Finds the rows with an alias that contains the given text.
+         * 
+         * @param text
+         *            the lower-case text
+         * @return the positions of the rows, ascending
+         */
+        int[] match(String text) {
+            int[] ret = new int[rows.length];
+            int count = 0;
+            for (int i = 0; i < rows.length; i++) {
+                for (String alias : rows[i].aliases) {
+                    if (alias.toLowerCase(Locale.ENGLISH).contains(text)) {
+                        ret[count++] = i;
+                        break;
+                    }
+                }
+            }
+            return Arrays.copyOf(ret, count);
+        }
+
+        /**
+         * Restricts the given positions to online rows.
+         * 
+         * @param candidates
+         *            the positions, {@code null} for all rows
+         * @return the positions of the online rows
+         */
+        int[] online(@Nullable int[] candidates) {
+            int size = candidates != null ? candidates.length : rows.length;
+            int[] ret = new int[size];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                int position = candidates != null ? candidates[i] : i;
+                if (rows[position].status != UserStatus.OFFLINE) {
+                    ret[count++] = position;
+                }
+            }
+            return Arrays.copyOf(ret, count);
+        }
+    }
+
+    /**
+     * A contact with its status and its rendered line.
+     */
+    private static final class Row {
+
+        private final String userId;
+        private final List<String> aliases;
+        /**
+         * The current status. Written while holding the lock of the list.
+         */
+        private volatile UserStatus status;
+
+        /**
+         * The rendered line without the status, {@code null} until it is
+         * rendered the first time.
+         */
+        @Nullable
+        private volatile String rendered;
+
+        /**
+         * Constructs a row.
+         * 
+         * @param userId
+         *            the identifier of the user
+         * @param aliases
+         *            the aliases of the user
+         * @param status
+         *            the status of the user
+         */
+        Row(String userId, Collection<String> aliases, UserStatus status) {
+            this.userId = userId;
+            this.aliases = Collections.unmodifiableList(new ArrayList<String>(aliases));
+            this.status = status;
+        }
+
+        /**
+         * Renders this row with its current status.
+         * 
+         * @return the rendered line
+         */
+        String render() {
+            String ret = rendered;
+            if (ret == null) {
+                StrBuilder builder = new StrBuilder();
+                builder.append(userId);
+                builder.append(ChatColor.GRAY);
+                builder.append(": ");
+                builder.append(ChatColor.ITALIC);
+                builder.appendWithSeparators(aliases, ", ");
+                ret = builder.toString();
+                rendered = ret;
+            }
+            return status.getRepresentation() + ret;
+        }
+    }
+
+    /**
+     * Renders the rows of a snapshot on access.
+     */
+    private static final class RowView extends AbstractList<String> {
+
+        private final Row[] rows;
+        @Nullable
+        private final int[] positions;
+
+        /**
+         * Constructs a view.
+         * 
+         * @param rows
+         *            the rows
+         * @param positions
+         *            the positions of the included rows, {@code null} to
+         *            include all rows
+         */
+        RowView(Row[] rows, @Nullable int[] positions) {
+            this.rows = rows;
+            this.positions = positions;
+        }
+
+        @Override
+        public String get(int index) {
+            return rows[positions != null ? positions[index] : index].render();
+        }
+
+        @Override
+        public int size() {
+            return positions != null ? positions.length : rows.length;
+        }
+    }
+}
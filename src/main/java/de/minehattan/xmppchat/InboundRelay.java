@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.ChatColor;
+import org.bukkit.scheduler.BukkitTask;
+
+import com.google.common.base.Supplier;
+import com.sk89q.commandbook.CommandBook;
+
+import de.minehattan.xmppchat.bot.AbstractChatBotListener;
+
+/**
+ * Relays messages from known contacts to the players on the server. Messages
+ * are queued by the thread that receives them and are broadcasted in batches
+ * by a task that runs on the main thread once per tick.
+ */
+class InboundRelay extends AbstractChatBotListener {
+
+    /**
+     * The permission required to receive relayed messages.
+     */
+    static final String PERMISSION = "xmpp.receive";
+
+    /**
+     * The maximum number of lines that wait to be broadcasted. Further
+     * messages are discarded.
+     */
+    private static final int MAX_QUEUED = 1000;
+
+    /**
+     * The maximum number of lines broadcasted per tick.
+     */
+    private static final int MAX_PER_TICK = 20;
+
+    private final Supplier<AliasIndex> aliases;
+    private final Queue<String> queue = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final BukkitTask task;
+
+    /**
+     * The format of relayed messages, applied to the alias of the sender.
+     */
+    private volatile MessageTemplate format;
+
+    /**
+     * Constructs this relay and starts the task that broadcasts the messages.
+     * Must be called on the main thread.
+     * 
+     * @param aliases
+     *            supplies the current aliases of the contacts
+     * @param format
+     *            the format of relayed messages, applied to the alias of the
+     *            sender
+     */
+    InboundRelay(Supplier<AliasIndex> aliases, MessageTemplate format) {
+        this.aliases = aliases;
+        this.format = format;
+        task = CommandBook.server().getScheduler().runTaskTimer(CommandBook.inst(), new Runnable() {
+
+            @Override
+            public void run() {
+                broadcast();
+            }
+        }, 1, 1);
+    }
+
+    /**
+     * Sets the format of relayed messages.
+     * 
+     * @param format
+     *            the format, applied to the alias of the sender
+     */
+    void setFormat(MessageTemplate format) {
+        this.format = format;
+    }
+
+    @Override
+    public void messageReceived(String senderId, String msg) {
+        Set<String> senderAliases = aliases.get().getAliases(senderId);
+        if (senderAliases.isEmpty()) {
+            // only contacts may talk to the players
+            return;
+        }
+        // the same alias for every message, whatever order the set has
+        String prefix = format.format(Collections.min(senderAliases));
+
+        // senders must not be able to inject colors or fake further lines
+        for (String line : ChatColor.stripColor(msg).split("\r?\n")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            if (queued.incrementAndGet() > MAX_QUEUED) {
+                queued.decrementAndGet();
+                CommandBook.logger().warning("Discarded a message from " + senderId + ", too many are waiting.");
+                return;
+            }
+            queue.add(prefix + line);
+        }
+    }
+
+    /**
+     * Broadcasts the waiting lines. Called once per tick on the main thread.
+     */
+    private void broadcast() {
+        for (int i = 0; i < MAX_PER_TICK; i++) {
+            String line = queue.poll();
+            if (line == null) {
+                return;
+            }
+            queued.decrementAndGet();
+            CommandBook.server().broadcast(line, PERMISSION);
+        }
+    }
+
+    /**
+     * Stops broadcasting. Lines that are still waiting are discarded.
+     */
+    void close() {
+        task.cancel();
+        queue.clear();
+    }
+}
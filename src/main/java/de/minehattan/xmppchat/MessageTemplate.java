@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A configurable message with {@code %s} placeholders that is parsed once,
+ * when the configuration is loaded, instead of on every
+ * {@link String#format(String, Object...)}. Templates that use other
+ * conversions are still formatted by {@code String.format}.
+ */
+final class MessageTemplate {
+
+    private final String pattern;
+
+    /**
+     * The text between the placeholders, {@code null} if the pattern uses
+     * conversions other than {@code %s} and {@code %%}.
+     */
+    private final String[] literals;
+
+    /**
+     * The length of all literals.
+     */
+    private final int literalLength;
+
+    /**
+     * Constructs a template.
+     * 
+     * @param pattern
+     *            the pattern, as used by {@code String.format}
+     * @param literals
+     *            the text between the placeholders, {@code null} if the
+     *            pattern must be formatted by {@code String.format}
+     */
+    private MessageTemplate(String pattern, String[] literals) {
+        this.pattern = pattern;
+        this.literals = literals;
+        int length = 0;
+        if (literals != null) {
+            for (String literal : literals) {
+                length += literal.length();
+            }
+        }
+        literalLength = length;
+    }
+
+    /**
+     * Parses the given pattern.
+     * 
+     * @param pattern
+     *            the pattern, as used by {@code String.format}
+     * @return the template
+     */
+    static MessageTemplate compile(String pattern) {
+        List<String> literals = new ArrayList<String>();
+        StringBuilder literal = new StringBuilder();
+        int length = pattern.length();
+        for (int i = 0; i < length; i++) {
+            char c = pattern.charAt(i);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            char conversion = i + 1 < length ? pattern.charAt(i + 1) : 0;
+            if (conversion == '%') {
+                literal.append('%');
+            } else if (conversion == 's') {
+                literals.add(literal.toString());
+                literal.setLength(0);
+            } else {
+                return new MessageTemplate(pattern, null);
+            }
+            i++;
+        }
+        literals.add(literal.toString());
+        return new MessageTemplate(pattern, literals.toArray(new String[literals.size()]));
+    }
+
+    /**
+     * Formats this template with the given arguments.
+     * 
+     * @param args
+     *            the arguments, one for each placeholder
+     * @return the formatted message
+     * @see String#format(String, Object...)
+     */
+    String format(Object... args) {
+        if (literals == null || args.length < literals.length - 1) {
+            // let String.format handle other conversions and report errors
+            return String.format(pattern, args);
+        }
+        String[] values = new String[literals.length - 1];
+        int length = literalLength;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = String.valueOf(args[i]);
+            length += values[i].length();
+        }
+
+        StringBuilder ret = new StringBuilder(length);
+        ret.append(literals[0]);
+        for (int i = 0; i < values.length; i++) {
+            ret.append(values[i]).append(literals[i + 1]);
+        }
+        return ret.toString();
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sk89q.commandbook.CommandBook;
+
+import de.minehattan.xmppchat.bot.AbstractChatBotListener;
+import de.minehattan.xmppchat.bot.ChatBot.ConnectionState;
+import de.minehattan.xmppchat.bot.ChatBot.UserStatus;
+import de.minehattan.xmppchat.bot.Priority;
+import de.minehattan.xmppchat.bot.QueuedChatBot;
+import de.minehattan.xmppchat.metrics.Metrics;
+import de.minehattan.xmppchat.metrics.Metrics.Counter;
+import de.minehattan.xmppchat.storage.Outbox;
+
+/**
+ * Stores messages that cannot be delivered right now in the {@link Outbox} and
+ * sends them once the bot is connected and, optionally, the recipient is
+ * online. All access to the outbox happens on a dedicated thread.
+ * 
+ * <p>
+ * Stored messages are handed to the bot in batches that fit into the free
+ * capacity of its bulk queue. The rest stays in the outbox until the batch has
+ * been send, instead of being rejected by the full queue.
+ * </p>
+ * 
+ * <p>
+ * A message that comes back as undelivered after it was send from the outbox
+ * is stored again with its attempts counted. Messages are discarded after
+ * {@value #MAX_ATTEMPTS} attempts or once they are older than
+ * {@value #EXPIRY_DAYS} days.
+ * </p>
+ */
+class OutboxRelay extends AbstractChatBotListener {
+
+    /**
+     * The interval in seconds in which the outbox is drained even without
+     * events, e.g. to retry messages that could not be queued.
+     */
+    private static final long DRAIN_INTERVAL = 30;
+
+    /**
+     * The maximum number of times a message is send from the outbox.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * The number of days after which stored messages are discarded.
+     */
+    private static final long EXPIRY_DAYS = 7;
+
+    /**
+     * The number of recently send messages that are remembered, so their
+     * attempts are known if they come back as undelivered.
+     */
+    private static final int MAX_REMEMBERED = 1024;
+
+    private final Outbox outbox;
+    private final QueuedChatBot chatBot;
+    private final ScheduledExecutorService executor = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("XMPPChat-Outbox-%d")
+                    .setDaemon(true).build());
+
+    /**
+     * The identifiers of messages that have been handed to the bot but are not
+     * send yet. Only accessed by the executor.
+     */
+    private final Set<Long> inFlight = new HashSet<Long>();
+
+    /**
+     * Whether the last drain left messages behind because the queue of the
+     * bot was full. Only accessed by the executor.
+     */
+    private boolean backlog;
+
+    /**
+     * The messages recently send from the outbox, keyed by their recipient
+     * and text. Only accessed by the executor.
+     */
+    private final Map<String, Outbox.Entry> sent = new LinkedHashMap<String, Outbox.Entry>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Outbox.Entry> eldest) {
+            return size() > MAX_REMEMBERED;
+        }
+    };
+
+    /**
+     * Whether messages are only send to recipients that are online.
+     */
+    private volatile boolean onlineOnly;
+
+    /**
+     * Constructs this relay and starts draining the outbox periodically.
+     * 
+     * @param outbox
+     *            the outbox
+     * @param chatBot
+     *            the bot used to send the messages
+     * @param onlineOnly
+     *            whether messages should only be send to recipients that are
+     *            online
+     */
+    OutboxRelay(Outbox outbox, QueuedChatBot chatBot, boolean onlineOnly) {
+        this.outbox = outbox;
+        this.chatBot = chatBot;
+        this.onlineOnly = onlineOnly;
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                drainNow(null);
+            }
+        }, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sets whether messages should only be send to recipients that are
+     * online.
+     * 
+     * @param onlineOnly
+     *            whether messages should only be send to online recipients
+     */
+    void setOnlineOnly(boolean onlineOnly) {
+        this.onlineOnly = onlineOnly;
+    }
+
+    /**
+     * Stores the given message in the outbox.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param msg
+     *            the message
+     */
+    void store(final String recipientId, final String msg) {
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    outbox.add(recipientId, msg);
+                } catch (IOException e) {
+                    CommandBook.logger().log(Level.SEVERE,
+                            "Failed to store a message to '" + recipientId + "' in the outbox, it is lost.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends all stored messages that can be send.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient whose messages should be send
+     *            or {@code null} to send messages to all recipients
+     */
+    void drain(@Nullable final String recipientId) {
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                drainNow(recipientId);
+            }
+        });
+    }
+
+    /**
+     * Hands the stored messages that can be send to the bot, as many as fit
+     * into its queue. Must be called by the executor.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient whose messages should be send
+     *            or {@code null} to send messages to all recipients
+     */
+    private void drainNow(@Nullable String recipientId) {
+        if (chatBot.getConnectionState() != ConnectionState.CONNECTED) {
+            return;
+        }
+        int capacity = chatBot.getRemainingCapacity(Priority.BULK);
+        long expired = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(EXPIRY_DAYS);
+        for (final Outbox.Entry entry : outbox.getPending(recipientId)) {
+            final long id = entry.getId();
+            if (inFlight.contains(id)) {
+                continue;
+            }
+            if (entry.getCreated() < expired) {
+                discardExpired(entry);
+                continue;
+            }
+            if (onlineOnly && chatBot.getUserStatus(entry.getRecipientId()) == UserStatus.OFFLINE) {
+                continue;
+            }
+            if (capacity == 0) {
+                // sent once the current batch is through
+                backlog = true;
+                return;
+            }
+
+            capacity--;
+            inFlight.add(id);
+            // delayed deliveries must not hold back messages written right now
+            Futures.addCallback(chatBot.sendMessageAsync(entry.getRecipientId(), entry.getMessage(), Priority.BULK),
+                    new FutureCallback<Void>() {
+
+                        @Override
+                        public void onSuccess(Void result) {
+                            inFlight.remove(id);
+                            sent.put(toKey(entry.getRecipientId(), entry.getMessage()), entry);
+                            try {
+                                outbox.remove(id);
+                            } catch (IOException e) {
+                                CommandBook.logger().log(Level.WARNING,
+                                        "Failed to remove a delivered message from the outbox.", e);
+                            }
+                            drainBacklog();
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            // keep the message for the next attempt
+                            inFlight.remove(id);
+                            drainBacklog();
+                        }
+                    }, executor);
+        }
+    }
+
+    /**
+     * Stores the given message again after it was send from the outbox but
+     * came back as undelivered, unless it ran out of attempts.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param msg
+     *            the message
+     */
+    private void storeAgain(final String recipientId, final String msg) {
+        execute(new Runnable() {
+
+            @Override
+            public void run() {
+                long created = System.currentTimeMillis();
+                int attempts = 0;
+                Outbox.Entry previous = sent.remove(toKey(recipientId, msg));
+                if (previous != null) {
+                    created = previous.getCreated();
+                    attempts = previous.getAttempts() + 1;
+                }
+                if (attempts >= MAX_ATTEMPTS) {
+                    Metrics.get().increment(Counter.DROPPED);
+                    CommandBook.logger().warning("Discarding the stored message to '" + recipientId + "' after "
+                            + attempts + " attempts.");
+                    return;
+                }
+                try {
+                    outbox.add(recipientId, msg, created, attempts);
+                } catch (IOException e) {
+                    CommandBook.logger().log(Level.SEVERE,
+                            "Failed to store a message to '" + recipientId + "' in the outbox, it is lost.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the given entry, which is too old to be send. Must be called by
+     * the executor.
+     * 
+     * @param entry
+     *            the entry
+     */
+    private void discardExpired(Outbox.Entry entry) {
+        Metrics.get().increment(Counter.DROPPED);
+        CommandBook.logger().warning("Discarding the stored message to '" + entry.getRecipientId()
+                + "' as it is older than " + EXPIRY_DAYS + " days.");
+        try {
+            outbox.remove(entry.getId());
+        } catch (IOException e) {
+            CommandBook.logger().log(Level.WARNING, "Failed to remove a message from the outbox.", e);
+        }
+    }
+
+    /**
+     * Gets the key of the given message in {@link #sent}.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param msg
+     *            the message
+     * @return the key
+     */
+    private static String toKey(String recipientId, String msg) {
+        return recipientId.toLowerCase(Locale.ENGLISH) + '\n' + msg;
+    }
+
+    /**
+     * Hands the next batch of messages to the bot once the previous batch is
+     * through, if the last drain left messages behind. Must be called by the
+     * executor.
+     */
+    private void drainBacklog() {
+        if (backlog && inFlight.isEmpty()) {
+            backlog = false;
+            drainNow(null);
+        }
+    }
+
+    /**
+     * Executes the given task on the executor unless the relay is closed.
+     * 
+     * @param task
+     *            the task
+     */
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            CommandBook.logger().warning("The outbox is already closed.");
+        }
+    }
+
+    @Override
+    public void connectionStateChanged(ConnectionState state) {
+        if (state == ConnectionState.CONNECTED) {
+            drain(null);
+        }
+    }
+
+    @Override
+    public void userStatusChanged(String userId, UserStatus status) {
+        if (status != UserStatus.OFFLINE) {
+            drain(userId);
+        }
+    }
+
+    @Override
+    public void messageUndelivered(String recipientId, String msg) {
+        storeAgain(recipientId, msg);
+    }
+
+    /**
+     * Finishes all pending writes and closes the outbox.
+     */
+    void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        outbox.close();
+    }
+}
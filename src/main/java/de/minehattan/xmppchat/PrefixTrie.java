@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * An immutable prefix trie over a set of keys, stored in a few flat arrays.
+ * 
+ * <p>
+ * The keys are sorted, so the keys below every node form a contiguous range
+ * of the sorted keys. Every node stores this range, which turns completing a
+ * prefix into returning a slice and deciding whether a prefix is unambiguous
+ * into comparing two integers. Finding the node of a prefix takes one binary
+ * search among the children of each node on the way, so lookups take time
+ * proportional to the length of the prefix, independent of the number of
+ * keys.
+ * </p>
+ */
+final class PrefixTrie {
+
+    private final String[] keys;
+
+    /**
+     * The first key below each node, as an index into {@link #keys}.
+     */
+    private final int[] rangeStart;
+
+    /**
+     * The index after the last key below each node.
+     */
+    private final int[] rangeEnd;
+
+    /**
+     * The children of node {@code n} are stored at the indices
+     * {@code firstChild[n]} to {@code firstChild[n + 1] - 1} of
+     * {@link #childChars} and {@link #childNodes}, sorted by character.
+     */
+    private final int[] firstChild;
+    private final char[] childChars;
+    private final int[] childNodes;
+
+    /**
+     * Builds a trie over the given keys.
+     * 
+     * @param keys
+     *            the keys, without duplicates
+     */
+    PrefixTrie(Collection<String> keys) {
+        this.keys = keys.toArray(new String[keys.size()]);
+        Arrays.sort(this.keys);
+
+        // there is at most one node per character and the root
+        int maxNodes = 1;
+        for (String key : this.keys) {
+            maxNodes += key.length();
+        }
+        int[] starts = new int[maxNodes];
+        int[] ends = new int[maxNodes];
+        int[] depths = new int[maxNodes];
+        int[] first = new int[maxNodes + 1];
+        char[] chars = new char[maxNodes];
+        int[] nodes = new int[maxNodes];
+
+        // the nodes are numbered breadth first, so the children of every node
+        // are allocated in one block
+        starts[0] = 0;
+        ends[0] = this.keys.length;
+        int nodeCount = 1;
+        int childCount = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            first[node] = childCount;
+            int depth = depths[node];
+            int i = starts[node];
+            if (i < ends[node] && this.keys[i].length() == depth) {
+                // the key that ends here sorts before all longer keys
+                i++;
+            }
+            while (i < ends[node]) {
+                char c = this.keys[i].charAt(depth);
+                int end = i + 1;
+                while (end < ends[node] && this.keys[end].charAt(depth) == c) {
+                    end++;
+                }
+                starts[nodeCount] = i;
+                ends[nodeCount] = end;
+                depths[nodeCount] = depth + 1;
+                chars[childCount] = c;
+                nodes[childCount] = nodeCount;
+                childCount++;
+                nodeCount++;
+                i = end;
+            }
+        }
+        first[nodeCount] = childCount;
+
+        rangeStart = Arrays.copyOf(starts, nodeCount);
+        rangeEnd = Arrays.copyOf(ends, nodeCount);
+        firstChild = Arrays.copyOf(first, nodeCount + 1);
+        childChars = Arrays.copyOf(chars, childCount);
+        childNodes = Arrays.copyOf(nodes, childCount);
+    }
+
+    /**
+     * Finds the node of the given prefix.
+     * 
+     * @param prefix
+     *            the prefix
+     * @return the node or -1 if no key starts with the prefix
+     */
+    private int find(String prefix) {
+        int node = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            int from = firstChild[node];
+            int to = firstChild[node + 1];
+            int child = Arrays.binarySearch(childChars, from, to, prefix.charAt(i));
+            if (child < 0) {
+                return -1;
+            }
+            node = childNodes[child];
+        }
+        return node;
+    }
+
+    /**
+     * Gets the keys that start with the given prefix, in lexicographical
+     * order.
+     * 
+     * @param prefix
+     *            the prefix
+     * @param limit
+     *            the maximum number of keys returned
+     * @return the keys
+     */
+    List<String> complete(String prefix, int limit) {
+        int node = find(prefix);
+        if (node < 0) {
+            return Collections.emptyList();
+        }
+        int end = Math.min(rangeEnd[node], rangeStart[node] + limit);
+        return Collections.unmodifiableList(Arrays.asList(keys).subList(rangeStart[node], end));
+    }
+
+    /**
+     * Resolves the given prefix to a key. A key that equals the prefix is
+     * preferred, otherwise the prefix must be the start of exactly one key.
+     * 
+     * @param prefix
+     *            the prefix
+     * @return the key or {@code null} if no key or several keys start with
+     *         the prefix
+     */
+    @Nullable
+    String resolve(String prefix) {
+        int node = find(prefix);
+        if (node < 0 || rangeStart[node] == rangeEnd[node]) {
+            // the root of an empty trie has no keys
+            return null;
+        }
+        String candidate = keys[rangeStart[node]];
+        if (candidate.length() == prefix.length() || rangeEnd[node] - rangeStart[node] == 1) {
+            return candidate;
+        }
+        return null;
+    }
+}
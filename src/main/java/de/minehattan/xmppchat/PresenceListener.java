@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.util.Set;
+
+import de.minehattan.xmppchat.bot.ChatBot.UserStatus;
+
+/**
+ * Receives the status changes of the contacts of XMPPChat.
+ * 
+ * @see XMPPChatService#subscribe(PresenceListener)
+ */
+public interface PresenceListener {
+
+    /**
+     * Called on the main thread when the status of a contact changes.
+     * 
+     * @param userId
+     *            the identifier of the contact
+     * @param aliases
+     *            the aliases of the contact
+     * @param status
+     *            the new status
+     */
+    void presenceChanged(String userId, Set<String> aliases, UserStatus status);
+}
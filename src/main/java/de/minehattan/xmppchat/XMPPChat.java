@@ -18,27 +18,48 @@
  */
 package de.minehattan.xmppchat;
 
+import java.io.File;
+import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
 import javax.annotation.Nullable;
+import javax.management.JMException;
 import javax.net.ssl.SSLContext;
 
 import org.apache.commons.lang.StringUtils;
-import org.apache.commons.lang.text.StrBuilder;
 import org.bukkit.ChatColor;
 import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabCompleter;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerCommandPreprocessEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerKickEvent;
+import org.bukkit.plugin.ServicePriority;
+import org.bukkit.scheduler.BukkitTask;
 
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.sk89q.commandbook.CommandBook;
 import com.sk89q.commandbook.commands.PaginatedResult;
 import com.sk89q.commandbook.util.ChatUtil;
@@ -56,8 +77,20 @@ import com.zachsthings.libcomponents.config.Setting;
 import com.zachsthings.libcomponents.config.SettingBase;
 
 import de.minehattan.xmppchat.bot.BotException;
-import de.minehattan.xmppchat.bot.ChatBot;
+import de.minehattan.xmppchat.bot.OverloadException;
+import de.minehattan.xmppchat.bot.PartialDeliveryException;
+import de.minehattan.xmppchat.bot.PooledChatBot;
+import de.minehattan.xmppchat.bot.Priority;
+import de.minehattan.xmppchat.bot.QueuedChatBot;
+import de.minehattan.xmppchat.bot.TokenBucket;
+import de.minehattan.xmppchat.bot.TokenBuckets;
 import de.minehattan.xmppchat.bot.XMPPBot;
+import de.minehattan.xmppchat.metrics.Histogram;
+import de.minehattan.xmppchat.metrics.Metrics;
+import de.minehattan.xmppchat.metrics.Metrics.Latency;
+import de.minehattan.xmppchat.storage.ContactStore;
+import de.minehattan.xmppchat.storage.Outbox;
+import de.minehattan.xmppchat.bot.ChatBot.ConnectionState;
 import de.minehattan.xmppchat.bot.ChatBot.UserStatus;
 import eu.geekplace.javapinning.JavaPinning;
 
@@ -68,9 +101,43 @@ import eu.geekplace.javapinning.JavaPinning;
 public class XMPPChat extends BukkitComponent implements Listener {
 
     /**
-     * Stores all aliases with their message-id.
+     * The maximum number of aliases suggested if an alias is ambiguous.
      */
-    private Multimap<String, String> aliases = HashMultimap.create();
+    private static final int MAX_CANDIDATES = 5;
+
+    /**
+     * The maximum number of completions offered at once.
+     */
+    private static final int MAX_COMPLETIONS = 50;
+
+    /**
+     * The sub-commands that take an alias as first argument.
+     */
+    private static final Set<String> MESSAGE_COMMANDS = new HashSet<String>(Arrays.asList("msg", "tell", "message"));
+
+    /**
+     * The sub-commands that take the identifier of a user as first argument.
+     */
+    private static final Set<String> REMOVE_COMMANDS = new HashSet<String>(Arrays.asList("delete", "remove", "rm"));
+
+    /**
+     * The types of alerts that can be mapped to aliases in the configuration.
+     */
+    private static final String ALERT_JOIN = "join";
+    private static final String ALERT_KICK = "kick";
+    private static final String ALERT_HELP = "help";
+    private static final String ALERT_LAG = "lag";
+
+    /**
+     * The interval in ticks in which the ticks per second are measured.
+     */
+    private static final long LAG_INTERVAL = 20;
+
+    /**
+     * Stores all aliases with their message-id. Replaced as a whole whenever
+     * the contacts change, so it can be read from any thread.
+     */
+    private volatile AliasIndex aliases = AliasIndex.EMPTY;
 
     /**
      * The configuration.
@@ -80,12 +147,90 @@ public class XMPPChat extends BukkitComponent implements Listener {
     /**
      * The used chatBot.
      */
-    private ChatBot chatBot;
+    private QueuedChatBot chatBot;
+
+    /**
+     * Stores the contacts.
+     */
+    private ContactStore contactStore;
+
+    /**
+     * The sorted and rendered contacts shown by the list command.
+     */
+    private ContactList contactList;
+
+    /**
+     * Stores messages that cannot be delivered right now, {@code null} if the
+     * outbox is disabled.
+     */
+    @Nullable
+    private OutboxRelay outboxRelay;
+
+    /**
+     * Relays incoming messages to the players, {@code null} if disabled.
+     */
+    @Nullable
+    private InboundRelay inboundRelay;
+
+    /**
+     * Limits the number of messages every sender may send, {@code null} if
+     * unlimited.
+     */
+    @Nullable
+    private volatile TokenBuckets senderLimit;
+
+    /**
+     * Completes the aliases and users of the commands, {@code null} if tab
+     * completion is not available.
+     */
+    @Nullable
+    private CompletionHook completionHook;
+
+    /**
+     * Offers messaging to other plugins, {@code null} if not registered.
+     */
+    @Nullable
+    private ChatServiceProvider serviceProvider;
+
+    /**
+     * Aggregates server events into alerts, {@code null} if no alert rules are
+     * configured.
+     */
+    @Nullable
+    private AlertAggregator alerts;
+
+    /**
+     * Measures the ticks per second, {@code null} if lag is not alerted.
+     */
+    @Nullable
+    private BukkitTask lagMonitor;
+
+    /**
+     * Executes callbacks on the main thread of the server.
+     */
+    private final Executor mainThread = new MainThreadExecutor();
+
+    /**
+     * Incremented whenever a new connection is started, so that connections
+     * that are superseded before they are established can be discarded.
+     */
+    private final AtomicInteger connectGeneration = new AtomicInteger();
 
     @Override
     public void enable() {
         config = configure(new LocalConfiguration());
         registerCommands(TopCommands.class);
+        completionHook = CompletionHook.install("xmpp", new ContactCompleter());
+
+        try {
+            contactStore = ContactStore.open(new File(getDataDirectory(), "contacts"));
+        } catch (IOException e) {
+            // keep the files untouched so they can be repaired
+            CommandBook.logger().log(Level.SEVERE, "Failed to load the contacts, only the contacts in the "
+                    + "configuration are used and changes are not saved.", e);
+            contactStore = ContactStore.inMemory();
+        }
+        importContacts();
 
         SSLContext context = getContext();
         if (context == null) {
@@ -93,47 +238,383 @@ public class XMPPChat extends BukkitComponent implements Listener {
             return;
         }
 
+        PooledChatBot bot = createBot(context);
+        chatBot = new QueuedChatBot(bot, config.outboundQueueSize);
+        contactList = new ContactList(chatBot);
+        chatBot.addListener(contactList);
+        chatBot.setCoalescing(config.coalesceWindow, config.coalesceMaxDelay, config.coalesceMaxLength);
+        applyRateLimits();
+        if (config.useOutbox) {
+            openOutbox();
+        }
+        reloadAliases();
+        configureInboundRelay();
+        registerService();
+        configureAlerts();
+        CommandBook.registerEvents(this);
+        if (config.jmx) {
+            try {
+                Metrics.get().registerMBean();
+            } catch (JMException e) {
+                CommandBook.logger().log(Level.WARNING, "Failed to register the XMPP metrics with JMX.", e);
+            }
+        }
+        connect(bot);
+    }
+
+    /**
+     * Opens the outbox and starts relaying stored messages through the bot.
+     */
+    private void openOutbox() {
+        File directory = new File(getDataDirectory(), "outbox");
         try {
-            chatBot = new XMPPBot(config.xmppServer, context, config.xmppUsername, config.xmppPassword,
-                    config.xmppResource, config.messages.botResponse, config.xmppStatus);
-        } catch (BotException e) {
-            CommandBook.logger().log(Level.SEVERE, "Failed to connect to the XMPP server, disabling the component.", e);
-            disable();
+            outboxRelay = new OutboxRelay(Outbox.open(directory), chatBot, !config.notifyOffline);
+        } catch (IOException e) {
+            CommandBook.logger().log(Level.SEVERE,
+                    "Failed to open the outbox, messages that cannot be delivered are discarded.", e);
             return;
         }
+        chatBot.addListener(outboxRelay);
+    }
+
+    /**
+     * Registers the {@link XMPPChatService} so other plugins can send messages
+     * through the bot.
+     */
+    private void registerService() {
+        serviceProvider = new ChatServiceProvider(new Supplier<AliasIndex>() {
 
-        reloadContacts();
+            @Override
+            public AliasIndex get() {
+                return aliases;
+            }
+        }, chatBot, outboxRelay, mainThread);
+        chatBot.addListener(serviceProvider);
+        CommandBook.server().getServicesManager()
+                .register(XMPPChatService.class, serviceProvider, CommandBook.inst(), ServicePriority.Normal);
     }
 
     @Override
     public void disable() {
+        // abandon pending connection attempts
+        connectGeneration.incrementAndGet();
+        HandlerList.unregisterAll(this);
+        if (lagMonitor != null) {
+            lagMonitor.cancel();
+            lagMonitor = null;
+        }
+        if (alerts != null) {
+            alerts.close();
+            alerts = null;
+        }
+        if (serviceProvider != null) {
+            CommandBook.server().getServicesManager().unregister(XMPPChatService.class, serviceProvider);
+            chatBot.removeListener(serviceProvider);
+            serviceProvider = null;
+        }
+        if (completionHook != null) {
+            completionHook.uninstall();
+            completionHook = null;
+        }
         if (chatBot != null) {
             chatBot.closeConnection();
         }
+        if (outboxRelay != null) {
+            outboxRelay.close();
+            outboxRelay = null;
+        }
+        if (inboundRelay != null) {
+            inboundRelay.close();
+            inboundRelay = null;
+        }
+        if (contactStore != null) {
+            contactStore.close();
+            contactStore = null;
+        }
+        try {
+            Metrics.get().unregisterMBean();
+        } catch (JMException e) {
+            CommandBook.logger().log(Level.WARNING, "Failed to unregister the XMPP metrics from JMX.", e);
+        }
+    }
+
+    /**
+     * Starts, stops or updates the aggregation of alerts according to the
+     * configured rules.
+     */
+    private void configureAlerts() {
+        boolean lag = config.alertRules.containsKey(ALERT_LAG);
+        if (!lag && lagMonitor != null) {
+            lagMonitor.cancel();
+            lagMonitor = null;
+        }
+        if (config.alertRules.isEmpty()) {
+            if (alerts != null) {
+                alerts.close();
+                alerts = null;
+            }
+            return;
+        }
+        if (alerts == null) {
+            alerts = new AlertAggregator(new AlertSender(), config.alertWindow);
+        } else {
+            alerts.setWindow(config.alertWindow);
+        }
+        if (lag && lagMonitor == null) {
+            lagMonitor = CommandBook.server().getScheduler()
+                    .runTaskTimer(CommandBook.inst(), new LagMonitor(), LAG_INTERVAL, LAG_INTERVAL);
+        }
+    }
+
+    /**
+     * Returns whether alerts of the given type are mapped to any alias.
+     * 
+     * @param type
+     *            the type of the alerts
+     * @return whether the alerts are send
+     */
+    private boolean isAlerted(String type) {
+        return alerts != null && config.alertRules.containsKey(type);
+    }
+
+    /**
+     * Alerts the join of a player.
+     * 
+     * @param event
+     *            the event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        if (isAlerted(ALERT_JOIN)) {
+            alerts.record(ALERT_JOIN, config.messages.alertJoinTemplate.format(event.getPlayer().getName()));
+        }
+    }
+
+    /**
+     * Alerts the kick of a player.
+     * 
+     * @param event
+     *            the event
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerKick(PlayerKickEvent event) {
+        if (isAlerted(ALERT_KICK)) {
+            alerts.record(ALERT_KICK,
+                    config.messages.alertKickTemplate.format(event.getPlayer().getName(), event.getReason()));
+        }
+    }
+
+    /**
+     * Alerts requests for help, i.e. the commands configured as help
+     * commands.
+     * 
+     * @param event
+     *            the event
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPlayerCommand(PlayerCommandPreprocessEvent event) {
+        if (!isAlerted(ALERT_HELP)) {
+            return;
+        }
+        // the message includes the leading slash
+        String[] split = event.getMessage().substring(1).split(" ", 2);
+        if (!config.alertHelpCommands.contains(split[0].toLowerCase(Locale.ENGLISH))) {
+            return;
+        }
+        String request = split.length > 1 ? split[1].trim() : "";
+        alerts.record(ALERT_HELP, config.messages.alertHelpTemplate.format(event.getPlayer().getName(), request));
+    }
+
+    /**
+     * Starts, stops or updates the relay of incoming messages according to
+     * the configuration.
+     */
+    private void configureInboundRelay() {
+        if (!config.relayInbound) {
+            if (inboundRelay != null) {
+                chatBot.removeListener(inboundRelay);
+                inboundRelay.close();
+                inboundRelay = null;
+            }
+        } else if (inboundRelay == null) {
+            inboundRelay = new InboundRelay(new Supplier<AliasIndex>() {
+
+                @Override
+                public AliasIndex get() {
+                    return aliases;
+                }
+            }, config.messages.receivedFromTemplate);
+            chatBot.addListener(inboundRelay);
+        } else {
+            inboundRelay.setFormat(config.messages.receivedFromTemplate);
+        }
+    }
+
+    /**
+     * Applies the rate limits from the configuration. A limit is disabled if
+     * its capacity or rate is not positive.
+     */
+    private void applyRateLimits() {
+        senderLimit = createLimits(config.senderLimitCapacity, config.senderLimitPerMinute);
+        TokenBucket global = null;
+        if (config.globalLimitCapacity > 0 && config.globalLimitPerMinute > 0) {
+            global = new TokenBucket(config.globalLimitCapacity, config.globalLimitPerMinute);
+        }
+        chatBot.setRateLimits(global, createLimits(config.recipientLimitCapacity, config.recipientLimitPerMinute));
+    }
+
+    /**
+     * Creates token buckets with the given limits.
+     * 
+     * @param capacity
+     *            the maximum number of tokens per key
+     * @param perMinute
+     *            the number of tokens that are refilled every minute per key
+     * @return the buckets or {@code null} if the limits are not positive
+     */
+    @Nullable
+    private static TokenBuckets createLimits(int capacity, int perMinute) {
+        if (capacity <= 0 || perMinute <= 0) {
+            return null;
+        }
+        return new TokenBuckets(capacity, perMinute);
+    }
+
+    /**
+     * Gets the directory the component stores its data in.
+     * 
+     * @return the directory
+     */
+    private File getDataDirectory() {
+        return new File(CommandBook.inst().getDataFolder(), "xmppchat");
+    }
+
+    /**
+     * Moves the contacts from the configuration into the contact store.
+     * Existing contacts with the same identifier are replaced. If the store
+     * is not persistent, the contacts are copied instead.
+     */
+    private void importContacts() {
+        if (config.rawContacts.isEmpty()) {
+            return;
+        }
+        for (Entry<String, List<String>> entry : config.rawContacts.entrySet()) {
+            contactStore.put(entry.getKey(), entry.getValue());
+        }
+        if (!contactStore.isPersistent()) {
+            // the configuration is the only copy of these contacts
+            return;
+        }
+        CommandBook.logger().info(
+                "Moved " + config.rawContacts.size() + " contacts from the configuration to the contact store.");
+
+        config.rawContacts.clear();
+        saveConfig(config);
     }
 
     @Override
     public void reload() {
         super.reload();
         configure(config);
+        importContacts();
+        reloadAliases();
+        if (outboxRelay != null) {
+            outboxRelay.setOnlineOnly(!config.notifyOffline);
+        }
+        chatBot.setCoalescing(config.coalesceWindow, config.coalesceMaxDelay, config.coalesceMaxLength);
+        applyRateLimits();
+        configureInboundRelay();
+        configureAlerts();
 
-        chatBot.closeConnection();
-
+        // the current connection is used until the new one is established
         SSLContext context = getContext();
         if (context == null) {
-            disable();
             return;
         }
+        connect(createBot(context));
+    }
 
-        try {
-            chatBot = new XMPPBot(config.xmppServer, context, config.xmppUsername, config.xmppPassword,
-                    config.xmppResource, config.messages.botResponse, config.xmppStatus);
-        } catch (BotException e) {
-            CommandBook.logger().log(Level.SEVERE, "Failed to connect to the XMPP server, disabling the component.", e);
-            disable();
+    /**
+     * Creates a new, unconnected bot from the configuration that uses the
+     * main account and all additional accounts.
+     * 
+     * @param context
+     *            the SSLContext used by the bot
+     * @return the new bot
+     */
+    private PooledChatBot createBot(SSLContext context) {
+        List<XMPPBot> bots = new ArrayList<XMPPBot>();
+        bots.add(createBot(context, config.xmppUsername, config.xmppPassword));
+        for (Entry<String, String> account : config.xmppAdditionalAccounts.entrySet()) {
+            bots.add(createBot(context, account.getKey(), account.getValue()));
         }
+        return new PooledChatBot(bots);
+    }
 
-        reloadContacts();
+    /**
+     * Creates a new, unconnected bot for the given account.
+     * 
+     * @param context
+     *            the SSLContext used by the bot
+     * @param username
+     *            the username of the account
+     * @param password
+     *            the password of the account
+     * @return the new bot
+     */
+    private XMPPBot createBot(SSLContext context, String username, String password) {
+        File rosterDirectory = null;
+        if (config.cacheBuddyList) {
+            rosterDirectory = new File(getDataDirectory(), "roster" + File.separator + username + "@"
+                    + config.xmppServer);
+        }
+        XMPPBot bot = new XMPPBot(config.xmppServer, context, username, password, config.xmppResource,
+                config.messages.botResponse, config.xmppStatus, rosterDirectory);
+        if (config.receiptTimeout > 0) {
+            bot.enableReceipts(TimeUnit.SECONDS.toMillis(config.receiptTimeout));
+        }
+        return bot;
+    }
+
+    /**
+     * Connects the given bot in the background. Once connected, the bot
+     * replaces the one currently used and the previous bot is closed. If
+     * another bot is connected in the meantime, the given bot is discarded.
+     * 
+     * @param bot
+     *            the bot to connect
+     */
+    private void connect(final PooledChatBot bot) {
+        final int generation = connectGeneration.incrementAndGet();
+        final QueuedChatBot target = chatBot;
+
+        CommandBook.server().getScheduler().runTaskAsynchronously(CommandBook.inst(), new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    bot.connect();
+                } catch (BotException e) {
+                    CommandBook.logger().log(Level.SEVERE, "Failed to connect to the XMPP server.", e);
+                    bot.closeConnection();
+                    return;
+                }
+
+                if (generation != connectGeneration.get()) {
+                    // superseded by a newer connection or disabled
+                    bot.closeConnection();
+                    return;
+                }
+                target.handover(bot);
+                mainThread.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        updateBuddyList();
+                    }
+                });
+            }
+        });
     }
 
     /**
@@ -173,21 +654,37 @@ public class XMPPChat extends BukkitComponent implements Listener {
     }
 
     /**
-     * Reloads the contacts from disk and updates the buddy list of the bot.
+     * Rebuilds the aliases from the contacts.
      */
-    private void reloadContacts() {
-        aliases.clear();
+    private void reloadAliases() {
+        aliases = AliasIndex.of(contactStore.getContacts());
+        contactList.setContacts(contactStore.getContacts());
+    }
 
-        for (Entry<String, List<String>> entry : config.rawContacts.entrySet()) {
-            for (String alias : entry.getValue()) {
-                aliases.put(alias, entry.getKey());
-            }
-        }
-        try {
-            chatBot.updateBuddyList(config.rawContacts.keySet(), config.manageBuddyList);
-        } catch (BotException e) {
-            CommandBook.logger().log(Level.WARNING, "Failed to update buddy list.", e);
+    /**
+     * Updates the buddy list of the bot in the background. Does nothing if the
+     * bot is not connected, as connecting bots update the buddy list once
+     * they are connected.
+     */
+    private void updateBuddyList() {
+        if (chatBot.getConnectionState() != ConnectionState.CONNECTED) {
+            return;
         }
+        final Set<String> userIds = aliases.getUserIds();
+        final boolean removeNotIncluded = config.manageBuddyList;
+        final QueuedChatBot bot = chatBot;
+
+        CommandBook.server().getScheduler().runTaskAsynchronously(CommandBook.inst(), new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    bot.updateBuddyList(userIds, removeNotIncluded);
+                } catch (BotException e) {
+                    CommandBook.logger().log(Level.WARNING, "Failed to update buddy list.", e);
+                }
+            }
+        });
     }
 
     /**
@@ -196,12 +693,87 @@ public class XMPPChat extends BukkitComponent implements Listener {
     public static class LocalConfiguration extends ConfigurationBase {
         private Messages messages;
 
+        /**
+         * Contacts that are moved into the contact store when the
+         * configuration is loaded.
+         */
         @Setting("contacts")
         private Map<String, List<String>> rawContacts = createDefaultContacts();
+        /**
+         * Aliases that are mapped to group chat rooms.
+         */
+        @Setting("rooms")
+        private Map<String, String> rooms = new HashMap<String, String>();
         @Setting("settings.notifyOffline")
         private boolean notifyOffline = true;
         @Setting("settings.manageBuddyList")
         private boolean manageBuddyList;
+        @Setting("settings.outboundQueueSize")
+        private int outboundQueueSize = 256;
+        /**
+         * The time in milliseconds messages to the same recipient are merged
+         * within, zero to disable merging.
+         */
+        @Setting("settings.coalesce.window")
+        private long coalesceWindow;
+        @Setting("settings.coalesce.maxDelay")
+        private long coalesceMaxDelay = 1000;
+        @Setting("settings.coalesce.maxLength")
+        private int coalesceMaxLength = 2000;
+        /**
+         * The maximum number of messages a sender, a recipient or all senders
+         * together may send in a burst and the number of messages that may be
+         * send per minute afterwards. Zero disables the limit.
+         */
+        @Setting("settings.rateLimit.sender.capacity")
+        private int senderLimitCapacity = 5;
+        @Setting("settings.rateLimit.sender.perMinute")
+        private int senderLimitPerMinute = 20;
+        @Setting("settings.rateLimit.recipient.capacity")
+        private int recipientLimitCapacity = 10;
+        @Setting("settings.rateLimit.recipient.perMinute")
+        private int recipientLimitPerMinute = 30;
+        @Setting("settings.rateLimit.global.capacity")
+        private int globalLimitCapacity = 50;
+        @Setting("settings.rateLimit.global.perMinute")
+        private int globalLimitPerMinute = 300;
+        /**
+         * The time in seconds to wait for delivery receipts before a message
+         * is send again, zero to disable receipts.
+         */
+        @Setting("settings.receiptTimeout")
+        private int receiptTimeout;
+        @Setting("settings.jmx")
+        private boolean jmx;
+        /**
+         * Whether messages of contacts are broadcast to the players. Disabled
+         * by default so existing installations do not start broadcasting
+         * after an upgrade.
+         */
+        @Setting("settings.relayInbound")
+        private boolean relayInbound;
+        @Setting("settings.outbox")
+        private boolean useOutbox = true;
+        @Setting("settings.cacheBuddyList")
+        private boolean cacheBuddyList = true;
+        /**
+         * The types of alerts (join, kick, help, lag) mapped to the aliases
+         * that receive them. Alerts are collected for the given number of
+         * seconds and send as a single digest.
+         */
+        @Setting("alerts.rules")
+        private Map<String, List<String>> alertRules = new HashMap<String, List<String>>();
+        @Setting("alerts.window")
+        private int alertWindow = 10;
+        @Setting("alerts.maxLines")
+        private int alertMaxLines = 5;
+        @Setting("alerts.helpCommands")
+        private List<String> alertHelpCommands = Arrays.asList("helpop", "modreq");
+        /**
+         * The ticks per second below which the server is considered lagging.
+         */
+        @Setting("alerts.lagThreshold")
+        private int alertLagThreshold = 15;
         @Setting("xmpp.server")
         private String xmppServer = "localhost";
         @Setting("xmpp.ssl.use-self-signed")
@@ -212,6 +784,12 @@ public class XMPPChat extends BukkitComponent implements Listener {
         private String xmppUsername = "username";
         @Setting("xmpp.password")
         private String xmppPassword = "password";
+        /**
+         * Further accounts, mapped to their passwords, that share the
+         * recipients with the main account.
+         */
+        @Setting("xmpp.additional-accounts")
+        private Map<String, String> xmppAdditionalAccounts = new HashMap<String, String>();
         @Setting("xmpp.resource")
         private String xmppResource = "XMPPChat";
         @Setting("xmpp.status")
@@ -230,18 +808,81 @@ public class XMPPChat extends BukkitComponent implements Listener {
             private String removedUser = "Kontakt entfernt: ";
             @Setting("offlineUser")
             private String offlineUser = "%s ist nicht online.";
+            @Setting("queuedOffline")
+            private String queuedOffline = "%s ist nicht online, die Nachricht wird später zugestellt.";
+            @Setting("queuedOutage")
+            private String queuedOutage = "Keine Verbindung zum XMPP-Server, die Nachricht wird später zugestellt.";
             @Setting("sendFailed")
             private String sendFailed = "Das Senden der Nachricht ist fehlgeschlagen.";
             @Setting("sendFrom")
             private String sendFrom = "%s hat dir eine Nachricht gesendet: ";
+            @Setting("receivedFrom")
+            private String receivedFrom = "[XMPP] %s: ";
             @Setting("sendTo")
             private String sendTo = "(An %s) ";
+            @Setting("rateLimited")
+            private String rateLimited = "Du sendest zu viele Nachrichten, bitte warte einen Moment.";
+            @Setting("overloaded")
+            private String overloaded = "Es werden gerade zu viele Nachrichten gesendet, bitte versuche es später erneut.";
+            @Setting("connecting")
+            private String connecting = "Die Verbindung zum XMPP-Server wird gerade hergestellt.";
+            @Setting("notConnected")
+            private String notConnected = "Es besteht keine Verbindung zum XMPP-Server.";
+            @Setting("ambiguousUser")
+            private String ambiguousUser = "'%s' ist nicht eindeutig, meintest du: %s?";
             @Setting("unknownUser")
             private String unknownUser = "Dieser Benutzer existiert nicht. Nutze '/xmpp list' um alle Nutzer anzuzeigen.";
             @Setting("botResponse")
             private String botResponse = "I cannot do anything. I'm a bot, remember? It's not like I could become crazy and kill eyerbody. Not that I wouldn't like to...";
             @Setting("botStatus")
             private String botStatus = "Ich bin hier.";
+            @Setting("alertDigest")
+            private String alertDigest = "%s Meldungen (%s) in den letzten %ss:";
+            @Setting("alertRepeated")
+            private String alertRepeated = "%s (%sx)";
+            @Setting("alertMore")
+            private String alertMore = "... und %s weitere";
+            @Setting("alertJoin")
+            private String alertJoin = "%s hat den Server betreten.";
+            @Setting("alertKick")
+            private String alertKick = "%s wurde gekickt: %s";
+            @Setting("alertHelp")
+            private String alertHelp = "%s bittet um Hilfe: %s";
+            @Setting("alertLag")
+            private String alertLag = "Der Server schafft nur %s Ticks pro Sekunde.";
+
+            private MessageTemplate ambiguousUserTemplate;
+            private MessageTemplate offlineUserTemplate;
+            private MessageTemplate queuedOfflineTemplate;
+            private MessageTemplate sendFromTemplate;
+            private MessageTemplate receivedFromTemplate;
+            private MessageTemplate sendToTemplate;
+            private MessageTemplate alertDigestTemplate;
+            private MessageTemplate alertRepeatedTemplate;
+            private MessageTemplate alertMoreTemplate;
+            private MessageTemplate alertJoinTemplate;
+            private MessageTemplate alertKickTemplate;
+            private MessageTemplate alertHelpTemplate;
+            private MessageTemplate alertLagTemplate;
+
+            @Override
+            public void load(ConfigurationNode node) {
+                super.load(node);
+                // parse the templates once instead of on every message
+                ambiguousUserTemplate = MessageTemplate.compile(ambiguousUser);
+                offlineUserTemplate = MessageTemplate.compile(offlineUser);
+                queuedOfflineTemplate = MessageTemplate.compile(queuedOffline);
+                sendFromTemplate = MessageTemplate.compile(sendFrom);
+                receivedFromTemplate = MessageTemplate.compile(receivedFrom);
+                sendToTemplate = MessageTemplate.compile(sendTo);
+                alertDigestTemplate = MessageTemplate.compile(alertDigest);
+                alertRepeatedTemplate = MessageTemplate.compile(alertRepeated);
+                alertMoreTemplate = MessageTemplate.compile(alertMore);
+                alertJoinTemplate = MessageTemplate.compile(alertJoin);
+                alertKickTemplate = MessageTemplate.compile(alertKick);
+                alertHelpTemplate = MessageTemplate.compile(alertHelp);
+                alertLagTemplate = MessageTemplate.compile(alertLag);
+            }
         }
 
         @Override
@@ -299,18 +940,16 @@ public class XMPPChat extends BukkitComponent implements Listener {
         @Command(aliases = { "add" }, usage = "<user@server.org> <alias> [alias2] [alias3]...", desc = "Adds a user to the contact list", min = 2)
         @CommandPermissions({ "xmpp.add" })
         public void addUser(CommandContext args, CommandSender sender) throws CommandException {
-            if (config.rawContacts.containsKey(args.getString(0))) {
+            if (contactStore.find(args.getString(0)) != null) {
                 throw new CommandException(config.messages.existingUser);
             }
             List<String> aliase = Arrays.asList(args.getParsedSlice(2));
             String userId = args.getString(0);
 
-            NestUtil.getNestedList(config.rawContacts, userId).addAll(aliase);
-            saveConfig(config);
-            for (String alias : aliase) {
-                aliases.put(alias, userId);
-            }
-            reloadContacts();
+            contactStore.put(userId, aliase);
+            aliases = aliases.withUser(userId, aliase);
+            contactList.put(userId, aliase);
+            updateBuddyList();
 
             sender.sendMessage(ChatColor.GOLD + config.messages.addedUser + ChatColor.DARK_GRAY + "'"
                     + args.getString(0) + "' (" + ChatColor.ITALIC + StringUtils.join(aliase, ", ") + ChatColor.RESET
@@ -330,16 +969,19 @@ public class XMPPChat extends BukkitComponent implements Listener {
         @Command(aliases = { "delete", "remove", "rm" }, usage = "<user@server.org>", desc = "Removes an existing user from the contact list", min = 1, max = 1)
         @CommandPermissions({ "xmpp.remove" })
         public void deleteUser(CommandContext args, CommandSender sender) throws CommandException {
-            if (!config.rawContacts.containsKey(args.getString(0))) {
+            // the completion suggests the normalized identifiers
+            String userId = contactStore.find(args.getString(0));
+            if (userId == null) {
                 throw new CommandException(config.messages.unknownUser);
             }
 
-            config.rawContacts.remove(args.getString(0));
-            saveConfig(config);
-            reloadContacts();
+            contactStore.remove(userId);
+            aliases = aliases.withoutUser(userId);
+            contactList.remove(userId);
+            updateBuddyList();
 
-            sender.sendMessage(ChatColor.GOLD + config.messages.removedUser + ChatColor.DARK_GRAY + "'"
-                    + args.getString(0) + "'");
+            sender.sendMessage(ChatColor.GOLD + config.messages.removedUser + ChatColor.DARK_GRAY + "'" + userId
+                    + "'");
         }
 
         /**
@@ -352,37 +994,59 @@ public class XMPPChat extends BukkitComponent implements Listener {
          * @throws CommandException
          *             if the command is cancelled
          */
-        @Command(aliases = { "list", "users" }, usage = "[#]", desc = "Lists all users that can be messaged via XMPP", max = 1)
+        @Command(aliases = { "list", "users" }, usage = "[-o] [-f alias] [#]", desc = "Lists all users that can be messaged via XMPP", flags = "of:", max = 1)
         @CommandPermissions("xmpp.list")
         public void listUsers(CommandContext args, CommandSender sender) throws CommandException {
-            PaginatedResult<Entry<String, List<String>>> xmppUsers = new PaginatedResult<Entry<String, List<String>>>(
-                    "XMPP-Users") {
+            if (chatBot.getConnectionState() == ConnectionState.CONNECTING) {
+                sender.sendMessage(ChatColor.GRAY + config.messages.connecting);
+            }
+            PaginatedResult<String> xmppUsers = new PaginatedResult<String>("XMPP-Users") {
 
                 @Override
-                public String format(Entry<String, List<String>> entry) {
-                    String user = entry.getKey();
-
-                    StrBuilder ret = new StrBuilder();
-                    ret.append(chatBot.getUserStatus(user).getRepresentation());
-                    ret.append(user);
-                    ret.append(ChatColor.GRAY);
-                    ret.append(": ");
-                    ret.append(ChatColor.ITALIC);
-                    ret.appendWithSeparators(entry.getValue(), ", ");
-                    return ret.toString();
+                public String format(String row) {
+                    // the rows are rendered by the contact list
+                    return row;
                 }
-
             };
 
             try {
-                xmppUsers.display(sender, config.rawContacts.entrySet(), args.getInteger(0, 1));
+                xmppUsers.display(sender, contactList.view(args.hasFlag('o'), args.getFlag('f', null)),
+                        args.getInteger(0, 1));
             } catch (NumberFormatException e) {
                 throw new CommandException("Enter a valid number!");
             }
         }
 
         /**
-         * Sends a message to a contact.
+         * Shows the counters and latencies of the message path.
+         * 
+         * @param args
+         *            the command-arguments
+         * @param sender
+         *            the CommandSender who initiated the command
+         */
+        @Command(aliases = { "stats" }, desc = "Shows statistics about the XMPP messages", max = 0)
+        @CommandPermissions("xmpp.stats")
+        public void showStats(CommandContext args, CommandSender sender) {
+            Metrics metrics = Metrics.get();
+            sender.sendMessage(ChatColor.YELLOW + "XMPP-Statistics (" + chatBot.getConnectionState() + ")");
+            sender.sendMessage(ChatColor.GRAY + "Queued: " + ChatColor.WHITE + metrics.getMessagesQueued()
+                    + ChatColor.GRAY + ", sent: " + ChatColor.WHITE + metrics.getMessagesSent() + ChatColor.GRAY
+                    + ", failed: " + ChatColor.WHITE + metrics.getMessagesFailed() + ChatColor.GRAY
+                    + ", dropped: " + ChatColor.WHITE + metrics.getMessagesDropped() + ChatColor.GRAY
+                    + ", reconnects: " + ChatColor.WHITE + metrics.getReconnects());
+            for (Entry<String, Histogram.Snapshot> entry : metrics.getLatencies().entrySet()) {
+                Histogram.Snapshot snapshot = entry.getValue();
+                sender.sendMessage(String.format(Locale.ENGLISH, ChatColor.GRAY + "%s: " + ChatColor.WHITE
+                        + "%d" + ChatColor.GRAY + " samples, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms",
+                        entry.getKey(), snapshot.getCount(), snapshot.getMedian(), snapshot.getPercentile90(),
+                        snapshot.getPercentile99(), snapshot.getMax()));
+            }
+        }
+
+        /**
+         * Sends a message to a contact. With the -u flag, the message is send
+         * before all other messages.
          * 
          * @param args
          *            the command-arguments
@@ -391,35 +1055,357 @@ public class XMPPChat extends BukkitComponent implements Listener {
          * @throws CommandException
          *             if the command is cancelled
          */
-        @Command(aliases = { "msg", "tell", "message" }, usage = "<user> <message>", desc = "Send users a message via XMPP", min = 2)
+        @Command(aliases = { "msg", "tell", "message" }, usage = "[-u] <user> <message>", desc = "Send users a message via XMPP", flags = "u", min = 2)
         @CommandPermissions("xmpp.msg")
         public void messageUser(CommandContext args, CommandSender sender) throws CommandException {
-            if (!aliases.containsKey(args.getString(0))) {
+            long start = System.nanoTime();
+            try {
+                dispatchMessage(args, sender);
+            } finally {
+                Metrics.get().record(Latency.COMMAND, start);
+            }
+        }
+
+        /**
+         * Resolves the recipients of a message and queues it.
+         * 
+         * @param args
+         *            the command-arguments
+         * @param sender
+         *            the CommandSender who initiated the command
+         * @throws CommandException
+         *             if the command is cancelled
+         */
+        private void dispatchMessage(CommandContext args, final CommandSender sender) throws CommandException {
+            final String input = args.getString(0);
+            final String message = args.getJoinedStrings(1);
+            final String fullMessage = config.messages.sendFromTemplate.format(ChatUtil.toName(sender)) + message;
+
+            Priority priority = Priority.NORMAL;
+            if (args.hasFlag('u')) {
+                CommandBook.inst().checkPermission(sender, "xmpp.msg.urgent");
+                priority = Priority.URGENT;
+            }
+
+            String roomID = config.rooms.get(input);
+            if (roomID != null) {
+                messageRoom(sender, input, roomID, fullMessage, message, priority);
+                return;
+            }
+
+            AliasIndex index = aliases;
+            final String alias = index.resolveAlias(input);
+            if (alias == null) {
+                List<String> candidates = index.completeAlias(input, MAX_CANDIDATES);
+                if (!candidates.isEmpty()) {
+                    throw new CommandException(config.messages.ambiguousUserTemplate.format(input,
+                            StringUtils.join(candidates, ", ")));
+                }
                 throw new CommandException(config.messages.unknownUser);
             }
+            Collection<String> recipientIDs = index.getUserIds(alias);
 
-            Collection<String> recipientIDs = aliases.get(args.getString(0));
-            String message = args.getJoinedStrings(1);
+            ConnectionState state = chatBot.getConnectionState();
+            if (state != ConnectionState.CONNECTED && outboxRelay != null) {
+                acquireToken(sender);
+                // keep the messages on disk until the connection is established
+                for (String recipientID : recipientIDs) {
+                    outboxRelay.store(recipientID, fullMessage);
+                }
+                sender.sendMessage(ChatColor.GRAY + config.messages.queuedOutage);
+                return;
+            }
+            checkConnection(sender);
+            acquireToken(sender);
 
+            final List<String> targets = new ArrayList<String>();
+            boolean storedOffline = false;
             for (String recipientID : recipientIDs) {
                 if (!config.notifyOffline && chatBot.getUserStatus(recipientID).equals(UserStatus.OFFLINE)) {
+                    if (outboxRelay != null) {
+                        outboxRelay.store(recipientID, fullMessage);
+                        storedOffline = true;
+                        continue;
+                    }
                     if (recipientIDs.size() <= 1) {
-                        throw new CommandException(String.format(config.messages.offlineUser, args.getString(0)));
+                        releaseToken(sender);
+                        throw new CommandException(config.messages.offlineUserTemplate.format(alias));
                     }
                     continue;
                 }
-                try {
-                    chatBot.sendMessage(recipientID, String.format(config.messages.sendFrom, ChatUtil.toName(sender))
+                targets.add(recipientID);
+            }
+            if (storedOffline) {
+                sender.sendMessage(ChatColor.GRAY + config.messages.queuedOfflineTemplate.format(alias));
+            }
+            if (targets.isEmpty()) {
+                return;
+            }
+
+            // all recipients of the alias are addressed by a single message
+            ListenableFuture<Void> send = chatBot.sendMessageAsync(targets, fullMessage, priority);
+            Futures.addCallback(send, new FutureCallback<Void>() {
+
+                @Override
+                public void onSuccess(Void result) {
+                    sender.sendMessage(ChatColor.GRAY + config.messages.sendToTemplate.format(alias) + ChatColor.RESET
                             + message);
-                } catch (BotException e) {
-                    CommandBook.logger().log(Level.WARNING, "Failed to send message to '" + recipientID + "'.", e);
-                    throw new CommandException(config.messages.sendFailed);
                 }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (t instanceof OverloadException) {
+                        releaseToken(sender);
+                        sender.sendMessage(ChatColor.RED + config.messages.overloaded);
+                        return;
+                    }
+                    // recipients on accounts that succeeded already have the message
+                    Collection<String> failed = PartialDeliveryException.getFailedRecipients(t, targets);
+                    CommandBook.logger().log(Level.WARNING, "Failed to send message to " + failed + ".", t);
+                    if (outboxRelay != null && chatBot.getConnectionState() != ConnectionState.CONNECTED) {
+                        for (String recipientID : failed) {
+                            outboxRelay.store(recipientID, fullMessage);
+                        }
+                        sender.sendMessage(ChatColor.GRAY + config.messages.queuedOutage);
+                    } else {
+                        sender.sendMessage(ChatColor.RED + config.messages.sendFailed);
+                    }
+                }
+            }, mainThread);
+        }
+
+        /**
+         * Sends a message to the group chat room of the given alias.
+         * 
+         * @param sender
+         *            the CommandSender who initiated the command
+         * @param alias
+         *            the alias of the room
+         * @param roomID
+         *            the identifier of the room
+         * @param fullMessage
+         *            the message including the sender
+         * @param message
+         *            the message as written by the sender
+         * @param priority
+         *            the priority of the message
+         * @throws CommandException
+         *             if the bot is not connected or the sender exceeded the
+         *             rate limit
+         */
+        private void messageRoom(final CommandSender sender, final String alias, final String roomID,
+                String fullMessage, final String message, Priority priority) throws CommandException {
+            checkConnection(sender);
+            acquireToken(sender);
+            ListenableFuture<Void> future = chatBot.sendRoomMessageAsync(roomID, fullMessage, priority);
+            Futures.addCallback(future, new FutureCallback<Void>() {
+
+                @Override
+                public void onSuccess(Void result) {
+                    sender.sendMessage(ChatColor.GRAY + config.messages.sendToTemplate.format(alias) + ChatColor.RESET
+                            + message);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (t instanceof OverloadException) {
+                        releaseToken(sender);
+                        sender.sendMessage(ChatColor.RED + config.messages.overloaded);
+                        return;
+                    }
+                    CommandBook.logger().log(Level.WARNING, "Failed to send message to room '" + roomID + "'.", t);
+                    sender.sendMessage(ChatColor.RED + config.messages.sendFailed);
+                }
+            }, mainThread);
+        }
+
+        /**
+         * Takes a token from the rate limit of the given sender. Called once
+         * the message is known to be accepted, so rejected messages do not
+         * count against the limit.
+         * 
+         * @param sender
+         *            the CommandSender who initiated the command
+         * @throws CommandException
+         *             if the sender exceeded the limit
+         */
+        private void acquireToken(CommandSender sender) throws CommandException {
+            TokenBuckets limit = senderLimit;
+            if (limit != null && !limit.tryAcquire(ChatUtil.toName(sender))) {
+                throw new CommandException(config.messages.rateLimited);
             }
+        }
+
+        /**
+         * Returns the token of a message that was rejected after
+         * {@link #acquireToken(CommandSender)}.
+         * 
+         * @param sender
+         *            the CommandSender who initiated the command
+         */
+        private void releaseToken(CommandSender sender) {
+            TokenBuckets limit = senderLimit;
+            if (limit != null) {
+                limit.release(ChatUtil.toName(sender));
+            }
+        }
 
-            sender.sendMessage(ChatColor.GRAY + String.format(config.messages.sendTo, args.getString(0))
-                    + ChatColor.RESET + message);
+        /**
+         * Checks whether messages can be send and informs the given sender if
+         * they are delayed.
+         * 
+         * @param sender
+         *            the CommandSender who initiated the command
+         * @throws CommandException
+         *             if the bot is not connected
+         */
+        private void checkConnection(CommandSender sender) throws CommandException {
+            switch (chatBot.getConnectionState()) {
+            case DISCONNECTED:
+                throw new CommandException(config.messages.notConnected);
+            case CONNECTING:
+                // the message is send once the connection is established
+                sender.sendMessage(ChatColor.GRAY + config.messages.connecting);
+                break;
+            default:
+                break;
+            }
         }
 
     }
+
+    /**
+     * Sends the digests of the alerts to the aliases of their rules. Digests
+     * use the normal lane, so a burst of alerts cannot delay messages that
+     * players send with {@code -u}.
+     */
+    private class AlertSender implements AlertAggregator.Sink {
+
+        @Override
+        public void send(String type, AlertAggregator.Digest digest) {
+            List<String> recipients = config.alertRules.get(type);
+            ChatServiceProvider provider = serviceProvider;
+            if (recipients == null || provider == null) {
+                return;
+            }
+            final String msg = format(type, digest);
+            for (final String alias : recipients) {
+                Futures.addCallback(provider.sendAsync(alias, msg, Priority.NORMAL), new FutureCallback<Void>() {
+
+                    @Override
+                    public void onSuccess(Void result) {
+                        // nothing to do
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        CommandBook.logger().log(Level.WARNING, "Failed to send an alert to '" + alias + "'.", t);
+                    }
+                });
+            }
+        }
+
+        /**
+         * Formats the given digest. A single alert is send as it is, multiple
+         * alerts are summarized by a header followed by the distinct alerts.
+         * 
+         * @param type
+         *            the type of the alerts
+         * @param digest
+         *            the digest
+         * @return the message
+         */
+        private String format(String type, AlertAggregator.Digest digest) {
+            Map<String, Integer> entries = digest.getAlerts();
+            if (digest.getCount() == 1) {
+                return entries.keySet().iterator().next();
+            }
+            LocalConfiguration.Messages messages = config.messages;
+            StringBuilder msg = new StringBuilder(messages.alertDigestTemplate.format(digest.getCount(), type,
+                    digest.getWindow()));
+            int shown = 0;
+            int lines = 0;
+            for (Entry<String, Integer> entry : entries.entrySet()) {
+                if (lines == config.alertMaxLines) {
+                    break;
+                }
+                msg.append('\n');
+                if (entry.getValue() > 1) {
+                    msg.append(messages.alertRepeatedTemplate.format(entry.getKey(), entry.getValue()));
+                } else {
+                    msg.append(entry.getKey());
+                }
+                shown += entry.getValue();
+                lines++;
+            }
+            if (shown < digest.getCount()) {
+                msg.append('\n').append(messages.alertMoreTemplate.format(digest.getCount() - shown));
+            }
+            return msg.toString();
+        }
+    }
+
+    /**
+     * Alerts if the server runs less ticks per second than configured. Runs
+     * on the main thread once per {@link #LAG_INTERVAL} ticks.
+     */
+    private class LagMonitor implements Runnable {
+
+        private long last = System.nanoTime();
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            long elapsed = now - last;
+            last = now;
+            long tps = Math.min(LAG_INTERVAL,
+                    Math.round(LAG_INTERVAL * TimeUnit.SECONDS.toNanos(1) / (double) elapsed));
+            if (tps < config.alertLagThreshold && isAlerted(ALERT_LAG)) {
+                // rounded, so that consecutive warnings are merged
+                alerts.record(ALERT_LAG, config.messages.alertLagTemplate.format(tps));
+            }
+        }
+    }
+
+    /**
+     * Completes the aliases of {@code /xmpp msg} and the users of
+     * {@code /xmpp rm}.
+     */
+    private class ContactCompleter implements TabCompleter {
+
+        @Override
+        public List<String> onTabComplete(CommandSender sender, org.bukkit.command.Command command, String label,
+                String[] args) {
+            if (args.length < 2) {
+                return null;
+            }
+            String subCommand = args[0].toLowerCase(Locale.ENGLISH);
+            String prefix = args[args.length - 1];
+
+            if (MESSAGE_COMMANDS.contains(subCommand)) {
+                // the alias is the first argument that is not a flag
+                int position = 1;
+                while (position < args.length - 1 && args[position].startsWith("-")) {
+                    position++;
+                }
+                if (position != args.length - 1 || prefix.startsWith("-")
+                        || !CommandBook.inst().hasPermission(sender, "xmpp.msg")) {
+                    return null;
+                }
+                List<String> ret = new ArrayList<String>(aliases.completeAlias(prefix, MAX_COMPLETIONS));
+                for (String room : config.rooms.keySet()) {
+                    if (room.startsWith(prefix)) {
+                        ret.add(room);
+                    }
+                }
+                Collections.sort(ret);
+                return ret;
+            }
+            if (REMOVE_COMMANDS.contains(subCommand) && args.length == 2
+                    && CommandBook.inst().hasPermission(sender, "xmpp.remove")) {
+                return aliases.completeUser(prefix, MAX_COMPLETIONS);
+            }
+            return null;
+        }
+    }
 }
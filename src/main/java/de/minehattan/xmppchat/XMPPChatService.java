@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.minehattan.xmppchat.bot.ChatBot.ConnectionState;
+import de.minehattan.xmppchat.bot.ChatBot.UserStatus;
+import de.minehattan.xmppchat.bot.Priority;
+
+/**
+ * Lets other plugins send messages to the contacts of XMPPChat without
+ * dispatching commands. The service is registered with Bukkit's
+ * {@link org.bukkit.plugin.ServicesManager} while the component is enabled:
+ * 
+ * <pre>
+ * XMPPChatService xmpp = Bukkit.getServicesManager().load(XMPPChatService.class);
+ * if (xmpp != null) {
+ *     xmpp.sendAsync(&quot;staff&quot;, &quot;Notch needs help at the spawn.&quot;);
+ * }
+ * </pre>
+ * 
+ * <p>
+ * Recipients are addressed by their aliases, as with {@code /xmpp msg}. No
+ * method blocks: messages are queued and send by the bot in the background,
+ * subject to its rate limits. The returned futures complete on the thread of
+ * the bot, callbacks that access Bukkit must be executed on the main thread.
+ * </p>
+ * 
+ * <p>
+ * This interface ships inside the component jar and is loaded by the class
+ * loader CommandBook uses for its components. Plugins that are not loaded
+ * through this class loader cannot refer to it directly and must look the
+ * service up by its name, see the README.
+ * </p>
+ */
+public interface XMPPChatService {
+
+    /**
+     * Gets the state of the connection to the XMPP server.
+     * 
+     * @return the state
+     */
+    ConnectionState getConnectionState();
+
+    /**
+     * Returns whether the given alias exists.
+     * 
+     * @param alias
+     *            the alias
+     * @return whether the alias exists
+     */
+    boolean containsAlias(String alias);
+
+    /**
+     * Gets the status of the given alias: the most available status of the
+     * users it refers to.
+     * 
+     * @param alias
+     *            the alias
+     * @return the status, {@link UserStatus#OFFLINE} if the alias does not
+     *         exist
+     */
+    UserStatus getStatus(String alias);
+
+    /**
+     * Sends the given message to all users of the given alias with normal
+     * priority.
+     * 
+     * @param alias
+     *            the alias
+     * @param msg
+     *            the message, may contain Bukkit color codes
+     * @return a future that completes once the message has been send or has
+     *         been stored for later delivery, and fails if the alias does not
+     *         exist or the message could not be queued
+     */
+    ListenableFuture<Void> sendAsync(String alias, String msg);
+
+    /**
+     * Sends the given message to all users of the given alias.
+     * 
+     * @param alias
+     *            the alias
+     * @param msg
+     *            the message, may contain Bukkit color codes
+     * @param priority
+     *            the priority of the message
+     * @return a future that completes once the message has been send or has
+     *         been stored for later delivery, and fails if the alias does not
+     *         exist or the message could not be queued
+     */
+    ListenableFuture<Void> sendAsync(String alias, String msg, Priority priority);
+
+    /**
+     * Sends several messages at once. Identical messages are coalesced: each
+     * distinct text is send once to all users of all aliases it is addressed
+     * to, so a broadcast to many aliases costs one queued message instead of
+     * one per alias. An alias that does not exist fails the returned future,
+     * but does not prevent the remaining messages from being send.
+     * 
+     * @param messages
+     *            the messages for each alias
+     * @param priority
+     *            the priority of the messages
+     * @return a future that completes once all messages have been send or
+     *         stored, and fails with the first failure if any message fails
+     */
+    ListenableFuture<Void> sendBatch(Map<String, ? extends Collection<String>> messages, Priority priority);
+
+    /**
+     * Subscribes the given listener to the status changes of all contacts.
+     * Listeners are called on the main thread and must be unsubscribed when
+     * their plugin is disabled.
+     * 
+     * @param listener
+     *            the listener
+     */
+    void subscribe(PresenceListener listener);
+
+    /**
+     * Unsubscribes the given listener.
+     * 
+     * @param listener
+     *            the listener
+     */
+    void unsubscribe(PresenceListener listener);
+}
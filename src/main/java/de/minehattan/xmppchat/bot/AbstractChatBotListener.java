@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import de.minehattan.xmppchat.bot.ChatBot.ConnectionState;
+import de.minehattan.xmppchat.bot.ChatBot.UserStatus;
+
+/**
+ * Provides empty implementations of all methods of {@link ChatBotListener}.
+ * Listeners that are only interested in some of the events should extend this
+ * class and override the methods they need.
+ */
+public abstract class AbstractChatBotListener implements ChatBotListener {
+
+    @Override
+    public void connectionStateChanged(ConnectionState state) {
+        // does nothing by default
+    }
+
+    @Override
+    public void userStatusChanged(String userId, UserStatus status) {
+        // does nothing by default
+    }
+
+    @Override
+    public void messageReceived(String senderId, String msg) {
+        // does nothing by default
+    }
+
+    @Override
+    public void messageUndelivered(String recipientId, String msg) {
+        // does nothing by default
+    }
+
+    @Override
+    public void messageUnconfirmed(String recipientId, String msg, Runnable resend) {
+        // does nothing by default
+    }
+}
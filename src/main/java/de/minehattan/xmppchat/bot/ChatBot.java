@@ -66,13 +66,66 @@ public interface ChatBot {
         }
     }
 
+    /**
+     * Represents the state of the connection of a bot.
+     */
+    enum ConnectionState {
+        /**
+         * The bot is establishing its connection.
+         */
+        CONNECTING,
+        /**
+         * The bot is connected and can send messages.
+         */
+        CONNECTED,
+        /**
+         * The bot is not connected.
+         */
+        DISCONNECTED;
+    }
+
     /**
      * Closes any open connection to the bot.
      */
     void closeConnection();
 
     /**
-     * Gets the status of a user.
+     * Gets the state of the connection of this bot.
+     * 
+     * @return the state of the connection
+     */
+    ConnectionState getConnectionState();
+
+    /**
+     * Gets the state of the connection that is used to reach the given user
+     * or room. Bots with several connections may be connected for some users
+     * while they are connecting for others.
+     * 
+     * @param userId
+     *            the identifier of the user or room
+     * @return the state of the connection
+     */
+    ConnectionState getConnectionState(String userId);
+
+    /**
+     * Adds a listener that is notified about events of this bot.
+     * 
+     * @param listener
+     *            the listener
+     */
+    void addListener(ChatBotListener listener);
+
+    /**
+     * Removes a listener that was added before.
+     * 
+     * @param listener
+     *            the listener
+     */
+    void removeListener(ChatBotListener listener);
+
+    /**
+     * Gets the status of a user. Implementations must allow calls from any
+     * thread and should not block.
      * 
      * @param userId
      *            the identifer of the user
@@ -92,6 +145,32 @@ public interface ChatBot {
      */
     void sendMessage(String recipientId, String msg) throws BotException;
 
+    /**
+     * Sends the given message to all given recipients. Implementations should
+     * address all recipients with a single message if the server supports it.
+     * 
+     * @param recipientIds
+     *            the identifiers of the recipients
+     * @param msg
+     *            the message
+     * @throws BotException
+     *             if sending the message fails
+     */
+    void sendMessage(Collection<String> recipientIds, String msg) throws BotException;
+
+    /**
+     * Sends the given message to the given group chat room. The bot joins the
+     * room if necessary.
+     * 
+     * @param roomId
+     *            the identifier of the room
+     * @param msg
+     *            the message
+     * @throws BotException
+     *             if sending the message fails
+     */
+    void sendRoomMessage(String roomId, String msg) throws BotException;
+
     /**
      * Updates the buddy list.
      * 
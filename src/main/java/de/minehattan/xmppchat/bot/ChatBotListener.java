@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import de.minehattan.xmppchat.bot.ChatBot.ConnectionState;
+import de.minehattan.xmppchat.bot.ChatBot.UserStatus;
+
+/**
+ * Receives events from a {@link ChatBot}. Methods are called on the thread
+ * that observed the event and must therefore not block.
+ */
+public interface ChatBotListener {
+
+    /**
+     * Called when the state of the connection of the bot changes.
+     * 
+     * @param state
+     *            the new state
+     */
+    void connectionStateChanged(ConnectionState state);
+
+    /**
+     * Called when the status of a user changes.
+     * 
+     * @param userId
+     *            the identifier of the user
+     * @param status
+     *            the new status
+     */
+    void userStatusChanged(String userId, UserStatus status);
+
+    /**
+     * Called when the bot receives a message.
+     * 
+     * @param senderId
+     *            the identifier of the sender
+     * @param msg
+     *            the message
+     */
+    void messageReceived(String senderId, String msg);
+
+    /**
+     * Called when a message whose receipt did not arrive in time could not be
+     * send again.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param msg
+     *            the message
+     */
+    void messageUndelivered(String recipientId, String msg);
+
+    /**
+     * Called when the receipt of a message did not arrive in time and the
+     * message should be send again. Bots that wrap other bots either forward
+     * this event or run the given task themselves, like a queued message.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param msg
+     *            the message
+     * @param resend
+     *            sends the message again, reports it as undelivered if that
+     *            fails
+     */
+    void messageUnconfirmed(String recipientId, String msg, Runnable resend);
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jivesoftware.smack.Chat;
+import org.jivesoftware.smack.ChatManager;
+import org.jivesoftware.smack.MessageListener;
+import org.jivesoftware.smack.XMPPConnection;
+
+/**
+ * A bounded cache of open chat sessions, keyed by the recipient. Sessions that
+ * have not been used for a certain time expire and the least recently used
+ * session is closed once the cache is full.
+ */
+class ChatSessionCache {
+
+    private final XMPPConnection connection;
+    private final MessageListener listener;
+    private final int maximumSize;
+    private final long idleTimeout;
+
+    /**
+     * The cached sessions in access-order, the least recently used first.
+     */
+    private final LinkedHashMap<String, CachedChat> chats = new LinkedHashMap<String, CachedChat>(16, 0.75f, true);
+
+    /**
+     * Constructs this cache.
+     * 
+     * @param connection
+     *            the connection used to create new sessions
+     * @param listener
+     *            the listener that handles messages send in created sessions
+     * @param maximumSize
+     *            the maximum number of open sessions
+     * @param idleTimeout
+     *            the time in milliseconds after which an unused session is
+     *            closed
+     */
+    ChatSessionCache(XMPPConnection connection, MessageListener listener, int maximumSize, long idleTimeout) {
+        this.connection = connection;
+        this.listener = listener;
+        this.maximumSize = maximumSize;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Gets the session with the given recipient, creating a new one if none
+     * is cached.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient
+     * @return the session
+     */
+    synchronized Chat get(String recipientId) {
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        String key = recipientId.toLowerCase(Locale.ENGLISH);
+        CachedChat cached = chats.get(key);
+        if (cached == null) {
+            cached = new CachedChat(ChatManager.getInstanceFor(connection).createChat(recipientId, listener));
+            chats.put(key, cached);
+
+            if (chats.size() > maximumSize) {
+                Iterator<CachedChat> it = chats.values().iterator();
+                it.next().chat.close();
+                it.remove();
+            }
+        }
+        cached.lastUsed = now;
+        return cached.chat;
+    }
+
+    /**
+     * Closes and removes the session with the given recipient, if any. Should
+     * be called if a session is known to be broken.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient
+     */
+    synchronized void invalidate(String recipientId) {
+        CachedChat cached = chats.remove(recipientId.toLowerCase(Locale.ENGLISH));
+        if (cached != null) {
+            cached.chat.close();
+        }
+    }
+
+    /**
+     * Closes and removes all cached sessions.
+     */
+    synchronized void invalidateAll() {
+        for (CachedChat cached : chats.values()) {
+            cached.chat.close();
+        }
+        chats.clear();
+    }
+
+    /**
+     * Closes and removes all sessions that have been idle for too long.
+     * 
+     * @param now
+     *            the current time in milliseconds
+     */
+    private void expire(long now) {
+        // the map is in access-order, so we can stop at the first session
+        // that is still in use
+        Iterator<Map.Entry<String, CachedChat>> it = chats.entrySet().iterator();
+        while (it.hasNext()) {
+            CachedChat cached = it.next().getValue();
+            if (now - cached.lastUsed < idleTimeout) {
+                break;
+            }
+            cached.chat.close();
+            it.remove();
+        }
+    }
+
+    /**
+     * A cached session.
+     */
+    private static final class CachedChat {
+        private final Chat chat;
+        private long lastUsed;
+
+        /**
+         * Constructs this entry.
+         * 
+         * @param chat
+         *            the session
+         */
+        private CachedChat(Chat chat) {
+            this.chat = chat;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import org.bukkit.ChatColor;
+
+/**
+ * Translates the color and format codes of Bukkit's {@link ChatColor} into an
+ * XHTML-IM body (XEP-0071) and a plain text body for clients that do not
+ * support XHTML-IM.
+ * 
+ * <p>
+ * The message is translated in a single pass without regular expressions.
+ * Messages without codes are returned as they are. As the same text is often
+ * send several times, e.g. to every recipient of an alias, the rendered
+ * messages are cached.
+ * </p>
+ */
+class ColorRenderer {
+
+    /**
+     * The namespace of XHTML-IM bodies.
+     */
+    private static final String XHTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
+
+    /**
+     * The RGB values of the colors {@code 0} to {@code f}, as used by the
+     * Minecraft client.
+     */
+    private static final String[] COLORS = { "#000000", "#0000aa", "#00aa00", "#00aaaa", "#aa0000", "#aa00aa",
+            "#ffaa00", "#aaaaaa", "#555555", "#5555ff", "#55ff55", "#55ffff", "#ff5555", "#ff55ff", "#ffff55",
+            "#ffffff" };
+
+    private static final int NO_COLOR = -1;
+    private static final int BOLD = 1;
+    private static final int STRIKETHROUGH = 1 << 1;
+    private static final int UNDERLINE = 1 << 2;
+    private static final int ITALIC = 1 << 3;
+
+    private final Map<String, Rendered> cache;
+
+    /**
+     * Constructs a renderer.
+     * 
+     * @param cacheSize
+     *            the maximum number of rendered messages that are cached
+     */
+    ColorRenderer(final int cacheSize) {
+        cache = new LinkedHashMap<String, Rendered>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Rendered> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Renders the given message.
+     * 
+     * @param msg
+     *            the message with Bukkit color codes
+     * @return the rendered message
+     */
+    Rendered render(String msg) {
+        if (msg.indexOf(ChatColor.COLOR_CHAR) < 0) {
+            return new Rendered(msg, null);
+        }
+        synchronized (cache) {
+            Rendered cached = cache.get(msg);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        Rendered rendered = translate(msg);
+        synchronized (cache) {
+            cache.put(msg, rendered);
+        }
+        return rendered;
+    }
+
+    /**
+     * Translates the given message.
+     * 
+     * @param msg
+     *            the message
+     * @return the translated message
+     */
+    private static Rendered translate(String msg) {
+        StringBuilder plain = new StringBuilder(msg.length());
+        StringBuilder xhtml = new StringBuilder(msg.length() * 2);
+        xhtml.append("<body xmlns='").append(XHTML_NAMESPACE).append("'>");
+
+        int color = NO_COLOR;
+        int format = 0;
+        boolean changed = false;
+        boolean open = false;
+        boolean styled = false;
+        int length = msg.length();
+        for (int i = 0; i < length; i++) {
+            char c = msg.charAt(i);
+            if (c == ChatColor.COLOR_CHAR && i + 1 < length) {
+                char code = Character.toLowerCase(msg.charAt(i + 1));
+                int index = toColor(code);
+                if (index >= 0) {
+                    // like in Minecraft, a color resets the formats
+                    color = index;
+                    format = 0;
+                    changed = true;
+                    i++;
+                    continue;
+                }
+                int flag = toFormat(code);
+                if (flag >= 0) {
+                    format |= flag;
+                    changed = true;
+                    i++;
+                    continue;
+                }
+                if (code == 'r') {
+                    color = NO_COLOR;
+                    format = 0;
+                    changed = true;
+                    i++;
+                    continue;
+                }
+            }
+
+            if (changed) {
+                if (open) {
+                    xhtml.append("</span>");
+                }
+                open = color != NO_COLOR || format != 0;
+                if (open) {
+                    appendSpan(xhtml, color, format);
+                    styled = true;
+                }
+                changed = false;
+            }
+            plain.append(c);
+            appendEscaped(xhtml, c);
+        }
+        if (open) {
+            xhtml.append("</span>");
+        }
+        xhtml.append("</body>");
+        return new Rendered(plain.toString(), styled ? xhtml.toString() : null);
+    }
+
+    /**
+     * Gets the color of the given code.
+     * 
+     * @param code
+     *            the lower case code
+     * @return the index of the color or -1 if the code is not a color
+     */
+    private static int toColor(char code) {
+        if (code >= '0' && code <= '9') {
+            return code - '0';
+        }
+        if (code >= 'a' && code <= 'f') {
+            return code - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the format of the given code.
+     * 
+     * @param code
+     *            the lower case code
+     * @return the flag of the format, 0 for formats that cannot be displayed
+     *         and -1 if the code is not a format
+     */
+    private static int toFormat(char code) {
+        switch (code) {
+        case 'k':
+            // obfuscated text cannot be displayed
+            return 0;
+        case 'l':
+            return BOLD;
+        case 'm':
+            return STRIKETHROUGH;
+        case 'n':
+            return UNDERLINE;
+        case 'o':
+            return ITALIC;
+        default:
+            return -1;
+        }
+    }
+
+    /**
+     * Opens a span with the given color and format.
+     * 
+     * @param xhtml
+     *            the builder to append to
+     * @param color
+     *            the index of the color or {@link #NO_COLOR}
+     * @param format
+     *            the flags of the format
+     */
+    private static void appendSpan(StringBuilder xhtml, int color, int format) {
+        xhtml.append("<span style='");
+        if (color != NO_COLOR) {
+            xhtml.append("color: ").append(COLORS[color]).append(';');
+        }
+        if ((format & BOLD) != 0) {
+            xhtml.append("font-weight: bold;");
+        }
+        if ((format & ITALIC) != 0) {
+            xhtml.append("font-style: italic;");
+        }
+        if ((format & (UNDERLINE | STRIKETHROUGH)) != 0) {
+            xhtml.append("text-decoration:");
+            if ((format & UNDERLINE) != 0) {
+                xhtml.append(" underline");
+            }
+            if ((format & STRIKETHROUGH) != 0) {
+                xhtml.append(" line-through");
+            }
+            xhtml.append(';');
+        }
+        xhtml.append("'>");
+    }
+
+    /**
+     * Appends the given character, escaped for XML.
+     * 
+     * @param xhtml
+     *            the builder to append to
+     * @param c
+     *            the character
+     */
+    private static void appendEscaped(StringBuilder xhtml, char c) {
+        switch (c) {
+        case '&':
+            xhtml.append("&amp;");
+            break;
+        case '<':
+            xhtml.append("&lt;");
+            break;
+        case '>':
+            xhtml.append("&gt;");
+            break;
+        case '\'':
+            xhtml.append("&apos;");
+            break;
+        case '"':
+            xhtml.append("&quot;");
+            break;
+        case '\n':
+            xhtml.append("<br/>");
+            break;
+        default:
+            xhtml.append(c);
+        }
+    }
+
+    /**
+     * A rendered message.
+     */
+    static final class Rendered {
+
+        private final String plain;
+        @Nullable
+        private final String xhtml;
+
+        /**
+         * Constructs a rendered message.
+         * 
+         * @param plain
+         *            the plain text
+         * @param xhtml
+         *            the XHTML-IM body or {@code null} if the message has no
+         *            formatting
+         */
+        Rendered(String plain, @Nullable String xhtml) {
+            this.plain = plain;
+            this.xhtml = xhtml;
+        }
+
+        /**
+         * Gets the plain text without any codes.
+         * 
+         * @return the plain text
+         */
+        String getPlain() {
+            return plain;
+        }
+
+        /**
+         * Gets the XHTML-IM body, including the {@code body} element.
+         * 
+         * @return the body or {@code null} if the message has no formatting
+         */
+        @Nullable
+        String getXhtml() {
+            return xhtml;
+        }
+    }
+}
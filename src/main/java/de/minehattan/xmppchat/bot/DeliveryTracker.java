@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sk89q.commandbook.CommandBook;
+
+import de.minehattan.xmppchat.metrics.Metrics;
+import de.minehattan.xmppchat.metrics.Metrics.Latency;
+
+/**
+ * Tracks messages that requested a delivery receipt (XEP-0184) until the
+ * receipt arrives or the message times out.
+ * 
+ * <p>
+ * Clients are not required to support receipts. A recipient is therefore only
+ * expected to answer once it has send a receipt before. Timed out messages to
+ * such recipients are send again and eventually reported as undelivered,
+ * while messages to other recipients are only counted. Recipients are no
+ * longer expected to answer after a message was reported as undelivered.
+ * </p>
+ */
+class DeliveryTracker {
+
+    /**
+     * Handles messages that timed out.
+     */
+    interface Callback {
+
+        /**
+         * Requests that the given message is send again.
+         * 
+         * @param recipientId
+         *            the identifier of the recipient
+         * @param msg
+         *            the message
+         * @param attempt
+         *            the number of the attempt, starting at 1 for the first
+         *            message
+         */
+        void resend(String recipientId, String msg, int attempt);
+
+        /**
+         * Called when the given message was not confirmed after the last
+         * attempt. The recipient is no longer expected to send receipts.
+         * 
+         * @param recipientId
+         *            the identifier of the recipient
+         * @param msg
+         *            the message
+         */
+        void undelivered(String recipientId, String msg);
+    }
+
+    /**
+     * The duration of a tick of the timer wheel in milliseconds.
+     */
+    private static final long TICK_DURATION = 1000;
+
+    /**
+     * The number of slots of the timer wheel.
+     */
+    private static final int SLOTS = 64;
+
+    /**
+     * The number of attempts to send a message before it is undelivered.
+     */
+    private static final int MAX_ATTEMPTS = 2;
+
+    /**
+     * The number of ticks between two reports.
+     */
+    private static final long REPORT_INTERVAL = TimeUnit.MINUTES.toMillis(10) / TICK_DURATION;
+
+    private final Callback callback;
+    private final long timeout;
+    private final TimerWheel<Delivery> pending = new TimerWheel<Delivery>(SLOTS, TICK_DURATION);
+
+    /**
+     * The lower-case bare addresses of recipients that have send a receipt.
+     */
+    private final Set<String> capable = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final ScheduledExecutorService ticker = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("XMPPChat-Receipts-%d")
+                    .setDaemon(true).build());
+
+    private final AtomicLong confirmed = new AtomicLong();
+    private final AtomicLong unconfirmed = new AtomicLong();
+    private final AtomicLong undelivered = new AtomicLong();
+
+    /**
+     * The number of ticks since the last report. Only accessed by the ticker.
+     */
+    private long ticks;
+
+    /**
+     * Constructs this tracker and starts the timer.
+     * 
+     * @param callback
+     *            the callback for timed out messages
+     * @param timeout
+     *            the time in milliseconds to wait for a receipt
+     */
+    DeliveryTracker(Callback callback, long timeout) {
+        this.callback = callback;
+        this.timeout = timeout;
+        ticker.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (RuntimeException e) {
+                    // an exception would cancel further ticks
+                    CommandBook.logger().log(Level.SEVERE, "Failed to process timed out messages.", e);
+                }
+            }
+        }, TICK_DURATION, TICK_DURATION, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts waiting for the receipt of the given message.
+     * 
+     * @param messageId
+     *            the identifier of the message
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param msg
+     *            the message
+     * @param attempt
+     *            the number of the attempt, starting at 1 for the first
+     *            message
+     */
+    void track(String messageId, String recipientId, String msg, int attempt) {
+        pending.add(messageId, new Delivery(recipientId, msg, attempt), timeout);
+    }
+
+    /**
+     * Stops waiting for the receipt of the given message, for example because
+     * it could not be send.
+     * 
+     * @param messageId
+     *            the identifier of the message
+     */
+    void forget(String messageId) {
+        pending.remove(messageId);
+    }
+
+    /**
+     * Confirms the delivery of the given message.
+     * 
+     * @param messageId
+     *            the identifier of the message
+     * @param senderId
+     *            the address that send the receipt
+     */
+    void confirm(String messageId, String senderId) {
+        capable.add(toKey(senderId));
+        Delivery delivery = pending.remove(messageId);
+        if (delivery == null) {
+            // unknown or already timed out
+            return;
+        }
+        Metrics.get().record(Latency.RECEIPT, delivery.sent);
+        confirmed.incrementAndGet();
+    }
+
+    /**
+     * Handles the messages that timed out and reports the outcome
+     * periodically.
+     */
+    private void tick() {
+        for (Delivery delivery : pending.advance()) {
+            if (!capable.contains(toKey(delivery.recipientId))) {
+                // the client probably does not support receipts
+                unconfirmed.incrementAndGet();
+            } else if (delivery.attempt < MAX_ATTEMPTS) {
+                callback.resend(delivery.recipientId, delivery.msg, delivery.attempt + 1);
+            } else {
+                // do not expect receipts again, so the message is not repeated endlessly
+                capable.remove(toKey(delivery.recipientId));
+                undelivered.incrementAndGet();
+                callback.undelivered(delivery.recipientId, delivery.msg);
+            }
+        }
+
+        if (++ticks >= REPORT_INTERVAL) {
+            ticks = 0;
+            report();
+        }
+    }
+
+    /**
+     * Logs the outcome of the deliveries since the last report. The latency
+     * is recorded in the {@link Metrics}.
+     */
+    private void report() {
+        long count = confirmed.getAndSet(0);
+        long withoutReceipt = unconfirmed.getAndSet(0);
+        long failed = undelivered.getAndSet(0);
+        if (count == 0 && withoutReceipt == 0 && failed == 0) {
+            return;
+        }
+        CommandBook.logger().info(
+                "Delivery receipts: " + count + " confirmed, " + failed + " undelivered, " + withoutReceipt
+                        + " without receipt, " + pending.size() + " pending.");
+    }
+
+    /**
+     * Gets the key of the given address in the set of capable recipients.
+     * 
+     * @param userId
+     *            the address
+     * @return the key
+     */
+    private static String toKey(String userId) {
+        return StringUtils.parseBareAddress(userId).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Stops the timer. Pending messages are no longer tracked.
+     */
+    void close() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * A message that waits for its receipt.
+     */
+    private static final class Delivery {
+
+        private final String recipientId;
+        private final String msg;
+        private final int attempt;
+        private final long sent = System.nanoTime();
+
+        /**
+         * Constructs this delivery.
+         * 
+         * @param recipientId
+         *            the identifier of the recipient
+         * @param msg
+         *            the message
+         * @param attempt
+         *            the number of the attempt
+         */
+        private Delivery(String recipientId, String msg, int attempt) {
+            this.recipientId = recipientId;
+            this.msg = msg;
+            this.attempt = attempt;
+        }
+    }
+}
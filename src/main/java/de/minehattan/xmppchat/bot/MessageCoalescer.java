@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Merges messages to the same recipient that are send shortly after each
+ * other into a single, multi-line message.
+ * 
+ * <p>
+ * A message is held back until no further message for the same recipient
+ * arrived within the window, but never longer than the maximum delay after the
+ * first message. Messages are merged as long as the merged message does not
+ * exceed the maximum length.
+ * </p>
+ */
+class MessageCoalescer {
+
+    /**
+     * Receives the merged messages.
+     */
+    interface Sink {
+
+        /**
+         * Sends the given merged message.
+         * 
+         * @param recipientId
+         *            the identifier of the recipient
+         * @param msg
+         *            the merged message
+         * @return a future that completes once the message has been send
+         */
+        ListenableFuture<Void> send(String recipientId, String msg);
+    }
+
+    private final Sink sink;
+    private final long window;
+    private final long maxDelay;
+    private final int maxLength;
+
+    /**
+     * The messages that are held back, keyed by the lower-case recipient.
+     * Guarded by this coalescer.
+     */
+    private final Map<String, Batch> pending = new HashMap<String, Batch>();
+
+    /**
+     * Flushes the batches once their deadline has passed.
+     */
+    private final ScheduledExecutorService timer = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("XMPPChat-Coalesce-%d")
+                    .setDaemon(true).build());
+
+    /**
+     * Constructs this coalescer.
+     * 
+     * @param sink
+     *            the sink that receives the merged messages
+     * @param window
+     *            the time in milliseconds to wait for further messages
+     * @param maxDelay
+     *            the maximum time in milliseconds a message is held back
+     * @param maxLength
+     *            the maximum length of a merged message
+     */
+    MessageCoalescer(Sink sink, long window, long maxDelay, int maxLength) {
+        this.sink = sink;
+        this.window = window;
+        this.maxDelay = maxDelay;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Adds the given message. The returned future completes once the merged
+     * message that contains the given message has been send.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param msg
+     *            the message
+     * @return a future that completes once the message has been send
+     */
+    synchronized ListenableFuture<Void> add(String recipientId, String msg) {
+        String key = recipientId.toLowerCase(Locale.ENGLISH);
+        Batch batch = pending.get(key);
+        if (batch != null && batch.text.length() + 1 + msg.length() > maxLength) {
+            flush(key, batch);
+            batch = null;
+        }
+
+        long now = System.currentTimeMillis();
+        boolean created = batch == null;
+        if (created) {
+            batch = new Batch(recipientId, now);
+            pending.put(key, batch);
+        } else {
+            batch.text.append('\n');
+        }
+        batch.text.append(msg);
+        batch.deadline = Math.min(now + window, batch.created + maxDelay);
+
+        SettableFuture<Void> future = SettableFuture.create();
+        batch.futures.add(future);
+        if (created) {
+            schedule(key, batch, batch.deadline - now);
+        }
+        return future;
+    }
+
+    /**
+     * Schedules a check of the deadline of the given batch.
+     * 
+     * @param key
+     *            the key of the batch
+     * @param batch
+     *            the batch
+     * @param delay
+     *            the time in milliseconds until the check
+     */
+    private void schedule(final String key, final Batch batch, long delay) {
+        try {
+            timer.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    expire(key, batch);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // close() was called in the meantime
+            flush(key, batch);
+        }
+    }
+
+    /**
+     * Flushes the given batch if its deadline has passed or schedules another
+     * check otherwise.
+     * 
+     * @param key
+     *            the key of the batch
+     * @param batch
+     *            the batch
+     */
+    private synchronized void expire(String key, Batch batch) {
+        if (pending.get(key) != batch) {
+            // flushed in the meantime
+            return;
+        }
+        long remaining = batch.deadline - System.currentTimeMillis();
+        if (remaining > 0) {
+            schedule(key, batch, remaining);
+        } else {
+            flush(key, batch);
+        }
+    }
+
+    /**
+     * Sends the given batch and completes the futures of its messages.
+     * 
+     * @param key
+     *            the key of the batch
+     * @param batch
+     *            the batch
+     */
+    private void flush(String key, final Batch batch) {
+        if (pending.get(key) == batch) {
+            pending.remove(key);
+        }
+        Futures.addCallback(sink.send(batch.recipientId, batch.text.toString()), new FutureCallback<Void>() {
+
+            @Override
+            public void onSuccess(Void result) {
+                for (SettableFuture<Void> future : batch.futures) {
+                    future.set(null);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                for (SettableFuture<Void> future : batch.futures) {
+                    future.setException(t);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends all messages that are held back and stops the timer.
+     */
+    synchronized void close() {
+        timer.shutdownNow();
+        for (Map.Entry<String, Batch> entry : new ArrayList<Map.Entry<String, Batch>>(pending.entrySet())) {
+            flush(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Messages to one recipient that are merged.
+     */
+    private static final class Batch {
+
+        private final String recipientId;
+        private final long created;
+        private final StringBuilder text = new StringBuilder();
+        private final List<SettableFuture<Void>> futures = new ArrayList<SettableFuture<Void>>();
+        private long deadline;
+
+        /**
+         * Constructs this batch.
+         * 
+         * @param recipientId
+         *            the identifier of the recipient
+         * @param created
+         *            the time the first message was added
+         */
+        private Batch(String recipientId, long created) {
+            this.recipientId = recipientId;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+/**
+ * Indicates that a message was rejected because too many messages are send at
+ * the moment. The message may be send again later.
+ */
+public class OverloadException extends BotException {
+
+    private static final long serialVersionUID = -6183275140251489921L;
+
+    /**
+     * Constructs this exception with the given message.
+     * 
+     * @param message
+     *            the message
+     */
+    public OverloadException(String message) {
+        super(message);
+    }
+}
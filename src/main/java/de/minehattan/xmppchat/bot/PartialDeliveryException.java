@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Indicates that a message to several recipients could not be send to some of
+ * them. Only these recipients have to be addressed again, the others already
+ * received the message.
+ */
+public class PartialDeliveryException extends BotException {
+
+    private static final long serialVersionUID = 4390873587126152018L;
+
+    private final List<String> failedRecipients;
+
+    /**
+     * Constructs this exception.
+     * 
+     * @param failedRecipients
+     *            the identifiers of the recipients that did not receive the
+     *            message
+     * @param cause
+     *            the failure of the last recipients that failed
+     */
+    public PartialDeliveryException(Collection<String> failedRecipients, Throwable cause) {
+        super("Failed to send the message to " + failedRecipients + ".", cause);
+        this.failedRecipients = Collections.unmodifiableList(new ArrayList<String>(failedRecipients));
+    }
+
+    /**
+     * Gets the recipients that did not receive the message.
+     * 
+     * @return the identifiers of the recipients
+     */
+    public List<String> getFailedRecipients() {
+        return failedRecipients;
+    }
+
+    /**
+     * Gets the recipients of the given message that did not receive it.
+     * 
+     * @param failure
+     *            the reason the message failed
+     * @param recipientIds
+     *            all recipients of the message
+     * @return the recipients given by the failure if it is a
+     *         {@link PartialDeliveryException}, all recipients otherwise
+     */
+    public static Collection<String> getFailedRecipients(Throwable failure, Collection<String> recipientIds) {
+        if (failure instanceof PartialDeliveryException) {
+            return ((PartialDeliveryException) failure).getFailedRecipients();
+        }
+        return recipientIds;
+    }
+}
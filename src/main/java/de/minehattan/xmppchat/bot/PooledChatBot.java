@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+
+import org.jivesoftware.smack.util.StringUtils;
+
+import com.google.common.base.Charsets;
+import com.sk89q.commandbook.CommandBook;
+
+/**
+ * A bot that spreads the recipients over several XMPP accounts. Every
+ * recipient is assigned to one account using consistent hashing, so all
+ * messages to a recipient are send through the same connection and keep their
+ * order, and the status of a recipient is read from that connection.
+ * 
+ * <p>
+ * Accounts that fail to connect are left out, their recipients are assigned to
+ * the remaining accounts. An account that reconnects later only affects its
+ * own recipients, see {@link #getConnectionState(String)}.
+ * </p>
+ */
+public class PooledChatBot implements ChatBot {
+
+    /**
+     * The number of points every account occupies on the hash ring. More
+     * points distribute the recipients more evenly.
+     */
+    private static final int VIRTUAL_NODES = 64;
+
+    /**
+     * The accounts.
+     */
+    private final List<XMPPBot> bots;
+
+    /**
+     * The accounts in use and their hash ring. Replaced as a whole if
+     * accounts fail to connect.
+     */
+    private volatile Assignment assignment;
+
+    /**
+     * The listeners that are notified about events of the accounts.
+     */
+    private final List<ChatBotListener> listeners = new CopyOnWriteArrayList<ChatBotListener>();
+
+    /**
+     * Constructs this bot.
+     * 
+     * @param bots
+     *            the accounts, at least one
+     */
+    public PooledChatBot(List<XMPPBot> bots) {
+        if (bots.isEmpty()) {
+            throw new IllegalArgumentException("At least one bot is required.");
+        }
+        this.bots = Collections.unmodifiableList(new ArrayList<XMPPBot>(bots));
+        assignment = new Assignment(this.bots);
+
+        ChatBotListener forwarder = new ChatBotListener() {
+
+            @Override
+            public void connectionStateChanged(ConnectionState state) {
+                ConnectionState combined = getConnectionState();
+                for (ChatBotListener l : listeners) {
+                    l.connectionStateChanged(combined);
+                }
+            }
+
+            @Override
+            public void userStatusChanged(String userId, UserStatus status) {
+                for (ChatBotListener l : listeners) {
+                    l.userStatusChanged(userId, status);
+                }
+            }
+
+            @Override
+            public void messageReceived(String senderId, String msg) {
+                for (ChatBotListener l : listeners) {
+                    l.messageReceived(senderId, msg);
+                }
+            }
+
+            @Override
+            public void messageUndelivered(String recipientId, String msg) {
+                for (ChatBotListener l : listeners) {
+                    l.messageUndelivered(recipientId, msg);
+                }
+            }
+
+            @Override
+            public void messageUnconfirmed(String recipientId, String msg, Runnable resend) {
+                for (ChatBotListener l : listeners) {
+                    l.messageUnconfirmed(recipientId, msg, resend);
+                }
+            }
+        };
+        for (XMPPBot bot : this.bots) {
+            bot.addListener(forwarder);
+        }
+    }
+
+    /**
+     * Connects all accounts one after another. Accounts that fail to connect
+     * are closed and their recipients are assigned to the remaining accounts.
+     * 
+     * @throws BotException
+     *             if no account could be connected
+     */
+    public void connect() throws BotException {
+        List<XMPPBot> connected = new ArrayList<XMPPBot>();
+        BotException failure = null;
+        for (XMPPBot bot : bots) {
+            try {
+                bot.connect();
+                connected.add(bot);
+            } catch (BotException e) {
+                CommandBook.logger().log(Level.WARNING,
+                        "Failed to connect the account '" + bot.getUsername() + "', it is not used.", e);
+                bot.closeConnection();
+                failure = e;
+            }
+        }
+        if (connected.isEmpty()) {
+            throw failure;
+        }
+        if (connected.size() < bots.size()) {
+            assignment = new Assignment(connected);
+        }
+    }
+
+    /**
+     * Gets the account responsible for the given user.
+     * 
+     * @param userId
+     *            the identifier of the user
+     * @return the account
+     */
+    XMPPBot getOwner(String userId) {
+        return assignment.getOwner(userId);
+    }
+
+    /**
+     * Calculates the position of the given key on the hash ring.
+     * 
+     * @param key
+     *            the key
+     * @return the position
+     */
+    private static int hash(String key) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+        byte[] bytes = digest.digest(key.getBytes(Charsets.UTF_8));
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | bytes[3] & 0xFF;
+    }
+
+    @Override
+    public void closeConnection() {
+        for (XMPPBot bot : bots) {
+            bot.closeConnection();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The pool is connected as long as one of the accounts in use is
+     * connected, and connecting if none is connected but one is connecting.
+     * Whether a certain recipient can be reached is reported by
+     * {@link #getConnectionState(String)}.
+     * </p>
+     */
+    @Override
+    public ConnectionState getConnectionState() {
+        ConnectionState ret = ConnectionState.DISCONNECTED;
+        for (XMPPBot bot : assignment.bots) {
+            ConnectionState state = bot.getConnectionState();
+            if (state == ConnectionState.CONNECTED) {
+                return ConnectionState.CONNECTED;
+            }
+            if (state == ConnectionState.CONNECTING) {
+                ret = ConnectionState.CONNECTING;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * This is the state of the account responsible for the given user.
+     * </p>
+     */
+    @Override
+    public ConnectionState getConnectionState(String userId) {
+        return getOwner(userId).getConnectionState();
+    }
+
+    @Override
+    public void addListener(ChatBotListener botListener) {
+        listeners.add(botListener);
+    }
+
+    @Override
+    public void removeListener(ChatBotListener botListener) {
+        listeners.remove(botListener);
+    }
+
+    @Override
+    public UserStatus getUserStatus(String userId) {
+        return getOwner(userId).getUserStatus(userId);
+    }
+
+    @Override
+    public void sendMessage(String recipientId, String msg) throws BotException {
+        getOwner(recipientId).sendMessage(recipientId, msg);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Every account sends the message to the recipients it is responsible
+     * for. If some accounts fail, a {@link PartialDeliveryException} names the
+     * recipients of these accounts.
+     * </p>
+     */
+    @Override
+    public void sendMessage(Collection<String> recipientIds, String msg) throws BotException {
+        List<String> failed = new ArrayList<String>();
+        BotException failure = null;
+        for (Map.Entry<XMPPBot, List<String>> partition : partition(recipientIds).entrySet()) {
+            if (partition.getValue().isEmpty()) {
+                continue;
+            }
+            try {
+                partition.getKey().sendMessage(partition.getValue(), msg);
+            } catch (BotException e) {
+                failed.addAll(partition.getValue());
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw new PartialDeliveryException(failed, failure);
+        }
+    }
+
+    @Override
+    public void sendRoomMessage(String roomId, String msg) throws BotException {
+        getOwner(roomId).sendRoomMessage(roomId, msg);
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * Every account only gets the users it is responsible for.
+     * </p>
+     */
+    @Override
+    public void updateBuddyList(Collection<String> userIds, boolean removeNotIncluded) throws BotException {
+        Map<XMPPBot, List<String>> partitions = partition(userIds);
+
+        BotException failure = null;
+        for (XMPPBot bot : assignment.bots) {
+            try {
+                bot.updateBuddyList(partitions.get(bot), removeNotIncluded);
+            } catch (BotException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Groups the given users by the account responsible for them. Every
+     * account in use is included, even if no user belongs to it.
+     * 
+     * @param userIds
+     *            the identifiers of the users
+     * @return the users of every account
+     */
+    private Map<XMPPBot, List<String>> partition(Collection<String> userIds) {
+        Assignment current = assignment;
+        Map<XMPPBot, List<String>> partitions = new HashMap<XMPPBot, List<String>>();
+        for (XMPPBot bot : current.bots) {
+            partitions.put(bot, new ArrayList<String>());
+        }
+        for (String userId : userIds) {
+            partitions.get(current.getOwner(userId)).add(userId);
+        }
+        return partitions;
+    }
+
+    /**
+     * The accounts in use and the hash ring that assigns the users to them.
+     */
+    private static final class Assignment {
+
+        private final List<XMPPBot> bots;
+        private final TreeMap<Integer, XMPPBot> ring = new TreeMap<Integer, XMPPBot>();
+
+        /**
+         * Constructs the assignment to the given accounts.
+         * 
+         * @param bots
+         *            the accounts, at least one
+         */
+        private Assignment(List<XMPPBot> bots) {
+            this.bots = Collections.unmodifiableList(new ArrayList<XMPPBot>(bots));
+            // keyed by the account so the assignment does not depend on the order
+            for (XMPPBot bot : this.bots) {
+                for (int node = 0; node < VIRTUAL_NODES; node++) {
+                    ring.put(hash(bot.getUsername() + "#" + node), bot);
+                }
+            }
+        }
+
+        /**
+         * Gets the account responsible for the given user.
+         * 
+         * @param userId
+         *            the identifier of the user
+         * @return the account
+         */
+        private XMPPBot getOwner(String userId) {
+            if (bots.size() == 1) {
+                return bots.get(0);
+            }
+            int hash = hash(StringUtils.parseBareAddress(userId).toLowerCase(Locale.ENGLISH));
+            SortedMap<Integer, XMPPBot> tail = ring.tailMap(hash);
+            return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+        }
+    }
+}
@@ -0,0 +1,1162 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.sk89q.commandbook.CommandBook;
+
+import de.minehattan.xmppchat.metrics.Metrics;
+import de.minehattan.xmppchat.metrics.Metrics.Counter;
+import de.minehattan.xmppchat.metrics.Metrics.Latency;
+
+/**
+ * A bot that wraps another bot and sends messages asynchronously. Messages
+ * are stored in bounded queues that are drained by dedicated worker threads,
+ * so callers never wait for the network.
+ * 
+ * <p>
+ * Every {@link Priority} has its own queue. Urgent messages are send by a
+ * worker of their own, so they never wait behind other queued messages.
+ * Another worker sends normal and bulk messages, preferring normal messages by
+ * {@value #NORMAL_WEIGHT} to {@value #BULK_WEIGHT} while both are waiting.
+ * Both workers send through the same wrapped bot and therefore the same
+ * connection, so an urgent message still waits while the socket of that
+ * connection is blocked by a message that is being written.
+ * </p>
+ * 
+ * <p>
+ * The wrapped bot can be replaced at runtime using {@link #handover(ChatBot)}.
+ * Messages to recipients whose connection is being established are set aside
+ * by the worker and send in order once the connection is established, see
+ * {@link ChatBot#getConnectionState(String)}. Messages to other recipients are
+ * send meanwhile, so an account of a {@link PooledChatBot} that reconnects
+ * only holds back its own recipients. Messages that fail because the
+ * connection was lost while sending them are put back at the head of the
+ * queue and are set aside as well.
+ * </p>
+ */
+public class QueuedChatBot implements ChatBot {
+
+    /**
+     * The time in milliseconds the worker waits before checking the state of
+     * the wrapped bot again.
+     */
+    private static final long POLL_INTERVAL = 500;
+
+    /**
+     * The maximum number of times a message is send again after the
+     * connection was lost.
+     */
+    private static final int MAX_REPLAYS = 3;
+
+    /**
+     * The share of normal messages while normal and bulk messages wait.
+     */
+    private static final int NORMAL_WEIGHT = 4;
+
+    /**
+     * The share of bulk messages while normal and bulk messages wait.
+     */
+    private static final int BULK_WEIGHT = 1;
+
+    /**
+     * The bot that actually sends the messages.
+     */
+    private volatile ChatBot delegate;
+
+    /**
+     * Bots that have been replaced and are closed by the workers once no
+     * worker sends through them anymore.
+     */
+    private final Queue<ChatBot> retired = new ConcurrentLinkedQueue<ChatBot>();
+
+    /**
+     * The listeners that are notified about events of the wrapped bot.
+     */
+    private final List<ChatBotListener> listeners = new CopyOnWriteArrayList<ChatBotListener>();
+
+    /**
+     * Forwards events of the wrapped bot to the listeners of this bot.
+     */
+    private final ChatBotListener forwarder = new ChatBotListener() {
+
+        @Override
+        public void connectionStateChanged(ConnectionState state) {
+            for (ChatBotListener l : listeners) {
+                l.connectionStateChanged(state);
+            }
+        }
+
+        @Override
+        public void userStatusChanged(String userId, UserStatus status) {
+            for (ChatBotListener l : listeners) {
+                l.userStatusChanged(userId, status);
+            }
+        }
+
+        @Override
+        public void messageReceived(String senderId, String msg) {
+            for (ChatBotListener l : listeners) {
+                l.messageReceived(senderId, msg);
+            }
+        }
+
+        @Override
+        public void messageUndelivered(String recipientId, String msg) {
+            for (ChatBotListener l : listeners) {
+                l.messageUndelivered(recipientId, msg);
+            }
+        }
+
+        @Override
+        public void messageUnconfirmed(final String recipientId, final String msg, final Runnable resend) {
+            // queued like any other message, so it is subject to the same limits
+            ListenableFuture<Void> future = enqueue(Collections.singleton(recipientId), new OutboundMessage(
+                    recipientId, Priority.NORMAL) {
+
+                @Override
+                protected void deliver(ChatBot bot) {
+                    resend.run();
+                }
+            });
+            Futures.addCallback(future, new FutureCallback<Void>() {
+
+                @Override
+                public void onSuccess(Void result) {
+                    // the task itself reports failures
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    // not queued, so the message is not send again
+                    messageUndelivered(recipientId, msg);
+                }
+            });
+        }
+    };
+
+    /**
+     * Notified when the wrapped bot is replaced.
+     */
+    private final Object stateLock = new Object();
+
+    /**
+     * The queues of the messages that wait to be send, by priority.
+     */
+    private final Map<Priority, Lane> lanes = new EnumMap<Priority, Lane>(Priority.class);
+
+    /**
+     * The workers that drain the queues.
+     */
+    private final List<Worker> workers = new ArrayList<Worker>();
+
+    /**
+     * Merges messages to the same recipient, {@code null} if disabled.
+     */
+    @Nullable
+    private volatile MessageCoalescer coalescer;
+
+    /**
+     * Limits the number of messages that are send, {@code null} if unlimited.
+     */
+    @Nullable
+    private volatile TokenBucket globalLimit;
+
+    /**
+     * Limits the number of messages that are send to each recipient,
+     * {@code null} if unlimited.
+     */
+    @Nullable
+    private volatile TokenBuckets recipientLimit;
+
+    /**
+     * Whether this bot still accepts messages.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Initializes this bot and starts the worker threads.
+     *
+     * @param delegate
+     *            the bot that should send the messages
+     * @param capacity
+     *            the maximum number of messages of each priority that may
+     *            wait to be send
+     */
+    public QueuedChatBot(ChatBot delegate, int capacity) {
+        this.delegate = delegate;
+        delegate.addListener(forwarder);
+
+        Worker urgent = new Worker("XMPPChat-Outbound-Urgent", capacity);
+        Worker regular = new Worker("XMPPChat-Outbound", capacity);
+        lanes.put(Priority.URGENT, new Lane(urgent, capacity, 1));
+        lanes.put(Priority.NORMAL, new Lane(regular, capacity, NORMAL_WEIGHT));
+        lanes.put(Priority.BULK, new Lane(regular, capacity, BULK_WEIGHT));
+        workers.add(urgent);
+        workers.add(regular);
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Replaces the wrapped bot. Messages that are queued afterwards are send
+     * through the given bot. The previous bot is closed by the workers once
+     * the messages that are currently being send through it, if any, have
+     * been send.
+     * 
+     * @param next
+     *            the new bot, should already be connected
+     */
+    public void handover(ChatBot next) {
+        ChatBot previous;
+        synchronized (stateLock) {
+            if (!running) {
+                // closeConnection() was already called
+                next.closeConnection();
+                return;
+            }
+            previous = delegate;
+            delegate = next;
+            stateLock.notifyAll();
+        }
+        if (previous != next) {
+            previous.removeListener(forwarder);
+            next.addListener(forwarder);
+            retired.add(previous);
+            // the state of the new bot may differ from the previous one
+            forwarder.connectionStateChanged(next.getConnectionState());
+        }
+    }
+
+    /**
+     * Closes the bots that have been replaced and that no worker sends
+     * through anymore.
+     */
+    private void closeRetired() {
+        for (ChatBot bot : retired) {
+            if (!isInUse(bot)) {
+                // only the worker that removes the bot closes it
+                if (retired.remove(bot)) {
+                    bot.closeConnection();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether a worker currently sends through the given bot.
+     *
+     * @param bot
+     *            the bot
+     * @return whether the bot is in use
+     */
+    private boolean isInUse(ChatBot bot) {
+        for (Worker worker : workers) {
+            if (worker.inUse == bot) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Enables merging of messages to the same recipient that are send within
+     * the given window. Messages that are currently held back are send
+     * immediately.
+     *
+     * @param window
+     *            the time in milliseconds to wait for further messages, zero
+     *            to disable merging
+     * @param maxDelay
+     *            the maximum time in milliseconds a message is held back
+     * @param maxLength
+     *            the maximum length of a merged message
+     */
+    public void setCoalescing(long window, long maxDelay, int maxLength) {
+        MessageCoalescer next = null;
+        if (window > 0) {
+            next = new MessageCoalescer(new MessageCoalescer.Sink() {
+
+                @Override
+                public ListenableFuture<Void> send(String recipientId, String msg) {
+                    return sendImmediately(recipientId, msg, Priority.NORMAL);
+                }
+            }, window, maxDelay, maxLength);
+        }
+        MessageCoalescer previous = coalescer;
+        coalescer = next;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Sets the limits for the number of messages that are queued. Messages
+     * that exceed the limits fail with an {@link OverloadException}.
+     *
+     * @param global
+     *            the limit for all messages, {@code null} if unlimited
+     * @param perRecipient
+     *            the limit for the messages to each recipient, {@code null} if
+     *            unlimited
+     */
+    public void setRateLimits(@Nullable TokenBucket global, @Nullable TokenBuckets perRecipient) {
+        globalLimit = global;
+        recipientLimit = perRecipient;
+    }
+
+    /**
+     * Takes the tokens necessary to send a message to the given recipients.
+     * If a limit is exceeded, the tokens that were already taken are returned.
+     *
+     * @param global
+     *            the limit for all messages, {@code null} if unlimited
+     * @param perRecipient
+     *            the limit for each recipient, {@code null} if unlimited
+     * @param recipientIds
+     *            the identifiers of the recipients, empty for rooms
+     * @return an exception that describes the exceeded limit or {@code null}
+     *         if the message may be send
+     */
+    @Nullable
+    private static OverloadException acquire(@Nullable TokenBucket global, @Nullable TokenBuckets perRecipient,
+            Collection<String> recipientIds) {
+        if (global != null && !global.tryAcquire()) {
+            return new OverloadException("Too many messages are send at the moment.");
+        }
+        if (perRecipient != null) {
+            List<String> taken = new ArrayList<String>(recipientIds.size());
+            for (String recipientId : recipientIds) {
+                if (!perRecipient.tryAcquire(recipientId)) {
+                    release(global, perRecipient, taken);
+                    return new OverloadException("Too many messages are send to '" + recipientId + "'.");
+                }
+                taken.add(recipientId);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the tokens taken for a message that is not send.
+     *
+     * @param global
+     *            the limit for all messages, {@code null} if unlimited
+     * @param perRecipient
+     *            the limit for each recipient, {@code null} if unlimited
+     * @param recipientIds
+     *            the identifiers of the recipients whose tokens were taken
+     */
+    private static void release(@Nullable TokenBucket global, @Nullable TokenBuckets perRecipient,
+            Collection<String> recipientIds) {
+        if (global != null) {
+            global.release();
+        }
+        if (perRecipient != null) {
+            for (String recipientId : recipientIds) {
+                perRecipient.release(recipientId);
+            }
+        }
+    }
+
+    /**
+     * Queues the given message for the given recipient. The returned future
+     * completes once the message has been send or fails with a
+     * {@link BotException} if it could not be send. If the queue is full or a
+     * limit is exceeded, the future fails immediately with an
+     * {@link OverloadException}.
+     * 
+     * <p>
+     * If coalescing is enabled, the message may be merged with other messages
+     * to the same recipient.
+     * </p>
+     *
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param msg
+     *            the message
+     * @return a future that completes once the message has been send
+     * @see #setCoalescing(long, long, int)
+     */
+    public ListenableFuture<Void> sendMessageAsync(String recipientId, String msg) {
+        return sendMessageAsync(recipientId, msg, Priority.NORMAL);
+    }
+
+    /**
+     * Queues the given message for the given recipient with the given
+     * priority. Only messages with normal priority are merged.
+     *
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param msg
+     *            the message
+     * @param priority
+     *            the priority
+     * @return a future that completes once the message has been send
+     * @see #sendMessageAsync(String, String)
+     */
+    public ListenableFuture<Void> sendMessageAsync(String recipientId, String msg, Priority priority) {
+        MessageCoalescer current = coalescer;
+        if (current != null && running && priority == Priority.NORMAL) {
+            return current.add(recipientId, msg);
+        }
+        return sendImmediately(recipientId, msg, priority);
+    }
+
+    /**
+     * Queues the given message for the given recipient without merging it.
+     *
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param msg
+     *            the message
+     * @param priority
+     *            the priority
+     * @return a future that completes once the message has been send
+     */
+    private ListenableFuture<Void> sendImmediately(final String recipientId, final String msg, Priority priority) {
+        return enqueue(Collections.singleton(recipientId), new OutboundMessage(recipientId, priority) {
+
+            @Override
+            protected void deliver(ChatBot bot) throws BotException {
+                bot.sendMessage(recipientId, msg);
+            }
+        });
+    }
+
+    /**
+     * Queues the given message for all given recipients. The message is send
+     * as a whole, so the returned future completes once it has been send to
+     * all recipients or fails if it could not be send.
+     *
+     * @param recipientIds
+     *            the identifiers of the recipients
+     * @param msg
+     *            the message
+     * @return a future that completes once the message has been send
+     * @see #sendMessageAsync(String, String)
+     */
+    public ListenableFuture<Void> sendMessageAsync(Collection<String> recipientIds, String msg) {
+        return sendMessageAsync(recipientIds, msg, Priority.NORMAL);
+    }
+
+    /**
+     * Queues the given message for all given recipients with the given
+     * priority.
+     *
+     * <p>
+     * If coalescing is enabled, messages with normal priority are merged per
+     * recipient like messages to a single recipient, as the fan-out to the
+     * users of an alias is the main source of bursts. They are then send to
+     * each recipient separately instead of as one multi-recipient message. If
+     * some recipients fail, the future fails with a
+     * {@link PartialDeliveryException} that names them.
+     * </p>
+     *
+     * @param recipientIds
+     *            the identifiers of the recipients
+     * @param msg
+     *            the message
+     * @param priority
+     *            the priority
+     * @return a future that completes once the message has been send
+     * @see #sendMessageAsync(Collection, String)
+     */
+    public ListenableFuture<Void> sendMessageAsync(Collection<String> recipientIds, final String msg,
+            Priority priority) {
+        if (recipientIds.size() == 1) {
+            return sendMessageAsync(recipientIds.iterator().next(), msg, priority);
+        }
+        MessageCoalescer current = coalescer;
+        if (current != null && running && priority == Priority.NORMAL) {
+            List<String> recipients = new ArrayList<String>(recipientIds);
+            List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>(recipients.size());
+            for (String recipientId : recipients) {
+                futures.add(current.add(recipientId, msg));
+            }
+            return combine(recipients, futures);
+        }
+        final List<String> recipients = new ArrayList<String>(recipientIds);
+        return enqueue(recipients, new OutboundMessage(recipients.toString(), priority) {
+
+            @Override
+            protected void deliver(ChatBot bot) throws BotException {
+                bot.sendMessage(recipients, msg);
+            }
+
+            @Override
+            protected void retainRecipients(Collection<String> remaining) {
+                recipients.retainAll(remaining);
+            }
+
+            @Override
+            protected boolean isConnecting(ChatBot bot) {
+                for (String recipientId : recipients) {
+                    if (bot.getConnectionState(recipientId) == ConnectionState.CONNECTING) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        });
+    }
+
+    /**
+     * Combines the futures of a message that is send to each recipient
+     * separately. The combined future fails with the failure of the
+     * recipients if all failed and with a {@link PartialDeliveryException}
+     * that names the failed recipients otherwise.
+     *
+     * @param recipients
+     *            the identifiers of the recipients
+     * @param futures
+     *            the future of each recipient, in the same order
+     * @return the combined future
+     */
+    private static ListenableFuture<Void> combine(final List<String> recipients, List<ListenableFuture<Void>> futures) {
+        final SettableFuture<Void> combined = SettableFuture.create();
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        for (int i = 0; i < futures.size(); i++) {
+            final String recipientId = recipients.get(i);
+            Futures.addCallback(futures.get(i), new FutureCallback<Void>() {
+
+                @Override
+                public void onSuccess(Void result) {
+                    complete();
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    failed.add(recipientId);
+                    failure.set(t);
+                    complete();
+                }
+
+                /**
+                 * Completes the combined future once all futures completed.
+                 */
+                private void complete() {
+                    if (remaining.decrementAndGet() > 0) {
+                        return;
+                    }
+                    if (failed.isEmpty()) {
+                        combined.set(null);
+                    } else if (failed.size() == recipients.size()) {
+                        // e.g. an OverloadException, as if send as a whole
+                        combined.setException(failure.get());
+                    } else {
+                        combined.setException(new PartialDeliveryException(failed, failure.get()));
+                    }
+                }
+            });
+        }
+        return combined;
+    }
+
+    /**
+     * Queues the given message for the given group chat room.
+     *
+     * @param roomId
+     *            the identifier of the room
+     * @param msg
+     *            the message
+     * @return a future that completes once the message has been send
+     * @see #sendMessageAsync(String, String)
+     */
+    public ListenableFuture<Void> sendRoomMessageAsync(String roomId, String msg) {
+        return sendRoomMessageAsync(roomId, msg, Priority.NORMAL);
+    }
+
+    /**
+     * Queues the given message for the given group chat room with the given
+     * priority.
+     *
+     * @param roomId
+     *            the identifier of the room
+     * @param msg
+     *            the message
+     * @param priority
+     *            the priority
+     * @return a future that completes once the message has been send
+     * @see #sendMessageAsync(String, String)
+     */
+    public ListenableFuture<Void> sendRoomMessageAsync(final String roomId, final String msg, Priority priority) {
+        return enqueue(Collections.<String> emptySet(), new OutboundMessage(roomId, priority) {
+
+            @Override
+            protected void deliver(ChatBot bot) throws BotException {
+                bot.sendRoomMessage(roomId, msg);
+            }
+        });
+    }
+
+    /**
+     * Adds the given message to the queue unless a limit is exceeded.
+     *
+     * @param recipientIds
+     *            the identifiers of the recipients, empty for rooms
+     * @param message
+     *            the message
+     * @return the future of the message
+     */
+    private ListenableFuture<Void> enqueue(Collection<String> recipientIds, OutboundMessage message) {
+        if (!running) {
+            message.drop(new BotException("The bot has been shut down."));
+            return message.future;
+        }
+        // a full queue must not use up the tokens of messages that could pass
+        if (message.lane.queue.remainingCapacity() == 0) {
+            message.drop(new OverloadException("The outbound queue is full."));
+            return message.future;
+        }
+        TokenBucket global = globalLimit;
+        TokenBuckets perRecipient = recipientLimit;
+        OverloadException overload = acquire(global, perRecipient, recipientIds);
+        if (overload != null) {
+            message.drop(overload);
+        } else if (!message.lane.offer(message, false)) {
+            // filled up in the meantime, the caller has to try again later
+            release(global, perRecipient, recipientIds);
+            message.drop(new OverloadException("The outbound queue is full."));
+        } else if (!running && message.lane.queue.remove(message)) {
+            // closeConnection() was called while the message was queued
+            message.drop(new BotException("The bot has been shut down."));
+        } else {
+            Metrics.get().increment(Counter.QUEUED);
+        }
+        return message.future;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * This blocks until the queued message has been send. Prefer
+     * {@link #sendMessageAsync(String, String)}.
+     * </p>
+     */
+    @Override
+    public void sendMessage(String recipientId, String msg) throws BotException {
+        await(sendMessageAsync(recipientId, msg));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * This blocks until the queued message has been send. Prefer
+     * {@link #sendMessageAsync(Collection, String)}.
+     * </p>
+     */
+    @Override
+    public void sendMessage(Collection<String> recipientIds, String msg) throws BotException {
+        await(sendMessageAsync(recipientIds, msg));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>
+     * This blocks until the queued message has been send. Prefer
+     * {@link #sendRoomMessageAsync(String, String)}.
+     * </p>
+     */
+    @Override
+    public void sendRoomMessage(String roomId, String msg) throws BotException {
+        await(sendRoomMessageAsync(roomId, msg));
+    }
+
+    /**
+     * Blocks until the given future of a queued message completes.
+     *
+     * @param future
+     *            the future
+     * @throws BotException
+     *             if the message could not be send
+     */
+    private static void await(ListenableFuture<Void> future) throws BotException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BotException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof BotException) {
+                throw (BotException) e.getCause();
+            }
+            throw new BotException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the worker thread, fails all queued messages and closes the
+     * connection of the wrapped bot.
+     */
+    @Override
+    public void closeConnection() {
+        synchronized (stateLock) {
+            running = false;
+        }
+        for (Worker worker : workers) {
+            worker.thread.interrupt();
+        }
+        // the held back messages fail as the bot no longer accepts messages
+        MessageCoalescer current = coalescer;
+        if (current != null) {
+            current.close();
+        }
+
+        List<OutboundMessage> remaining = new ArrayList<OutboundMessage>();
+        for (Lane lane : lanes.values()) {
+            lane.queue.drainTo(remaining);
+        }
+        for (OutboundMessage message : remaining) {
+            message.drop(new BotException("The bot has been shut down."));
+        }
+        if (!remaining.isEmpty()) {
+            CommandBook.logger().warning("Discarded " + remaining.size() + " queued XMPP messages on shutdown.");
+        }
+
+        // the workers are stopped, so the retired bots are closed regardless
+        ChatBot bot = retired.poll();
+        while (bot != null) {
+            bot.closeConnection();
+            bot = retired.poll();
+        }
+        delegate.closeConnection();
+    }
+
+    @Override
+    public ConnectionState getConnectionState() {
+        return delegate.getConnectionState();
+    }
+
+    @Override
+    public ConnectionState getConnectionState(String userId) {
+        return delegate.getConnectionState(userId);
+    }
+
+    /**
+     * Gets the number of messages with the given priority that can currently
+     * be queued before the queue is full. Other threads may queue messages
+     * concurrently, so this is only an estimate.
+     *
+     * @param priority
+     *            the priority
+     * @return the remaining capacity
+     */
+    public int getRemainingCapacity(Priority priority) {
+        return lanes.get(priority).queue.remainingCapacity();
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * The listener stays registered if the wrapped bot is replaced.
+     * </p>
+     */
+    @Override
+    public void addListener(ChatBotListener botListener) {
+        listeners.add(botListener);
+    }
+
+    @Override
+    public void removeListener(ChatBotListener botListener) {
+        listeners.remove(botListener);
+    }
+
+    @Override
+    public UserStatus getUserStatus(String userId) {
+        return delegate.getUserStatus(userId);
+    }
+
+    @Override
+    public void updateBuddyList(Collection<String> userIds, boolean removeNotIncluded) throws BotException {
+        delegate.updateBuddyList(userIds, removeNotIncluded);
+    }
+
+    /**
+     * A message waiting in the queue.
+     */
+    private abstract class OutboundMessage {
+
+        private final String target;
+        private final Lane lane;
+        private final SettableFuture<Void> future = SettableFuture.create();
+        private final long created = System.nanoTime();
+        private int replays;
+
+        /**
+         * Constructs this message.
+         *
+         * @param target
+         *            a description of the recipients, used for logging
+         * @param priority
+         *            the priority of this message
+         */
+        private OutboundMessage(String target, Priority priority) {
+            this.target = target;
+            lane = lanes.get(priority);
+        }
+
+        /**
+         * Sends this message using the given bot.
+         *
+         * @param bot
+         *            the bot
+         * @throws BotException
+         *             if sending the message fails
+         */
+        protected abstract void deliver(ChatBot bot) throws BotException;
+
+        /**
+         * Restricts the recipients of this message to the given ones before
+         * it is send again. Messages to a single recipient or a room ignore
+         * this.
+         *
+         * @param remaining
+         *            the identifiers of the recipients that did not receive
+         *            this message yet
+         */
+        protected void retainRecipients(Collection<String> remaining) {
+            // a single recipient either received the message or not
+        }
+
+        /**
+         * Returns whether the connection to the recipients of this message is
+         * being established, so this message has to wait.
+         *
+         * @param bot
+         *            the wrapped bot
+         * @return whether the connection is being established
+         */
+        protected boolean isConnecting(ChatBot bot) {
+            return bot.getConnectionState(target) == ConnectionState.CONNECTING;
+        }
+
+        /**
+         * Fails this message without an attempt to send it.
+         *
+         * @param cause
+         *            the reason
+         */
+        private void drop(BotException cause) {
+            Metrics.get().increment(Counter.DROPPED);
+            future.setException(cause);
+        }
+
+        /**
+         * Sends this message using the given bot and completes the future.
+         * If the bot lost its connection, the message is put back at the head
+         * of the queue instead.
+         *
+         * @param bot
+         *            the wrapped bot, pinned by the calling worker
+         */
+        private void send(ChatBot bot) {
+            try {
+                deliver(bot);
+                Metrics.get().increment(Counter.SENT);
+                Metrics.get().record(Latency.QUEUE, created);
+                future.set(null);
+            } catch (BotException e) {
+                if (isConnecting(bot) && replays < MAX_REPLAYS && running) {
+                    replays++;
+                    if (e instanceof PartialDeliveryException) {
+                        // the others must not receive the message twice
+                        retainRecipients(((PartialDeliveryException) e).getFailedRecipients());
+                    }
+                    if (lane.offer(this, true) && (running || !lane.queue.remove(this))) {
+                        return;
+                    }
+                }
+                Metrics.get().increment(Counter.FAILED);
+                future.setException(e);
+            } catch (RuntimeException e) {
+                CommandBook.logger().log(Level.SEVERE, "Unexpected error while sending to '" + target + "'.", e);
+                Metrics.get().increment(Counter.FAILED);
+                future.setException(new BotException(e));
+            }
+        }
+    }
+
+    /**
+     * The queue of the messages with a certain priority.
+     */
+    private static final class Lane {
+
+        private final BlockingDeque<OutboundMessage> queue;
+        private final Worker worker;
+        private final int weight;
+
+        /**
+         * The credit of this lane in the weighted round robin of its worker.
+         * Only accessed by the worker.
+         */
+        private int credit;
+
+        /**
+         * Constructs this lane and assigns it to the given worker.
+         *
+         * @param worker
+         *            the worker that drains this lane
+         * @param capacity
+         *            the maximum number of waiting messages
+         * @param weight
+         *            the share of this lane while other lanes of the worker
+         *            are not empty
+         */
+        private Lane(Worker worker, int capacity, int weight) {
+            this.worker = worker;
+            this.weight = weight;
+            queue = new LinkedBlockingDeque<OutboundMessage>(capacity);
+            worker.drained.add(this);
+        }
+
+        /**
+         * Adds the given message to this lane and wakes up the worker.
+         *
+         * @param message
+         *            the message
+         * @param first
+         *            whether the message is added at the head
+         * @return {@code true} if the message was added, {@code false} if the
+         *         lane is full
+         */
+        private boolean offer(OutboundMessage message, boolean first) {
+            boolean added = first ? queue.offerFirst(message) : queue.offer(message);
+            if (added) {
+                worker.available.release();
+            }
+            return added;
+        }
+    }
+
+    /**
+     * A thread that drains one or more lanes.
+     */
+    private final class Worker implements Runnable {
+
+        private final List<Lane> drained = new ArrayList<Lane>();
+        private final Thread thread;
+
+        /**
+         * Messages whose recipients cannot be reached while their connection
+         * is being established, in the order they were taken from the lanes.
+         * Only accessed by this worker.
+         */
+        private final List<OutboundMessage> parked = new ArrayList<OutboundMessage>();
+
+        /**
+         * The maximum number of parked messages. The worker waits for the
+         * connection once it is reached.
+         */
+        private final int maxParked;
+
+        /**
+         * The wrapped bot this worker currently sends through, {@code null}
+         * while it does not send. Retired bots are not closed while in use.
+         */
+        private volatile ChatBot inUse;
+
+        /**
+         * Released once for every message added to the lanes of this worker.
+         */
+        private final Semaphore available = new Semaphore(0);
+
+        /**
+         * Constructs this worker.
+         *
+         * @param name
+         *            the name of the thread
+         * @param maxParked
+         *            the maximum number of messages that wait for their
+         *            connection
+         */
+        private Worker(String name, int maxParked) {
+            this.maxParked = maxParked;
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                closeRetired();
+
+                OutboundMessage message = null;
+                try {
+                    sendParked();
+                    while (parked.size() >= maxParked && running) {
+                        synchronized (stateLock) {
+                            stateLock.wait(POLL_INTERVAL);
+                        }
+                        sendParked();
+                    }
+                    if (!available.tryAcquire(POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                        continue;
+                    }
+                    message = next();
+                    if (message == null) {
+                        // removed by closeConnection()
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    // closeConnection() was called
+                    if (message != null) {
+                        message.drop(new BotException("The bot has been shut down."));
+                    }
+                    break;
+                }
+                ChatBot bot = pin();
+                try {
+                    if (isParked(message.target) || message.isConnecting(bot)) {
+                        parked.add(message);
+                    } else {
+                        message.send(bot);
+                    }
+                } finally {
+                    inUse = null;
+                }
+            }
+            for (OutboundMessage message : parked) {
+                message.drop(new BotException("The bot has been shut down."));
+            }
+            parked.clear();
+        }
+
+        /**
+         * Sends the parked messages whose connection has been established.
+         * Messages to the same target keep their order.
+         */
+        private void sendParked() {
+            if (parked.isEmpty()) {
+                return;
+            }
+            ChatBot bot = pin();
+            try {
+                Set<String> waiting = new HashSet<String>();
+                Iterator<OutboundMessage> it = parked.iterator();
+                while (it.hasNext()) {
+                    OutboundMessage message = it.next();
+                    if (waiting.contains(message.target) || message.isConnecting(bot)) {
+                        waiting.add(message.target);
+                        continue;
+                    }
+                    it.remove();
+                    message.send(bot);
+                }
+            } finally {
+                inUse = null;
+            }
+        }
+
+        /**
+         * Returns whether a message to the given target is parked, so later
+         * messages to it have to wait as well.
+         *
+         * @param target
+         *            the target
+         * @return whether a message to the target is parked
+         */
+        private boolean isParked(String target) {
+            for (OutboundMessage message : parked) {
+                if (message.target.equals(target)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Marks the wrapped bot as in use by this worker. The bot is read
+         * again after it was marked, so a bot that is replaced in the meantime
+         * is either seen as in use by {@link #closeRetired()} or not used.
+         *
+         * @return the wrapped bot
+         */
+        private ChatBot pin() {
+            ChatBot bot;
+            do {
+                bot = delegate;
+                inUse = bot;
+            } while (bot != delegate);
+            return bot;
+        }
+
+        /**
+         * Takes the next message from the lanes using smooth weighted round
+         * robin: every waiting lane earns its weight and the lane with the
+         * most credit pays the weights of all waiting lanes.
+         *
+         * @return the message or {@code null} if all lanes are empty
+         */
+        @Nullable
+        private OutboundMessage next() {
+            Lane selected = null;
+            int total = 0;
+            for (Lane lane : drained) {
+                if (lane.queue.isEmpty()) {
+                    continue;
+                }
+                lane.credit += lane.weight;
+                total += lane.weight;
+                if (selected == null || lane.credit > selected.credit) {
+                    selected = lane;
+                }
+            }
+            if (selected == null) {
+                return null;
+            }
+            selected.credit -= total;
+            return selected.queue.poll();
+        }
+    }
+}
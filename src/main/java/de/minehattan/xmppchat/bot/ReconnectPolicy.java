@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.Random;
+
+/**
+ * Calculates the delay before reconnection attempts using exponential backoff
+ * with random jitter, so that many clients that lost their connection at the
+ * same time do not reconnect at the same time.
+ */
+public class ReconnectPolicy {
+
+    private final long initialDelay;
+    private final long maximumDelay;
+    private final Random random = new Random();
+
+    /**
+     * Constructs this policy.
+     * 
+     * @param initialDelay
+     *            the delay in milliseconds before the first attempt
+     * @param maximumDelay
+     *            the maximum delay in milliseconds between two attempts
+     */
+    public ReconnectPolicy(long initialDelay, long maximumDelay) {
+        this.initialDelay = initialDelay;
+        this.maximumDelay = maximumDelay;
+    }
+
+    /**
+     * Gets the delay before the given attempt. The delay doubles with every
+     * attempt until it reaches the maximum delay. A random jitter of up to
+     * half of the delay is subtracted.
+     * 
+     * @param attempt
+     *            the number of the attempt, starting with {@code 0}
+     * @return the delay in milliseconds
+     */
+    public long getDelay(int attempt) {
+        long delay = maximumDelay;
+        // avoid overflows for large attempts
+        if (attempt < 31) {
+            delay = Math.min(maximumDelay, initialDelay << attempt);
+        }
+        long jitter = (long) (random.nextDouble() * (delay / 2));
+        return delay - jitter;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jivesoftware.smack.Roster;
+import org.jivesoftware.smack.RosterEntry;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sk89q.commandbook.CommandBook;
+
+/**
+ * Synchronizes a roster with a set of users. Only the differences between the
+ * roster and the given users are send to the server, and up to a certain
+ * number of requests are in flight at the same time instead of waiting for
+ * each response before sending the next request.
+ */
+class RosterSynchronizer {
+
+    /**
+     * The maximum number of roster requests that wait for a response at the
+     * same time.
+     */
+    private static final int MAX_IN_FLIGHT = 8;
+
+    /**
+     * The number of completed requests after which the progress is logged.
+     */
+    private static final int PROGRESS_INTERVAL = 100;
+
+    private final Roster roster;
+
+    /**
+     * Constructs this synchronizer.
+     * 
+     * @param roster
+     *            the roster to synchronize
+     */
+    RosterSynchronizer(Roster roster) {
+        this.roster = roster;
+    }
+
+    /**
+     * Adds all given users that are not on the roster and, optionally, removes
+     * all entries that are not among the given users. Blocks until all
+     * requests have been answered.
+     * 
+     * @param userIds
+     *            the identifiers of the users that should be on the roster
+     * @param removeNotIncluded
+     *            whether entries not included in {@code userIds} should be
+     *            removed
+     * @throws BotException
+     *             if at least one request failed
+     */
+    void synchronize(Collection<String> userIds, boolean removeNotIncluded) throws BotException {
+        Set<String> wanted = new HashSet<String>();
+        for (String userId : userIds) {
+            wanted.add(userId.toLowerCase(Locale.ENGLISH));
+        }
+
+        // compute the minimal difference
+        Map<String, RosterEntry> existing = new HashMap<String, RosterEntry>();
+        for (RosterEntry entry : roster.getEntries()) {
+            existing.put(entry.getUser().toLowerCase(Locale.ENGLISH), entry);
+        }
+        List<Operation> operations = new ArrayList<Operation>();
+        for (String userId : userIds) {
+            String key = userId.toLowerCase(Locale.ENGLISH);
+            if (!existing.containsKey(key)) {
+                operations.add(new AddOperation(userId));
+                // do not add the same user twice if it is given twice
+                existing.put(key, null);
+            }
+        }
+        if (removeNotIncluded) {
+            for (Map.Entry<String, RosterEntry> entry : existing.entrySet()) {
+                if (entry.getValue() != null && !wanted.contains(entry.getKey())) {
+                    operations.add(new RemoveOperation(entry.getValue()));
+                }
+            }
+        }
+        if (operations.isEmpty()) {
+            return;
+        }
+
+        execute(operations);
+    }
+
+    /**
+     * Executes the given operations with a bounded number of requests in
+     * flight.
+     * 
+     * @param operations
+     *            the operations
+     * @throws BotException
+     *             if at least one operation failed
+     */
+    private void execute(List<Operation> operations) throws BotException {
+        CommandBook.logger().info("Updating the buddy list: " + operations.size() + " changes.");
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(MAX_IN_FLIGHT, operations.size()),
+                new ThreadFactoryBuilder().setNameFormat("XMPPChat-Roster-%d").setDaemon(true).build());
+        CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+        for (Operation operation : operations) {
+            completion.submit(operation, null);
+        }
+
+        int failed = 0;
+        Throwable firstFailure = null;
+        try {
+            for (int done = 1; done <= operations.size(); done++) {
+                try {
+                    completion.take().get();
+                } catch (ExecutionException e) {
+                    failed++;
+                    if (firstFailure == null) {
+                        firstFailure = e.getCause();
+                    }
+                }
+                if (done % PROGRESS_INTERVAL == 0) {
+                    CommandBook.logger().info("Updating the buddy list: " + done + "/" + operations.size() + " done.");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BotException("Interrupted while updating the buddy list.", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failed > 0) {
+            throw new BotException(failed + " of " + operations.size() + " changes to the buddy list failed.",
+                    firstFailure);
+        }
+        CommandBook.logger().info("Updated the buddy list.");
+    }
+
+    /**
+     * A single change of the roster.
+     */
+    private abstract static class Operation implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                perform();
+            } catch (Exception e) {
+                throw new OperationFailedException(toString(), e);
+            }
+        }
+
+        /**
+         * Sends the request and waits for the response.
+         * 
+         * @throws Exception
+         *             if the request fails
+         */
+        abstract void perform() throws Exception;
+    }
+
+    /**
+     * Adds a user to the roster.
+     */
+    private final class AddOperation extends Operation {
+        private final String userId;
+
+        /**
+         * Constructs this operation.
+         * 
+         * @param userId
+         *            the identifier of the user to add
+         */
+        private AddOperation(String userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        void perform() throws Exception {
+            roster.createEntry(userId, userId, null);
+        }
+
+        @Override
+        public String toString() {
+            return "Failed to add '" + userId + "' to the buddy list.";
+        }
+    }
+
+    /**
+     * Removes an entry from the roster.
+     */
+    private final class RemoveOperation extends Operation {
+        private final RosterEntry entry;
+
+        /**
+         * Constructs this operation.
+         * 
+         * @param entry
+         *            the entry to remove
+         */
+        private RemoveOperation(RosterEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        void perform() throws Exception {
+            roster.removeEntry(entry);
+        }
+
+        @Override
+        public String toString() {
+            return "Failed to remove '" + entry.getUser() + "' from the buddy list.";
+        }
+    }
+
+    /**
+     * Thrown if an operation fails.
+     */
+    private static class OperationFailedException extends RuntimeException {
+
+        private static final long serialVersionUID = -4185392873004918374L;
+
+        /**
+         * Constructs this exception.
+         * 
+         * @param message
+         *            the message
+         * @param cause
+         *            the cause
+         */
+        OperationFailedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
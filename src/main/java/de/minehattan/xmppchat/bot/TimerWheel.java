@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * A hashed timer wheel that tracks timeouts of many keys. Adding and removing
+ * a timeout takes constant time, regardless of the number of pending
+ * timeouts, at the cost of expiring timeouts with the precision of one tick.
+ * 
+ * <p>
+ * The wheel does not run on its own, {@link #advance()} has to be called once
+ * per tick.
+ * </p>
+ * 
+ * @param <T>
+ *            the type of the values attached to the timeouts
+ */
+class TimerWheel<T> {
+
+    private final List<Set<Timeout<T>>> slots;
+    private final Map<String, Timeout<T>> timeouts = new HashMap<String, Timeout<T>>();
+    private final long tickDuration;
+    private int cursor;
+
+    /**
+     * Constructs this wheel.
+     * 
+     * @param slotCount
+     *            the number of slots, timeouts that are further away than one
+     *            rotation wait for additional rotations
+     * @param tickDuration
+     *            the duration of a tick in milliseconds
+     */
+    TimerWheel(int slotCount, long tickDuration) {
+        this.tickDuration = tickDuration;
+        slots = new ArrayList<Set<Timeout<T>>>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new LinkedHashSet<Timeout<T>>());
+        }
+    }
+
+    /**
+     * Adds a timeout for the given key, replacing any existing timeout.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the value returned once the timeout expires
+     * @param delay
+     *            the time in milliseconds until the timeout expires
+     */
+    synchronized void add(String key, T value, long delay) {
+        remove(key);
+        long ticks = Math.max(1, (delay + tickDuration - 1) / tickDuration);
+        int slot = (int) ((cursor + ticks) % slots.size());
+        Timeout<T> timeout = new Timeout<T>(key, value, (ticks - 1) / slots.size(), slot);
+        slots.get(slot).add(timeout);
+        timeouts.put(key, timeout);
+    }
+
+    /**
+     * Removes the timeout of the given key.
+     * 
+     * @param key
+     *            the key
+     * @return the value of the timeout or {@code null} if there is no
+     *         timeout for the key
+     */
+    @Nullable
+    synchronized T remove(String key) {
+        Timeout<T> timeout = timeouts.remove(key);
+        if (timeout == null) {
+            return null;
+        }
+        slots.get(timeout.slot).remove(timeout);
+        return timeout.value;
+    }
+
+    /**
+     * Advances the wheel by one tick and removes the timeouts that expire.
+     * 
+     * @return the values of the expired timeouts
+     */
+    synchronized List<T> advance() {
+        cursor = (cursor + 1) % slots.size();
+        List<T> expired = new ArrayList<T>();
+        Iterator<Timeout<T>> it = slots.get(cursor).iterator();
+        while (it.hasNext()) {
+            Timeout<T> timeout = it.next();
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                continue;
+            }
+            it.remove();
+            timeouts.remove(timeout.key);
+            expired.add(timeout.value);
+        }
+        return expired;
+    }
+
+    /**
+     * Gets the number of pending timeouts.
+     * 
+     * @return the number of timeouts
+     */
+    synchronized int size() {
+        return timeouts.size();
+    }
+
+    /**
+     * A pending timeout.
+     * 
+     * @param <T>
+     *            the type of the value
+     */
+    private static final class Timeout<T> {
+
+        private final String key;
+        private final T value;
+        private final int slot;
+        private long rounds;
+
+        /**
+         * Constructs this timeout.
+         * 
+         * @param key
+         *            the key
+         * @param value
+         *            the value
+         * @param rounds
+         *            the number of full rotations before the timeout expires
+         * @param slot
+         *            the slot the timeout is stored in
+         */
+        private Timeout(String key, T value, long rounds, int slot) {
+            this.key = key;
+            this.value = value;
+            this.rounds = rounds;
+            this.slot = slot;
+        }
+    }
+}
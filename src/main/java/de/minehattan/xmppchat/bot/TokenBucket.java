@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket that allows bursts up to its capacity and refills
+ * at a constant rate.
+ * 
+ * <p>
+ * Instead of the number of tokens, the bucket stores the time at which it
+ * would be empty again if no further tokens were taken (the generic cell rate
+ * algorithm), so a single compare-and-set suffices to take a token.
+ * </p>
+ */
+public class TokenBucket {
+
+    /**
+     * The time in nanoseconds it takes to refill one token.
+     */
+    private final long interval;
+
+    /**
+     * The time in nanoseconds it takes to refill the whole bucket.
+     */
+    private final long burst;
+
+    /**
+     * The time in nanoseconds at which all taken tokens have been refilled.
+     */
+    private final AtomicLong refilledAt;
+
+    /**
+     * Constructs a full bucket.
+     * 
+     * @param capacity
+     *            the maximum number of tokens
+     * @param perMinute
+     *            the number of tokens that are refilled every minute
+     */
+    public TokenBucket(int capacity, int perMinute) {
+        if (capacity < 1 || perMinute < 1) {
+            throw new IllegalArgumentException("The capacity and the rate must be positive.");
+        }
+        interval = TimeUnit.MINUTES.toNanos(1) / perMinute;
+        burst = interval * capacity;
+        refilledAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token if one is available.
+     * 
+     * @return {@code true} if a token was taken
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            long now = System.nanoTime();
+            long current = refilledAt.get();
+            long next = Math.max(current - now, 0) + now + interval;
+            if (next - now > burst) {
+                return false;
+            }
+            if (refilledAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns a token that was taken but not used. The bucket never holds
+     * more than its capacity.
+     */
+    public void release() {
+        while (true) {
+            long now = System.nanoTime();
+            long current = refilledAt.get();
+            if (current - now <= 0) {
+                // already full
+                return;
+            }
+            if (refilledAt.compareAndSet(current, current - interval)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks whether all tokens are available.
+     * 
+     * @return {@code true} if the bucket is full
+     */
+    public boolean isFull() {
+        return refilledAt.get() - System.nanoTime() <= 0;
+    }
+}
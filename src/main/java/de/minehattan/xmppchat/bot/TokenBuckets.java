@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Token buckets with the same limits that are kept separately per key, for
+ * example per user. Buckets that are full again are discarded from time to
+ * time, as they are equivalent to new ones.
+ * 
+ * @see TokenBucket
+ */
+public class TokenBuckets {
+
+    /**
+     * The number of acquisitions after which full buckets are discarded.
+     */
+    private static final int PURGE_INTERVAL = 1024;
+
+    private final int capacity;
+    private final int perMinute;
+    private final ConcurrentMap<String, TokenBucket> buckets = new ConcurrentHashMap<String, TokenBucket>();
+    private final AtomicInteger acquisitions = new AtomicInteger();
+
+    /**
+     * Constructs this instance.
+     * 
+     * @param capacity
+     *            the maximum number of tokens per key
+     * @param perMinute
+     *            the number of tokens that are refilled every minute per key
+     */
+    public TokenBuckets(int capacity, int perMinute) {
+        if (capacity < 1 || perMinute < 1) {
+            throw new IllegalArgumentException("The capacity and the rate must be positive.");
+        }
+        this.capacity = capacity;
+        this.perMinute = perMinute;
+    }
+
+    /**
+     * Takes a token from the bucket of the given key if one is available.
+     * Keys are case-insensitive.
+     * 
+     * @param key
+     *            the key
+     * @return {@code true} if a token was taken
+     */
+    public boolean tryAcquire(String key) {
+        if (acquisitions.incrementAndGet() % PURGE_INTERVAL == 0) {
+            purge();
+        }
+        key = key.toLowerCase(Locale.ENGLISH);
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            TokenBucket created = new TokenBucket(capacity, perMinute);
+            bucket = buckets.putIfAbsent(key, created);
+            if (bucket == null) {
+                bucket = created;
+            }
+        }
+        return bucket.tryAcquire();
+    }
+
+    /**
+     * Returns a token that was taken from the bucket of the given key but not
+     * used.
+     * 
+     * @param key
+     *            the key
+     */
+    public void release(String key) {
+        TokenBucket bucket = buckets.get(key.toLowerCase(Locale.ENGLISH));
+        if (bucket != null) {
+            bucket.release();
+        }
+    }
+
+    /**
+     * Discards all buckets that are full.
+     */
+    private void purge() {
+        Iterator<TokenBucket> it = buckets.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isFull()) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -18,12 +18,26 @@
  */
 package de.minehattan.xmppchat.bot;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
+import javax.annotation.Nullable;
 import javax.net.ssl.SSLContext;
 
-import org.bukkit.ChatColor;
+import org.jivesoftware.smack.AbstractConnectionListener;
 import org.jivesoftware.smack.Chat;
 import org.jivesoftware.smack.ChatManager;
 import org.jivesoftware.smack.ChatManagerListener;
@@ -31,25 +45,63 @@ import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.MessageListener;
 import org.jivesoftware.smack.Roster;
 import org.jivesoftware.smack.RosterEntry;
+import org.jivesoftware.smack.RosterListener;
 import org.jivesoftware.smack.SASLAuthentication;
+import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
 import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.rosterstore.DirectoryRosterStore;
+import org.jivesoftware.smack.rosterstore.RosterStore;
 import org.jivesoftware.smack.tcp.XMPPTCPConnection;
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smackx.address.MultipleRecipientManager;
+import org.jivesoftware.smackx.muc.DiscussionHistory;
+import org.jivesoftware.smackx.muc.MultiUserChat;
+import org.jivesoftware.smackx.receipts.DeliveryReceiptManager;
+import org.jivesoftware.smackx.receipts.ReceiptReceivedListener;
+import org.jivesoftware.smackx.xhtmlim.XHTMLManager;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sk89q.commandbook.CommandBook;
 import com.zachsthings.libcomponents.config.ConfigurationBase;
 
+import de.minehattan.xmppchat.metrics.Metrics;
+import de.minehattan.xmppchat.metrics.Metrics.Counter;
+import de.minehattan.xmppchat.metrics.Metrics.Latency;
+
 /**
  * A bot for XMPP servers that uses the Smack library for communication.
  */
 public class XMPPBot extends ConfigurationBase implements ChatBot {
 
+    /**
+     * The maximum number of chat sessions that are kept open.
+     */
+    private static final int MAX_CACHED_CHATS = 64;
+
+    /**
+     * The time in milliseconds after which an unused chat session is closed.
+     */
+    private static final long CHAT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * The maximum number of rendered messages that are cached.
+     */
+    private static final int MAX_RENDERED_MESSAGES = 256;
+
+    /**
+     * The policy used to reconnect after the connection was lost.
+     */
+    private static final ReconnectPolicy RECONNECT_POLICY = new ReconnectPolicy(TimeUnit.SECONDS.toMillis(1),
+            TimeUnit.MINUTES.toMillis(5));
+
     /**
      * The connection between this bot and the XMPP server.
      */
-    private XMPPConnection connection;
+    private final XMPPConnection connection;
 
     /**
      * The message listener used by this bot.
@@ -62,7 +114,86 @@ public class XMPPBot extends ConfigurationBase implements ChatBot {
     private Roster roster;
 
     /**
-     * Initializes this bot and connects it.
+     * Held while the buddy list is updated.
+     */
+    private final Object rosterLock = new Object();
+
+    /**
+     * The chat sessions used to send messages.
+     */
+    private final ChatSessionCache chats;
+
+    /**
+     * Translates the color codes of messages.
+     */
+    private final ColorRenderer renderer = new ColorRenderer(MAX_RENDERED_MESSAGES);
+
+    /**
+     * Tracks delivery receipts, {@code null} if receipts are disabled.
+     */
+    @Nullable
+    private volatile DeliveryTracker deliveries;
+
+    /**
+     * Limits the automatic responses to one per minute for every sender.
+     */
+    private final TokenBuckets replyLimit = new TokenBuckets(1, 1);
+
+    /**
+     * The group chat rooms this bot has joined, keyed by the identifier of the
+     * room. Guarded by itself.
+     */
+    private final Map<String, MultiUserChat> rooms = new HashMap<String, MultiUserChat>();
+
+    /**
+     * Incremented whenever {@link #rooms} is cleared, so rooms joined before
+     * are not published afterwards. Guarded by {@link #rooms}.
+     */
+    private int roomGeneration;
+
+    /**
+     * The last known status of every user on the buddy list, keyed by the
+     * lower-case bare address. Updated by the roster when presences change.
+     */
+    private final ConcurrentMap<String, UserStatus> statuses = new ConcurrentHashMap<String, UserStatus>();
+
+    /**
+     * The state of the connection. New bots are connecting until
+     * {@link #connect()} returns or fails.
+     */
+    private volatile ConnectionState state = ConnectionState.CONNECTING;
+
+    /**
+     * The listeners that are notified about events of this bot.
+     */
+    private final List<ChatBotListener> listeners = new CopyOnWriteArrayList<ChatBotListener>();
+
+    /**
+     * Whether {@link #closeConnection()} has been called.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The number of failed reconnection attempts since the connection was
+     * lost. Only accessed by the reconnect thread.
+     */
+    private int reconnectAttempts;
+
+    /**
+     * Schedules reconnection attempts.
+     */
+    private final ScheduledExecutorService reconnector = Executors
+            .newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("XMPPChat-Reconnect-%d")
+                    .setDaemon(true).build());
+
+    private final String username;
+    private final String password;
+    private final String resource;
+    private final String statusMessage;
+
+    /**
+     * Initializes this bot. The bot does not connect until {@link #connect()}
+     * is called.
      * 
      * @param xmppServer
      *            the address of the XMPP server
@@ -79,56 +210,171 @@ public class XMPPBot extends ConfigurationBase implements ChatBot {
      *            the response the bot gives when he receives messages
      * @param statusMessage
      *            the status message the bit displays
-     * @throws BotException
-     *             if no connection to the server could be established
+     * @param rosterDirectory
+     *            the directory the buddy list is cached in, {@code null} to
+     *            disable the cache
      */
     public XMPPBot(String xmppServer, SSLContext sslContext, String username, String password, String resource,
-            final String botResponse, String statusMessage) throws BotException {
+            String botResponse, String statusMessage, @Nullable File rosterDirectory) {
+        this(createConnection(xmppServer, sslContext, rosterDirectory), username, password, resource, botResponse,
+                statusMessage);
+    }
+
+    /**
+     * Initializes this bot with the given connection, which must not be
+     * connected yet.
+     * 
+     * @param connection
+     *            the connection to the XMPP server
+     * @param username
+     *            the name of the XMPP user
+     * @param password
+     *            the corresponding password
+     * @param resource
+     *            the resource the bot should use
+     * @param botResponse
+     *            the response the bot gives when he receives messages
+     * @param statusMessage
+     *            the status message the bit displays
+     */
+    XMPPBot(XMPPConnection connection, String username, String password, String resource, final String botResponse,
+            String statusMessage) {
+        this.connection = connection;
+        this.username = username;
+        this.password = password;
+        this.resource = resource;
+        this.statusMessage = statusMessage;
+
         listener = new MessageListener() {
             @Override
             public void processMessage(Chat chat, Message message) {
                 // ignore null messages that are apparently send by some
                 // clients when the chat is closed
-                if (message.getBody() != null) {
-                    try {
-                        chat.sendMessage(botResponse);
-                    } catch (Exception e) {
-                        CommandBook.logger()
-                                .log(Level.SEVERE,
-                                        "Failed to send automatic response to " + chat.getParticipant() + ": "
-                                                + e.getMessage());
-                    }
+                if (message.getBody() == null) {
+                    return;
+                }
+                String senderId = StringUtils.parseBareAddress(chat.getParticipant());
+                for (ChatBotListener l : listeners) {
+                    l.messageReceived(senderId, message.getBody());
+                }
 
+                if (botResponse.isEmpty() || !replyLimit.tryAcquire(senderId)) {
+                    return;
+                }
+                try {
+                    chat.sendMessage(botResponse);
+                } catch (Exception e) {
+                    CommandBook.logger().log(Level.SEVERE,
+                            "Failed to send automatic response to " + chat.getParticipant() + ": " + e.getMessage());
                 }
             }
         };
 
+        chats = new ChatSessionCache(connection, listener, MAX_CACHED_CHATS, CHAT_IDLE_TIMEOUT);
+        connection.addConnectionListener(new AbstractConnectionListener() {
+
+            @Override
+            public void connectionClosedOnError(Exception e) {
+                CommandBook.logger().log(Level.WARNING, "Lost the connection to the XMPP server: " + e.getMessage());
+                handleConnectionLoss();
+            }
+        });
+    }
+
+    /**
+     * Creates the connection to the given XMPP server.
+     * 
+     * @param xmppServer
+     *            the address of the XMPP server
+     * @param sslContext
+     *            the SSLContext used to authenticate the connection
+     * @param rosterDirectory
+     *            the directory the buddy list is cached in, {@code null} to
+     *            disable the cache
+     * @return the connection, not connected yet
+     */
+    private static XMPPConnection createConnection(String xmppServer, SSLContext sslContext,
+            @Nullable File rosterDirectory) {
         ConnectionConfiguration conf = new ConnectionConfiguration(xmppServer);
         conf.setCustomSSLContext(sslContext);
+        // reconnection is handled by this bot
+        conf.setReconnectionAllowed(false);
+        if (rosterDirectory != null) {
+            RosterStore rosterStore = openRosterStore(rosterDirectory);
+            if (rosterStore != null) {
+                conf.setRosterStore(rosterStore);
+            }
+        }
 
         // set MD5 as first security protocol to check
         SASLAuthentication.supportSASLMechanism("DIGEST-MD5", 0);
 
+        return new XMPPTCPConnection(conf);
+    }
+
+    /**
+     * Opens the buddy list cache in the given directory. If the server
+     * supports roster versioning, only changes since the cached version are
+     * transmitted when the bot logs in.
+     * 
+     * @param directory
+     *            the directory
+     * @return the cache or {@code null} if it cannot be opened
+     */
+    @Nullable
+    private static RosterStore openRosterStore(File directory) {
+        RosterStore store = DirectoryRosterStore.open(directory);
+        if (store == null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                CommandBook.logger().warning("Failed to create " + directory + ", the buddy list is not cached.");
+                return null;
+            }
+            store = DirectoryRosterStore.init(directory);
+        }
+        if (store == null) {
+            CommandBook.logger().warning("Failed to open the buddy list cache in " + directory + ".");
+        }
+        return store;
+    }
+
+    /**
+     * Connects this bot to the XMPP server, logs in and loads the buddy list.
+     * This blocks until the connection is established and must not be called
+     * on the main thread.
+     * 
+     * @throws BotException
+     *             if no connection to the server could be established
+     */
+    public void connect() throws BotException {
+        setState(ConnectionState.CONNECTING);
+
         // connect to the server - may fail if username/password etc. are wrong
-        connection = new XMPPTCPConnection(conf);
+        long start = System.nanoTime();
         try {
             connection.connect();
             connection.login(username, password, resource);
         } catch (Exception e) {
+            setState(ConnectionState.DISCONNECTED);
             throw new BotException(e);
         }
+        Metrics.get().record(Latency.CONNECT, start);
         CommandBook.logger().info("Connected to " + connection.getHost() + " (" + connection.getUser() + ")");
 
         // set the presence message
         try {
             setPresence(statusMessage);
         } catch (NotConnectedException e) {
+            setState(ConnectionState.DISCONNECTED);
             throw new BotException(e);
         }
 
         // connection established, update the roster
         roster = connection.getRoster();
         roster.setSubscriptionMode(Roster.SubscriptionMode.accept_all);
+        roster.addRosterListener(new StatusUpdater());
+        for (RosterEntry entry : roster.getEntries()) {
+            updateStatus(entry.getUser());
+        }
 
         // handle incoming messages
         ChatManager.getInstanceFor(connection).addChatListener(new ChatManagerListener() {
@@ -141,6 +387,95 @@ public class XMPPBot extends ConfigurationBase implements ChatBot {
             }
 
         });
+        setState(ConnectionState.CONNECTED);
+    }
+
+    /**
+     * Handles an unexpected loss of the connection by scheduling a
+     * reconnection attempt. Messages are held back by the caller while the
+     * bot is reconnecting.
+     */
+    private void handleConnectionLoss() {
+        // connect() handles failures while connecting on its own
+        if (closed || state != ConnectionState.CONNECTED) {
+            return;
+        }
+        setState(ConnectionState.CONNECTING);
+        chats.invalidateAll();
+        // the server removed the bot from all rooms, they are joined again on demand
+        synchronized (rooms) {
+            rooms.clear();
+            roomGeneration++;
+        }
+        // the statuses are unknown until the roster is reloaded
+        statuses.clear();
+
+        try {
+            reconnector.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    reconnectAttempts = 0;
+                    scheduleReconnect();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closeConnection() was called in the meantime
+        }
+    }
+
+    /**
+     * Schedules the next reconnection attempt according to the policy.
+     */
+    private void scheduleReconnect() {
+        long delay = RECONNECT_POLICY.getDelay(reconnectAttempts);
+        try {
+            reconnector.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    reconnect();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closeConnection() was called in the meantime
+        }
+    }
+
+    /**
+     * Attempts to reconnect and to log in again. Schedules another attempt if
+     * this one fails.
+     */
+    private void reconnect() {
+        if (closed) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            if (!connection.isConnected()) {
+                connection.connect();
+            }
+            if (!connection.isAuthenticated()) {
+                connection.login(username, password, resource);
+            }
+            setPresence(statusMessage);
+        } catch (Exception e) {
+            reconnectAttempts++;
+            CommandBook.logger().log(Level.WARNING,
+                    "Reconnection attempt " + reconnectAttempts + " failed: " + e.getMessage());
+            scheduleReconnect();
+            return;
+        }
+        Metrics.get().record(Latency.CONNECT, start);
+        Metrics.get().increment(Counter.RECONNECTS);
+        CommandBook.logger().info("Reconnected to " + connection.getHost() + " after " + reconnectAttempts
+                + " failed attempts.");
+
+        // the roster listener restores the statuses once the roster is loaded
+        for (RosterEntry entry : roster.getEntries()) {
+            updateStatus(entry.getUser());
+        }
+        setState(ConnectionState.CONNECTED);
     }
 
     /**
@@ -157,71 +492,388 @@ public class XMPPBot extends ConfigurationBase implements ChatBot {
         connection.sendPacket(presence);
     }
 
+    /**
+     * Gets the name of the account this bot logs in with.
+     * 
+     * @return the username
+     */
+    public String getUsername() {
+        return username;
+    }
+
     /**
      * Attempts to close a connection to the XMPP server, if any.
      */
     @Override
     public void closeConnection() {
-        if (connection != null) {
-            try {
-                connection.disconnect();
-            } catch (NotConnectedException e) {
-                // the bot is already disconnected
+        closed = true;
+        reconnector.shutdownNow();
+        DeliveryTracker tracker = deliveries;
+        if (tracker != null) {
+            tracker.close();
+        }
+        setState(ConnectionState.DISCONNECTED);
+        chats.invalidateAll();
+        try {
+            connection.disconnect();
+        } catch (NotConnectedException e) {
+            // the bot is already disconnected
+        }
+    }
+
+    @Override
+    public ConnectionState getConnectionState() {
+        return state;
+    }
+
+    @Override
+    public ConnectionState getConnectionState(String userId) {
+        return state;
+    }
+
+    /**
+     * Sets the state of the connection and notifies the listeners if it
+     * changed.
+     * 
+     * @param newState
+     *            the new state
+     */
+    private void setState(ConnectionState newState) {
+        ConnectionState previous = state;
+        state = newState;
+        if (previous != newState) {
+            for (ChatBotListener l : listeners) {
+                l.connectionStateChanged(newState);
             }
         }
     }
 
+    @Override
+    public void addListener(ChatBotListener botListener) {
+        listeners.add(botListener);
+    }
+
+    @Override
+    public void removeListener(ChatBotListener botListener) {
+        listeners.remove(botListener);
+    }
+
     @Override
     public void updateBuddyList(Collection<String> userIds, boolean removeNotIncluded) throws BotException {
-        // remove all entrys that are in the roster but not in the config
-        if (removeNotIncluded) {
-            for (RosterEntry entry : roster.getEntries()) {
-                if (!userIds.contains(entry.getName())) {
-                    try {
-                        roster.removeEntry(entry);
-                    } catch (Exception e) {
-                        throw new BotException("Failed to remove '" + entry + "' from the buddy list.", e);
+        if (state != ConnectionState.CONNECTED) {
+            throw new BotException("The bot is not connected.");
+        }
+        // concurrent updates would work on outdated differences
+        long start = System.nanoTime();
+        synchronized (rosterLock) {
+            new RosterSynchronizer(roster).synchronize(userIds, removeNotIncluded);
+        }
+        Metrics.get().record(Latency.BUDDY_LIST, start);
+    }
+
+    /**
+     * Enables delivery receipts (XEP-0184). If the receipt of a message to
+     * a recipient that supports receipts does not arrive within the given
+     * timeout, the listeners are asked to send it again and are told that it
+     * is undelivered if that fails. If the second attempt is not confirmed
+     * either, the recipient evidently does not answer and the message is only
+     * logged, so it is not stored and send again endlessly.
+     * 
+     * @param timeout
+     *            the time in milliseconds to wait for a receipt
+     * @see ChatBotListener#messageUnconfirmed(String, String, Runnable)
+     * @see ChatBotListener#messageUndelivered(String, String)
+     */
+    public void enableReceipts(long timeout) {
+        final DeliveryTracker tracker = new DeliveryTracker(new DeliveryTracker.Callback() {
+
+            @Override
+            public void resend(final String recipientId, final String msg, final int attempt) {
+                Runnable task = new Runnable() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            send(recipientId, msg, attempt);
+                        } catch (BotException e) {
+                            for (ChatBotListener l : listeners) {
+                                l.messageUndelivered(recipientId, msg);
+                            }
+                        }
                     }
+                };
+                for (ChatBotListener l : listeners) {
+                    l.messageUnconfirmed(recipientId, msg, task);
                 }
             }
+
+            @Override
+            public void undelivered(String recipientId, String msg) {
+                // the recipient is no longer expected to answer, storing the message would repeat this
+                CommandBook.logger().warning("The message to '" + recipientId + "' was not confirmed.");
+            }
+        }, timeout);
+        DeliveryReceiptManager.getInstanceFor(connection).addReceiptReceivedListener(new ReceiptReceivedListener() {
+
+            @Override
+            public void onReceiptReceived(String fromJid, String toJid, String receiptId) {
+                tracker.confirm(receiptId, fromJid);
+            }
+        });
+        deliveries = tracker;
+    }
+
+    @Override
+    public void sendMessage(String recipientId, String msg) throws BotException {
+        send(recipientId, msg, 1);
+    }
+
+    /**
+     * Sends the given message to the given recipient and requests a receipt
+     * if receipts are enabled.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param msg
+     *            the message
+     * @param attempt
+     *            the number of the attempt, starting at 1 for the first
+     *            message
+     * @throws BotException
+     *             if sending the message fails
+     */
+    private void send(String recipientId, String msg, int attempt) throws BotException {
+        if (state != ConnectionState.CONNECTED) {
+            throw new BotException("The bot is not connected.");
         }
-        // add all users that were given but not in the roster
-        for (String userId : userIds) {
-            if (!roster.contains(userId)) {
-                try {
-                    roster.createEntry(userId, userId, null);
-                } catch (Exception e) {
-                    throw new BotException("Failed to add '" + userId + "' to the buddy list.", e);
-                }
+        Chat chat = chats.get(recipientId);
+
+        Message message = new Message();
+        setBody(message, msg);
+        DeliveryTracker tracker = deliveries;
+        if (tracker != null) {
+            DeliveryReceiptManager.addDeliveryReceiptRequest(message);
+            // the receipt may arrive before sendMessage() returns
+            tracker.track(message.getPacketID(), recipientId, msg, attempt);
+        }
+
+        long start = System.nanoTime();
+        try {
+            chat.sendMessage(message);
+        } catch (Exception e) {
+            chats.invalidate(recipientId);
+            if (tracker != null) {
+                tracker.forget(message.getPacketID());
             }
+            throw new BotException(e);
         }
+        Metrics.get().record(Latency.SEND, start);
     }
 
+    /**
+     * {@inheritDoc}
+     * 
+     * <p>
+     * If the server supports extended stanza addressing (XEP-0033), a single
+     * message with all recipients as blind copies is send. Otherwise the
+     * message is send to every recipient without waiting for the individual
+     * messages to be delivered.
+     * </p>
+     */
     @Override
-    public void sendMessage(String recipientId, String msg) throws BotException {
-        Chat chat = ChatManager.getInstanceFor(connection).createChat(recipientId, listener);
+    public void sendMessage(Collection<String> recipientIds, String msg) throws BotException {
+        if (recipientIds.size() == 1) {
+            sendMessage(recipientIds.iterator().next(), msg);
+            return;
+        }
+        if (state != ConnectionState.CONNECTED) {
+            throw new BotException("The bot is not connected.");
+        }
+        Message message = new Message();
+        message.setType(Message.Type.chat);
+        setBody(message, msg);
 
-        // TODO proper color-support
+        long start = System.nanoTime();
         try {
-            chat.sendMessage(ChatColor.stripColor(msg));
+            MultipleRecipientManager.send(connection, message, null, null, new ArrayList<String>(recipientIds));
+        } catch (SmackException e) {
+            throw new BotException(e);
+        } catch (XMPPException e) {
+            throw new BotException(e);
+        }
+        Metrics.get().record(Latency.SEND, start);
+    }
+
+    @Override
+    public void sendRoomMessage(String roomId, String msg) throws BotException {
+        if (state != ConnectionState.CONNECTED) {
+            throw new BotException("The bot is not connected.");
+        }
+        MultiUserChat room = joinRoom(roomId);
+        Message message = room.createMessage();
+        setBody(message, msg);
+
+        long start = System.nanoTime();
+        try {
+            room.sendMessage(message);
         } catch (Exception e) {
+            synchronized (rooms) {
+                rooms.remove(roomId);
+            }
             throw new BotException(e);
-        } finally {
-            chat.close();
+        }
+        Metrics.get().record(Latency.SEND, start);
+    }
+
+    /**
+     * Sets the body of the given message. Colors and formats are send as an
+     * XHTML-IM body, the plain body contains the text without them.
+     * 
+     * @param message
+     *            the message
+     * @param msg
+     *            the text with Bukkit color codes
+     */
+    private void setBody(Message message, String msg) {
+        ColorRenderer.Rendered rendered = renderer.render(msg);
+        message.setBody(rendered.getPlain());
+        if (rendered.getXhtml() != null) {
+            XHTMLManager.addBody(message, rendered.getXhtml());
+        }
+    }
+
+    /**
+     * Gets the given group chat room, joining it if this bot has not joined it
+     * yet. The join waits for the server, so it happens outside of the lock
+     * and sends to other rooms are not blocked meanwhile.
+     * 
+     * @param roomId
+     *            the identifier of the room
+     * @return the room
+     * @throws BotException
+     *             if the room could not be joined
+     */
+    private MultiUserChat joinRoom(String roomId) throws BotException {
+        int generation;
+        synchronized (rooms) {
+            MultiUserChat room = rooms.get(roomId);
+            if (room != null) {
+                return room;
+            }
+            generation = roomGeneration;
+        }
+        MultiUserChat room = new MultiUserChat(connection, roomId);
+
+        // the bot only talks, it does not need the past messages
+        DiscussionHistory history = new DiscussionHistory();
+        history.setMaxStanzas(0);
+        try {
+            room.join(resource, null, history, connection.getPacketReplyTimeout());
+        } catch (SmackException e) {
+            throw new BotException(e);
+        } catch (XMPPException e) {
+            throw new BotException(e);
+        }
+
+        synchronized (rooms) {
+            MultiUserChat joined = rooms.get(roomId);
+            if (joined != null) {
+                // joined concurrently with the same nickname, so both refer to the same occupant
+                return joined;
+            }
+            if (generation == roomGeneration) {
+                rooms.put(roomId, room);
+            }
+            // otherwise the connection was lost while joining, the room is joined again next time
+            return room;
         }
     }
 
     @Override
     public UserStatus getUserStatus(String userId) {
-        switch (roster.getPresence(userId).getMode()) {
+        UserStatus status = statuses.get(toKey(userId));
+        return status != null ? status : UserStatus.OFFLINE;
+    }
+
+    /**
+     * Updates the cached status of the given user from the roster.
+     * 
+     * @param userId
+     *            the identifier of the user
+     */
+    private void updateStatus(String userId) {
+        UserStatus status = toStatus(roster.getPresence(userId));
+        if (statuses.put(toKey(userId), status) != status) {
+            for (ChatBotListener l : listeners) {
+                l.userStatusChanged(userId, status);
+            }
+        }
+    }
+
+    /**
+     * Gets the key used to cache the status of the given user.
+     * 
+     * @param userId
+     *            the identifier of the user, may include a resource
+     * @return the lower-case bare address of the user
+     */
+    private static String toKey(String userId) {
+        return StringUtils.parseBareAddress(userId).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Converts the given presence into the corresponding status.
+     * 
+     * @param presence
+     *            the presence
+     * @return the corresponding status
+     */
+    private static UserStatus toStatus(Presence presence) {
+        if (presence == null || !presence.isAvailable()) {
+            return UserStatus.OFFLINE;
+        }
+        if (presence.getMode() == null) {
+            return UserStatus.PRESENT;
+        }
+        switch (presence.getMode()) {
         case available:
         case chat:
             return UserStatus.PRESENT;
-        case away:
-            return UserStatus.OFFLINE;
         default:
             return UserStatus.AWAY;
         }
     }
 
+    /**
+     * Keeps the cached statuses in sync with the roster.
+     */
+    private class StatusUpdater implements RosterListener {
+
+        @Override
+        public void entriesAdded(Collection<String> addresses) {
+            for (String address : addresses) {
+                updateStatus(address);
+            }
+        }
+
+        @Override
+        public void entriesUpdated(Collection<String> addresses) {
+            for (String address : addresses) {
+                updateStatus(address);
+            }
+        }
+
+        @Override
+        public void entriesDeleted(Collection<String> addresses) {
+            for (String address : addresses) {
+                statuses.remove(toKey(address));
+            }
+        }
+
+        @Override
+        public void presenceChanged(Presence presence) {
+            updateStatus(StringUtils.parseBareAddress(presence.getFrom()));
+        }
+    }
+
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.metrics;
+
+import java.beans.ConstructorProperties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values with log-linear buckets, similar to an
+ * HDR histogram. Values below {@value #SUB_BUCKETS} are counted exactly,
+ * larger values with a relative error of at most 1/{@value #HALF}. Recording
+ * a value is lock-free and does not allocate.
+ */
+public class Histogram {
+
+    /**
+     * The number of bits that are kept of every value.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    /**
+     * The number of values that are counted exactly.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of buckets per power of two above {@link #SUB_BUCKETS}.
+     */
+    private static final int HALF = SUB_BUCKETS / 2;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(SUB_BUCKETS + (Long.SIZE - SUB_BUCKET_BITS) * HALF);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records the given value.
+     * 
+     * @param value
+     *            the value, negative values are recorded as zero
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        buckets.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Gets the index of the bucket that counts the given value.
+     * 
+     * @param value
+     *            the value
+     * @return the index
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // the number of bits dropped so that HALF <= (value >> shift) < SUB_BUCKETS
+        int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + (shift - 1) * HALF + (int) ((value >> shift) - HALF);
+    }
+
+    /**
+     * Gets the highest value that is counted by the bucket with the given
+     * index.
+     * 
+     * @param index
+     *            the index
+     * @return the highest value
+     */
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long subBucket = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Gets the value below which the given share of all recorded values lies.
+     * 
+     * @param quantile
+     *            the share, between 0 and 1
+     * @return the value, rounded up to the highest value of its bucket
+     */
+    private long valueAt(double quantile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), max.get());
+            }
+        }
+        // values were recorded while iterating
+        return max.get();
+    }
+
+    /**
+     * Creates a snapshot of the current distribution. Values are divided by
+     * the given divisor, for example to convert microseconds to milliseconds.
+     * 
+     * @param divisor
+     *            the divisor
+     * @return the snapshot
+     */
+    public Snapshot snapshot(double divisor) {
+        return new Snapshot(count.get(), valueAt(0.5) / divisor, valueAt(0.9) / divisor,
+                valueAt(0.99) / divisor, max.get() / divisor);
+    }
+
+    /**
+     * A summary of the distribution at a certain point in time.
+     */
+    public static final class Snapshot {
+
+        private final long count;
+        private final double median;
+        private final double percentile90;
+        private final double percentile99;
+        private final double max;
+
+        /**
+         * Constructs this snapshot.
+         * 
+         * @param count
+         *            the number of values
+         * @param median
+         *            the median
+         * @param percentile90
+         *            the 90th percentile
+         * @param percentile99
+         *            the 99th percentile
+         * @param max
+         *            the largest value
+         */
+        @ConstructorProperties({ "count", "median", "percentile90", "percentile99", "max" })
+        public Snapshot(long count, double median, double percentile90, double percentile99, double max) {
+            this.count = count;
+            this.median = median;
+            this.percentile90 = percentile90;
+            this.percentile99 = percentile99;
+            this.max = max;
+        }
+
+        /**
+         * Gets the number of values.
+         * 
+         * @return the number of values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Gets the median.
+         * 
+         * @return the median
+         */
+        public double getMedian() {
+            return median;
+        }
+
+        /**
+         * Gets the 90th percentile.
+         * 
+         * @return the 90th percentile
+         */
+        public double getPercentile90() {
+            return percentile90;
+        }
+
+        /**
+         * Gets the 99th percentile.
+         * 
+         * @return the 99th percentile
+         */
+        public double getPercentile99() {
+            return percentile99;
+        }
+
+        /**
+         * Gets the largest value.
+         * 
+         * @return the largest value
+         */
+        public double getMax() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the message path. All methods are
+ * thread-safe and recording does not block or allocate.
+ */
+public final class Metrics implements MetricsMXBean {
+
+    /**
+     * The events that are counted.
+     */
+    public enum Counter {
+        /**
+         * A message was queued.
+         */
+        QUEUED,
+        /**
+         * A message was sent.
+         */
+        SENT,
+        /**
+         * A message could not be sent.
+         */
+        FAILED,
+        /**
+         * A message was rejected or discarded without an attempt to send it.
+         */
+        DROPPED,
+        /**
+         * The connection was re-established after it was lost.
+         */
+        RECONNECTS;
+    }
+
+    /**
+     * The operations whose duration is measured.
+     */
+    public enum Latency {
+        /**
+         * The execution of the message command.
+         */
+        COMMAND,
+        /**
+         * The time from queueing a message until it has been sent.
+         */
+        QUEUE,
+        /**
+         * Handing a message to the connection.
+         */
+        SEND,
+        /**
+         * Updating the buddy list.
+         */
+        BUDDY_LIST,
+        /**
+         * Connecting and logging in.
+         */
+        CONNECT,
+        /**
+         * The time from sending a message until its delivery receipt
+         * arrives.
+         */
+        RECEIPT;
+    }
+
+    /**
+     * The name the metrics are registered with in JMX.
+     */
+    private static final String OBJECT_NAME = "de.minehattan.xmppchat:type=Metrics";
+
+    private static final Metrics INSTANCE = new Metrics();
+
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+    private final Map<Latency, Histogram> latencies = new EnumMap<Latency, Histogram>(Latency.class);
+
+    /**
+     * Constructs the metrics.
+     */
+    private Metrics() {
+        for (Latency latency : Latency.values()) {
+            latencies.put(latency, new Histogram());
+        }
+    }
+
+    /**
+     * Gets the metrics.
+     * 
+     * @return the metrics
+     */
+    public static Metrics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Counts the given event.
+     * 
+     * @param counter
+     *            the event
+     */
+    public void increment(Counter counter) {
+        counters.incrementAndGet(counter.ordinal());
+    }
+
+    /**
+     * Gets the number of times the given event occurred.
+     * 
+     * @param counter
+     *            the event
+     * @return the number of times
+     */
+    public long getCount(Counter counter) {
+        return counters.get(counter.ordinal());
+    }
+
+    /**
+     * Records the duration of the given operation.
+     * 
+     * @param latency
+     *            the operation
+     * @param start
+     *            the value of {@link System#nanoTime()} when the operation
+     *            started
+     */
+    public void record(Latency latency, long start) {
+        latencies.get(latency).record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+    }
+
+    /**
+     * Gets the distribution of the duration of the given operation in
+     * milliseconds.
+     * 
+     * @param latency
+     *            the operation
+     * @return the distribution
+     */
+    public Histogram.Snapshot getSnapshot(Latency latency) {
+        return latencies.get(latency).snapshot(TimeUnit.MILLISECONDS.toMicros(1));
+    }
+
+    @Override
+    public long getMessagesQueued() {
+        return getCount(Counter.QUEUED);
+    }
+
+    @Override
+    public long getMessagesSent() {
+        return getCount(Counter.SENT);
+    }
+
+    @Override
+    public long getMessagesFailed() {
+        return getCount(Counter.FAILED);
+    }
+
+    @Override
+    public long getMessagesDropped() {
+        return getCount(Counter.DROPPED);
+    }
+
+    @Override
+    public long getReconnects() {
+        return getCount(Counter.RECONNECTS);
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getLatencies() {
+        Map<String, Histogram.Snapshot> ret = new TreeMap<String, Histogram.Snapshot>();
+        for (Latency latency : Latency.values()) {
+            ret.put(latency.name().toLowerCase(Locale.ENGLISH), getSnapshot(latency));
+        }
+        return ret;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server, so they can be
+     * read using JMX.
+     * 
+     * @throws JMException
+     *             if the registration fails
+     */
+    public void registerMBean() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server, if registered.
+     * 
+     * @throws JMException
+     *             if the removal fails
+     */
+    public void unregisterMBean() throws JMException {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+}
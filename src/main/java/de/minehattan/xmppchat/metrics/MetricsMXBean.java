@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.metrics;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link Metrics}.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * Gets the number of messages that have been queued.
+     * 
+     * @return the number of messages
+     */
+    long getMessagesQueued();
+
+    /**
+     * Gets the number of messages that have been send.
+     * 
+     * @return the number of messages
+     */
+    long getMessagesSent();
+
+    /**
+     * Gets the number of messages that could not be send.
+     * 
+     * @return the number of messages
+     */
+    long getMessagesFailed();
+
+    /**
+     * Gets the number of messages that have been rejected or discarded
+     * without an attempt to send them.
+     * 
+     * @return the number of messages
+     */
+    long getMessagesDropped();
+
+    /**
+     * Gets the number of times the connection was re-established after it
+     * was lost.
+     * 
+     * @return the number of reconnects
+     */
+    long getReconnects();
+
+    /**
+     * Gets the latencies in milliseconds, keyed by the name of the measured
+     * operation.
+     * 
+     * @return the latencies
+     */
+    Map<String, Histogram.Snapshot> getLatencies();
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.annotation.Nullable;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sk89q.commandbook.CommandBook;
+
+import de.minehattan.xmppchat.storage.RecordLog.RecordReader;
+
+/**
+ * Stores the contacts and their aliases. Every change is appended to a change
+ * log in the background, so changes are cheap regardless of the number of
+ * contacts. Once the change log grows too large, it is compacted into a
+ * snapshot of all contacts.
+ * 
+ * <p>
+ * Changes are applied to the in-memory contacts immediately. This class is
+ * meant to be used from a single thread, usually the main thread of the server.
+ * </p>
+ * 
+ * <p>
+ * A store created by {@link #inMemory()} does not write anything, it is used
+ * if the files cannot be read so they are not overwritten.
+ * </p>
+ */
+public class ContactStore {
+
+    /**
+     * The number of records in the change log after which it is compacted.
+     */
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    private final File snapshotFile;
+    private final File tempSnapshotFile;
+    private final File logFile;
+
+    /**
+     * Whether changes are written to the disk.
+     */
+    private final boolean persistent;
+
+    /**
+     * The contacts as seen by the users of this store.
+     */
+    private final Map<String, List<String>> contacts = new LinkedHashMap<String, List<String>>();
+
+    /**
+     * The contacts as written to the disk. Only accessed by the writer.
+     */
+    private final Map<String, List<String>> persisted = new LinkedHashMap<String, List<String>>();
+
+    /**
+     * Writes all changes in the order they were made.
+     */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("XMPPChat-Contacts-%d").setDaemon(true).build());
+
+    /**
+     * The change log. Only accessed by the writer after the store was opened.
+     */
+    private RecordLog log;
+
+    /**
+     * The number of records in the change log. Only accessed by the writer
+     * after the store was opened.
+     */
+    private int logRecords;
+
+    /**
+     * Constructs this store.
+     * 
+     * @param directory
+     *            the directory the files are stored in, {@code null} if
+     *            changes are not written
+     */
+    private ContactStore(@Nullable File directory) {
+        persistent = directory != null;
+        snapshotFile = new File(directory, "contacts.dat");
+        tempSnapshotFile = new File(directory, "contacts.dat.tmp");
+        logFile = new File(directory, "contacts.log");
+    }
+
+    /**
+     * Creates a store that keeps the contacts in memory only.
+     * 
+     * @return the empty store
+     */
+    public static ContactStore inMemory() {
+        return new ContactStore(null);
+    }
+
+    /**
+     * Returns whether changes are written to the disk.
+     * 
+     * @return whether this store is persistent
+     */
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * Opens the store in the given directory, creating the directory if it
+     * does not exist.
+     * 
+     * @param directory
+     *            the directory
+     * @return the opened store
+     * @throws IOException
+     *             if the store cannot be read
+     */
+    public static ContactStore open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory + ".");
+        }
+        ContactStore store = new ContactStore(directory);
+        store.load();
+        return store;
+    }
+
+    /**
+     * Loads the snapshot and replays the change log.
+     * 
+     * @throws IOException
+     *             if the files cannot be read
+     */
+    private void load() throws IOException {
+        RecordReader reader = new RecordReader() {
+
+            @Override
+            public void read(DataInput record) throws IOException {
+                apply(persisted, record);
+            }
+        };
+
+        // a crash during compaction may leave only the temporary snapshot
+        File snapshot = snapshotFile.exists() ? snapshotFile : tempSnapshotFile;
+        if (snapshot.exists()) {
+            RecordLog.open(snapshot, reader, false).close();
+        }
+
+        log = RecordLog.open(logFile, new RecordReader() {
+
+            @Override
+            public void read(DataInput record) throws IOException {
+                apply(persisted, record);
+                logRecords++;
+            }
+        }, false);
+
+        for (Entry<String, List<String>> entry : persisted.entrySet()) {
+            contacts.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        }
+        if (logRecords >= COMPACTION_THRESHOLD) {
+            compact();
+        }
+    }
+
+    /**
+     * Applies the given record to the given contacts.
+     * 
+     * @param target
+     *            the contacts to modify
+     * @param record
+     *            the record
+     * @throws IOException
+     *             if the record is malformed
+     */
+    private static void apply(Map<String, List<String>> target, DataInput record) throws IOException {
+        byte type = record.readByte();
+        String userId = record.readUTF();
+        if (type == PUT) {
+            int count = record.readInt();
+            List<String> aliases = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                aliases.add(record.readUTF());
+            }
+            target.put(userId, aliases);
+        } else if (type == REMOVE) {
+            target.remove(userId);
+        } else {
+            throw new IOException("Unknown record type " + type + ".");
+        }
+    }
+
+    /**
+     * Encodes a record that sets the aliases of the given user.
+     * 
+     * @param userId
+     *            the identifier of the user
+     * @param aliases
+     *            the aliases of the user
+     * @return the record
+     * @throws IOException
+     *             if the record cannot be encoded
+     */
+    private static byte[] encodePut(String userId, List<String> aliases) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(PUT);
+        out.writeUTF(userId);
+        out.writeInt(aliases.size());
+        for (String alias : aliases) {
+            out.writeUTF(alias);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Gets all contacts and their aliases.
+     * 
+     * @return an unmodifiable view of the contacts
+     */
+    public Map<String, List<String>> getContacts() {
+        return Collections.unmodifiableMap(contacts);
+    }
+
+    /**
+     * Returns whether the given user is a contact.
+     * 
+     * @param userId
+     *            the identifier of the user
+     * @return whether the user is a contact
+     */
+    public boolean contains(String userId) {
+        return contacts.containsKey(userId);
+    }
+
+    /**
+     * Finds the contact with the given identifier, ignoring the case as XMPP
+     * servers do.
+     * 
+     * @param userId
+     *            the identifier of the user
+     * @return the identifier the contact is stored with, {@code null} if the
+     *         user is not a contact
+     */
+    @Nullable
+    public String find(String userId) {
+        if (contacts.containsKey(userId)) {
+            return userId;
+        }
+        for (String contact : contacts.keySet()) {
+            if (contact.equalsIgnoreCase(userId)) {
+                return contact;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets the aliases of the given user, adding the user if he is not a
+     * contact yet.
+     * 
+     * @param userId
+     *            the identifier of the user
+     * @param aliases
+     *            the aliases
+     */
+    public void put(final String userId, List<String> aliases) {
+        final List<String> copy = Collections.unmodifiableList(new ArrayList<String>(aliases));
+        contacts.put(userId, copy);
+
+        write(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    log.append(encodePut(userId, copy));
+                    persisted.put(userId, copy);
+                    logRecords++;
+                } catch (IOException e) {
+                    CommandBook.logger().log(Level.SEVERE, "Failed to store contact '" + userId + "'.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the given user from the contacts.
+     * 
+     * @param userId
+     *            the identifier of the user
+     */
+    public void remove(final String userId) {
+        if (contacts.remove(userId) == null) {
+            return;
+        }
+
+        write(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    DataOutputStream out = new DataOutputStream(bytes);
+                    out.writeByte(REMOVE);
+                    out.writeUTF(userId);
+                    log.append(bytes.toByteArray());
+                    persisted.remove(userId);
+                    logRecords++;
+                } catch (IOException e) {
+                    CommandBook.logger().log(Level.SEVERE, "Failed to remove contact '" + userId + "'.", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Executes the given write on the writer and compacts the change log
+     * afterwards if it grew too large.
+     * 
+     * @param task
+     *            the write
+     */
+    private void write(final Runnable task) {
+        if (!persistent) {
+            return;
+        }
+        writer.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                task.run();
+                if (logRecords >= COMPACTION_THRESHOLD) {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        CommandBook.logger().log(Level.WARNING, "Failed to compact the contacts.", e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes all persisted contacts into a new snapshot and starts a new,
+     * empty change log. The snapshot is written to a temporary file first and
+     * replayed changes are idempotent, so a crash at any point leaves a
+     * consistent state.
+     * 
+     * @throws IOException
+     *             if the snapshot cannot be written
+     */
+    private void compact() throws IOException {
+        if (tempSnapshotFile.exists() && snapshotFile.exists() && !tempSnapshotFile.delete()) {
+            throw new IOException("Failed to delete " + tempSnapshotFile + ".");
+        }
+        RecordLog snapshot = RecordLog.open(tempSnapshotFile, new RecordReader() {
+
+            @Override
+            public void read(DataInput record) throws IOException {
+                // the file is empty
+            }
+        }, false);
+        try {
+            for (Entry<String, List<String>> entry : persisted.entrySet()) {
+                snapshot.append(encodePut(entry.getKey(), entry.getValue()));
+            }
+            snapshot.force();
+        } finally {
+            snapshot.close();
+        }
+
+        if (snapshotFile.exists() && !snapshotFile.delete()) {
+            throw new IOException("Failed to delete " + snapshotFile + ".");
+        }
+        if (!tempSnapshotFile.renameTo(snapshotFile)) {
+            throw new IOException("Failed to rename " + tempSnapshotFile + ".");
+        }
+
+        log.close();
+        if (!logFile.delete()) {
+            throw new IOException("Failed to delete " + logFile + ".");
+        }
+        log = RecordLog.open(logFile, new RecordReader() {
+
+            @Override
+            public void read(DataInput record) throws IOException {
+                // the file is empty
+            }
+        }, false);
+        logRecords = 0;
+    }
+
+    /**
+     * Writes all pending changes and closes this store.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!persistent) {
+            return;
+        }
+        try {
+            log.force();
+            log.close();
+        } catch (IOException e) {
+            CommandBook.logger().log(Level.WARNING, "Failed to close the contacts.", e);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import de.minehattan.xmppchat.storage.RecordLog.RecordReader;
+
+/**
+ * Stores messages that could not be delivered yet, so they survive restarts of
+ * the server. The outbox is split into segments that are only ever appended
+ * to: adding a message appends the message, removing a message appends an
+ * acknowledgement. A segment is deleted once all messages stored in it and in
+ * all older segments have been removed.
+ */
+public class Outbox {
+
+    /**
+     * The size in bytes after which a new segment is started.
+     */
+    private static final long SEGMENT_SIZE = 1 << 20;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+    private static final byte PUT = 1;
+    private static final byte ACK = 2;
+
+    /**
+     * Like {@link #PUT}, followed by the number of earlier attempts.
+     */
+    private static final byte RETRY = 3;
+
+    private final File directory;
+
+    /**
+     * All segments, the oldest first. The last segment is appended to.
+     */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+
+    /**
+     * The pending messages in the order they were added.
+     */
+    private final Map<Long, Entry> pending = new LinkedHashMap<Long, Entry>();
+
+    private long nextId;
+
+    /**
+     * Constructs this outbox.
+     * 
+     * @param directory
+     *            the directory the segments are stored in
+     */
+    private Outbox(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the outbox stored in the given directory, creating the directory if
+     * it does not exist.
+     * 
+     * @param directory
+     *            the directory
+     * @return the opened outbox
+     * @throws IOException
+     *             if the outbox cannot be read
+     */
+    public static Outbox open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create " + directory + ".");
+        }
+        Outbox outbox = new Outbox(directory);
+
+        List<Long> indices = new ArrayList<Long>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    indices.add(Long.parseLong(matcher.group(1)));
+                }
+            }
+        }
+        Collections.sort(indices);
+
+        try {
+            for (long index : indices) {
+                outbox.openSegment(index);
+            }
+            if (outbox.segments.isEmpty()) {
+                outbox.openSegment(0);
+            }
+            outbox.purge();
+        } catch (IOException e) {
+            outbox.close();
+            throw e;
+        }
+        return outbox;
+    }
+
+    /**
+     * Opens the segment with the given index, replays its records and makes it
+     * the segment that is appended to.
+     * 
+     * @param index
+     *            the index
+     * @throws IOException
+     *             if the segment cannot be read
+     */
+    private void openSegment(long index) throws IOException {
+        final Segment segment = new Segment(index);
+        segment.log = RecordLog.open(new File(directory, "segment-" + index + ".log"), new RecordReader() {
+
+            @Override
+            public void read(DataInput record) throws IOException {
+                byte type = record.readByte();
+                long id = record.readLong();
+                nextId = Math.max(nextId, id + 1);
+
+                if (type == PUT || type == RETRY) {
+                    String recipientId = record.readUTF();
+                    String message = record.readUTF();
+                    long created = record.readLong();
+                    int attempts = type == RETRY ? record.readInt() : 0;
+                    Entry entry = new Entry(id, recipientId, message, created, attempts, segment);
+                    pending.put(id, entry);
+                    segment.live++;
+                } else if (type == ACK) {
+                    Entry entry = pending.remove(id);
+                    if (entry != null) {
+                        entry.segment.live--;
+                    }
+                } else {
+                    throw new IOException("Unknown record type " + type + ".");
+                }
+            }
+        }, true);
+        segments.add(segment);
+    }
+
+    /**
+     * Adds a message to this outbox.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param message
+     *            the message
+     * @return the stored entry
+     * @throws IOException
+     *             if the message cannot be stored
+     */
+    public Entry add(String recipientId, String message) throws IOException {
+        return add(recipientId, message, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * Adds a message to this outbox that has already been stored and send
+     * before.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient
+     * @param message
+     *            the message
+     * @param created
+     *            the time the message was stored first, in milliseconds since
+     *            the epoch
+     * @param attempts
+     *            the number of times the message was send from this outbox
+     * @return the stored entry
+     * @throws IOException
+     *             if the message cannot be stored
+     */
+    public synchronized Entry add(String recipientId, String message, long created, int attempts)
+            throws IOException {
+        Segment segment = getWritableSegment();
+        Entry entry = new Entry(nextId, recipientId, message, created, attempts, segment);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(attempts > 0 ? RETRY : PUT);
+        out.writeLong(entry.id);
+        out.writeUTF(entry.recipientId);
+        out.writeUTF(entry.message);
+        out.writeLong(entry.created);
+        if (attempts > 0) {
+            out.writeInt(attempts);
+        }
+        segment.log.append(bytes.toByteArray());
+
+        nextId++;
+        pending.put(entry.id, entry);
+        segment.live++;
+        return entry;
+    }
+
+    /**
+     * Removes the message with the given identifier, e.g. because it has been
+     * delivered. Does nothing if there is no such message.
+     * 
+     * @param id
+     *            the identifier of the entry
+     * @throws IOException
+     *             if the removal cannot be stored
+     */
+    public synchronized void remove(long id) throws IOException {
+        if (!pending.containsKey(id)) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ACK);
+        out.writeLong(id);
+        getWritableSegment().log.append(bytes.toByteArray());
+
+        Entry entry = pending.remove(id);
+        entry.segment.live--;
+        purge();
+    }
+
+    /**
+     * Gets the pending messages in the order they were added.
+     * 
+     * @param recipientId
+     *            the identifier of the recipient whose messages should be
+     *            returned or {@code null} to return all messages
+     * @return the pending messages
+     */
+    public synchronized List<Entry> getPending(@Nullable String recipientId) {
+        List<Entry> ret = new ArrayList<Entry>();
+        for (Entry entry : pending.values()) {
+            if (recipientId == null || entry.recipientId.equalsIgnoreCase(recipientId)) {
+                ret.add(entry);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the number of pending messages.
+     * 
+     * @return the number of pending messages
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * Closes all segments.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            if (segment.log != null) {
+                try {
+                    segment.log.close();
+                } catch (IOException e) {
+                    // nothing we can do
+                }
+            }
+        }
+        segments.clear();
+    }
+
+    /**
+     * Gets the segment that is appended to, starting a new segment if the
+     * current one is full.
+     * 
+     * @return the segment
+     * @throws IOException
+     *             if a new segment cannot be started
+     */
+    private Segment getWritableSegment() throws IOException {
+        Segment last = segments.getLast();
+        if (last.log.size() >= SEGMENT_SIZE) {
+            openSegment(last.index + 1);
+            last = segments.getLast();
+        }
+        return last;
+    }
+
+    /**
+     * Deletes the oldest segments as long as they do not contain pending
+     * messages. Acknowledgements are always stored in the same or a newer
+     * segment than the message they refer to, so deleting segments in order
+     * never brings back removed messages.
+     * 
+     * @throws IOException
+     *             if a segment cannot be deleted
+     */
+    private void purge() throws IOException {
+        while (segments.size() > 1 && segments.getFirst().live == 0) {
+            Segment segment = segments.removeFirst();
+            segment.log.close();
+            if (!segment.log.getFile().delete()) {
+                throw new IOException("Failed to delete " + segment.log.getFile() + ".");
+            }
+        }
+    }
+
+    /**
+     * A segment of the outbox.
+     */
+    private static final class Segment {
+        private final long index;
+        private RecordLog log;
+        private int live;
+
+        /**
+         * Constructs this segment.
+         * 
+         * @param index
+         *            the index of this segment
+         */
+        private Segment(long index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * A message stored in the outbox.
+     */
+    public static final class Entry {
+        private final long id;
+        private final String recipientId;
+        private final String message;
+        private final long created;
+        private final int attempts;
+        private final Segment segment;
+
+        /**
+         * Constructs this entry.
+         * 
+         * @param id
+         *            the identifier of this entry
+         * @param recipientId
+         *            the identifier of the recipient
+         * @param message
+         *            the message
+         * @param created
+         *            the time this entry was created
+         * @param attempts
+         *            the number of times the message was send before
+         * @param segment
+         *            the segment this entry is stored in
+         */
+        private Entry(long id, String recipientId, String message, long created, int attempts, Segment segment) {
+            this.id = id;
+            this.recipientId = recipientId;
+            this.message = message;
+            this.created = created;
+            this.attempts = attempts;
+            this.segment = segment;
+        }
+
+        /**
+         * Gets the identifier of this entry.
+         * 
+         * @return the identifier
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Gets the identifier of the recipient.
+         * 
+         * @return the identifier of the recipient
+         */
+        public String getRecipientId() {
+            return recipientId;
+        }
+
+        /**
+         * Gets the message.
+         * 
+         * @return the message
+         */
+        public String getMessage() {
+            return message;
+        }
+
+        /**
+         * Gets the time the message was stored for the first time.
+         * 
+         * @return the time in milliseconds since the epoch
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * Gets the number of times the message was send from the outbox
+         * before it was stored again.
+         * 
+         * @return the number of attempts
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+}
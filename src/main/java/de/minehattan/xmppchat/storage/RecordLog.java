@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import com.sk89q.commandbook.CommandBook;
+
+/**
+ * An append-only file of records. Every record is prefixed with its length and
+ * a CRC32 checksum. A record that was only partially written, e.g. because the
+ * server crashed while writing it, is detected when the log is opened and cut
+ * off, so the records before it stay intact and the file never needs to be
+ * rewritten.
+ * 
+ * <p>
+ * A record that fails to be appended is cut off immediately, so later records
+ * are not appended after a partial one and lost on the next recovery. If it
+ * cannot be cut off, the log refuses further appends.
+ * </p>
+ */
+public class RecordLog {
+
+    /**
+     * The size of the length and checksum that precede every record.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The maximum size of a single record. Larger lengths indicate a corrupted
+     * header.
+     */
+    private static final int MAX_RECORD_SIZE = 1 << 20;
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private final boolean sync;
+
+    /**
+     * The failure to remove a partial record from the end of the file, if any.
+     * Guarded by this log.
+     */
+    private IOException failure;
+
+    /**
+     * Constructs this log.
+     * 
+     * @param file
+     *            the file
+     * @param randomAccessFile
+     *            the opened file
+     * @param sync
+     *            whether every append should be forced to the disk
+     */
+    private RecordLog(File file, RandomAccessFile randomAccessFile, boolean sync) {
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.channel = randomAccessFile.getChannel();
+        this.sync = sync;
+    }
+
+    /**
+     * Opens the log stored in the given file, creating the file if it does not
+     * exist, and passes all intact records to the given reader in the order
+     * they were appended.
+     * 
+     * @param file
+     *            the file
+     * @param reader
+     *            the reader that receives the existing records
+     * @param sync
+     *            whether every append should be forced to the disk before
+     *            {@link #append(byte[])} returns
+     * @return the opened log
+     * @throws IOException
+     *             if the file cannot be read or the reader fails
+     */
+    public static RecordLog open(File file, RecordReader reader, boolean sync) throws IOException {
+        RecordLog log = new RecordLog(file, new RandomAccessFile(file, "rw"), sync);
+        try {
+            log.recover(reader);
+        } catch (IOException e) {
+            log.close();
+            throw e;
+        }
+        return log;
+    }
+
+    /**
+     * Reads all records and cuts off the file after the last intact one.
+     * 
+     * @param reader
+     *            the reader that receives the records
+     * @throws IOException
+     *             if the file cannot be read or the reader fails
+     */
+    private void recover(RecordReader reader) throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || length > MAX_RECORD_SIZE || position + HEADER_SIZE + length > size) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(payload, position + HEADER_SIZE);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            reader.read(new DataInputStream(new ByteArrayInputStream(payload.array())));
+            position += HEADER_SIZE + length;
+        }
+
+        if (position < size) {
+            CommandBook.logger().warning(
+                    "Discarding " + (size - position) + " bytes of incomplete records at the end of " + file + ".");
+            channel.truncate(position);
+        }
+        channel.position(position);
+    }
+
+    /**
+     * Fills the given buffer with bytes from the given position.
+     * 
+     * @param buffer
+     *            the buffer
+     * @param position
+     *            the position in the file
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long offset = position;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + file + ".");
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * Appends the given record.
+     * 
+     * @param record
+     *            the record
+     * @throws IOException
+     *             if the record cannot be written, or an earlier record could
+     *             not be written and not be cut off
+     */
+    public synchronized void append(byte[] record) throws IOException {
+        if (failure != null) {
+            throw new IOException("An earlier record could not be removed from " + file + ".", failure);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + record.length);
+        buffer.putInt(record.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(record);
+        buffer.flip();
+
+        long start = channel.position();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            discardFrom(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Cuts off the partially appended record that starts at the given
+     * position. If that fails as well, further appends are refused.
+     * 
+     * @param start
+     *            the position of the record
+     */
+    private void discardFrom(long start) {
+        try {
+            channel.truncate(start);
+            channel.position(start);
+        } catch (IOException e) {
+            CommandBook.logger().log(Level.SEVERE,
+                    "Failed to remove a partial record from " + file + ", no further records are appended.", e);
+            failure = e;
+        }
+    }
+
+    /**
+     * Forces all appended records to the disk.
+     * 
+     * @throws IOException
+     *             if the records cannot be written
+     */
+    public synchronized void force() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Gets the size of this log in bytes.
+     * 
+     * @return the size
+     * @throws IOException
+     *             if the size cannot be determined
+     */
+    public synchronized long size() throws IOException {
+        return channel.position();
+    }
+
+    /**
+     * Gets the file this log is stored in.
+     * 
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Closes this log.
+     * 
+     * @throws IOException
+     *             if the file cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    /**
+     * Reads the records of a log.
+     */
+    public interface RecordReader {
+
+        /**
+         * Reads a single record.
+         * 
+         * @param record
+         *            the content of the record
+         * @throws IOException
+         *             if the record is malformed
+         */
+        void read(DataInput record) throws IOException;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link AliasIndex}.
+ */
+public class AliasIndexTest {
+
+    private final AliasIndex index;
+
+    /**
+     * Constructs the index that is shared by the tests.
+     */
+    public AliasIndexTest() {
+        Map<String, List<String>> contacts = new HashMap<String, List<String>>();
+        contacts.put("Alice@example.org", Arrays.asList("alice", "staff"));
+        contacts.put("bob@example.org", Arrays.asList("bob", "staff"));
+        index = AliasIndex.of(contacts);
+    }
+
+    /**
+     * The index maps aliases to users and users to aliases, ignoring the case
+     * and the resource of user identifiers.
+     */
+    @Test
+    public void testOf() {
+        assertEquals(set("alice@example.org", "bob@example.org"), index.getUserIds("staff"));
+        assertEquals(set("alice", "staff"), index.getAliases("ALICE@example.org/Smack"));
+        assertTrue(index.containsUser("alice@EXAMPLE.org"));
+        assertTrue(index.getUserIds("nobody").isEmpty());
+    }
+
+    /**
+     * Adding a user creates a new index and leaves the previous one
+     * unchanged.
+     */
+    @Test
+    public void testWithUser() {
+        AliasIndex changed = index.withUser("carol@example.org", Arrays.asList("carol", "staff"));
+        assertEquals(set("alice@example.org", "bob@example.org", "carol@example.org"),
+                changed.getUserIds("staff"));
+        assertEquals(set("carol@example.org"), changed.getUserIds("carol"));
+
+        assertFalse(index.containsUser("carol@example.org"));
+        assertFalse(index.containsAlias("carol"));
+        assertEquals(set("alice@example.org", "bob@example.org"), index.getUserIds("staff"));
+    }
+
+    /**
+     * The aliases of an existing user are replaced, and aliases that no
+     * longer refer to anyone disappear.
+     */
+    @Test
+    public void testWithUserReplaces() {
+        AliasIndex changed = index.withUser("ALICE@example.org", Arrays.asList("ali"));
+        assertEquals(set("ali"), changed.getAliases("alice@example.org"));
+        assertEquals(set("bob@example.org"), changed.getUserIds("staff"));
+        assertFalse(changed.containsAlias("alice"));
+        assertEquals(Arrays.asList("ali"), changed.completeAlias("al", 10));
+    }
+
+    /**
+     * Removing a user removes it from all of its aliases.
+     */
+    @Test
+    public void testWithoutUser() {
+        AliasIndex changed = index.withoutUser("bob@example.org");
+        assertFalse(changed.containsUser("bob@example.org"));
+        assertFalse(changed.containsAlias("bob"));
+        assertEquals(set("alice@example.org"), changed.getUserIds("staff"));
+        assertTrue(index.containsUser("bob@example.org"));
+    }
+
+    /**
+     * Removing an unknown user returns the same index.
+     */
+    @Test
+    public void testWithoutUnknownUser() {
+        assertSame(index, index.withoutUser("carol@example.org"));
+    }
+
+    /**
+     * Several changes can be applied through one builder.
+     */
+    @Test
+    public void testBuilder() {
+        AliasIndex changed = index.edit().removeUser("alice@example.org")
+                .putUser("carol@example.org", Arrays.asList("carol")).build();
+        assertEquals(set("bob@example.org", "carol@example.org"), changed.getUserIds());
+        assertEquals(set("bob@example.org"), changed.getUserIds("staff"));
+    }
+
+    /**
+     * A builder cannot be used after the index has been built.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void testBuilderAfterBuild() {
+        AliasIndex.Builder builder = index.edit();
+        builder.build();
+        builder.removeUser("alice@example.org");
+    }
+
+    /**
+     * Aliases and users are completed and resolved by their prefixes.
+     */
+    @Test
+    public void testCompletion() {
+        assertEquals(Arrays.asList("alice"), index.completeAlias("a", 10));
+        assertEquals("staff", index.resolveAlias("st"));
+        assertNull(index.resolveAlias("x"));
+        assertEquals(Arrays.asList("alice@example.org", "bob@example.org"), index.completeUser("", 10));
+        assertTrue(AliasIndex.EMPTY.completeAlias("", 10).isEmpty());
+    }
+
+    /**
+     * Creates a set of the given elements.
+     * 
+     * @param elements
+     *            the elements
+     * @return the set
+     */
+    private static Set<String> set(String... elements) {
+        return new HashSet<String>(Arrays.asList(elements));
+    }
+}
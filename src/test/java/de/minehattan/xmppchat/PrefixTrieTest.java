@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link PrefixTrie}.
+ */
+public class PrefixTrieTest {
+
+    private final PrefixTrie trie = new PrefixTrie(Arrays.asList("beta", "admins", "alpha", "admin"));
+
+    /**
+     * Completion returns the keys that start with the prefix in
+     * lexicographical order.
+     */
+    @Test
+    public void testComplete() {
+        assertEquals(Arrays.asList("admin", "admins", "alpha"), trie.complete("a", 10));
+        assertEquals(Arrays.asList("admin", "admins"), trie.complete("adm", 10));
+        assertEquals(Arrays.asList("admins"), trie.complete("admins", 10));
+        assertEquals(Arrays.asList("admin", "admins", "alpha", "beta"), trie.complete("", 10));
+    }
+
+    /**
+     * Completion returns at most the given number of keys.
+     */
+    @Test
+    public void testCompleteLimit() {
+        assertEquals(Arrays.asList("admin", "admins"), trie.complete("a", 2));
+        assertTrue(trie.complete("a", 0).isEmpty());
+    }
+
+    /**
+     * Prefixes that no key starts with have no completions.
+     */
+    @Test
+    public void testCompleteUnknown() {
+        assertTrue(trie.complete("x", 10).isEmpty());
+        assertTrue(trie.complete("adminz", 10).isEmpty());
+        assertTrue(trie.complete("betas", 10).isEmpty());
+    }
+
+    /**
+     * A prefix resolves to the key it equals, or else to the only key that
+     * starts with it.
+     */
+    @Test
+    public void testResolve() {
+        assertEquals("admin", trie.resolve("admin"));
+        assertEquals("alpha", trie.resolve("al"));
+        assertEquals("beta", trie.resolve("b"));
+        assertNull(trie.resolve("adm"));
+        assertNull(trie.resolve("a"));
+        assertNull(trie.resolve("x"));
+    }
+
+    /**
+     * A trie without keys neither completes nor resolves anything.
+     */
+    @Test
+    public void testEmpty() {
+        PrefixTrie empty = new PrefixTrie(Collections.<String> emptyList());
+        assertTrue(empty.complete("", 10).isEmpty());
+        assertTrue(empty.complete("a", 10).isEmpty());
+        assertNull(empty.resolve(""));
+        assertNull(empty.resolve("a"));
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.minehattan.xmppchat.testkit.CommandBookShim;
+
+/**
+ * Tests the lanes of the {@link QueuedChatBot}.
+ */
+public class QueuedChatBotTest {
+
+    private static final String RECIPIENT = "user@example.org";
+
+    /**
+     * The message that blocks the regular worker until {@link #gate} opens.
+     */
+    private static final String BLOCKER = "blocker";
+
+    private final CountDownLatch entered = new CountDownLatch(1);
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final List<String> sent = new ArrayList<String>();
+    private QueuedChatBot bot;
+
+    /**
+     * Provides the logger that reports unexpected failures.
+     * 
+     * @throws Exception
+     *             if CommandBook cannot be provided
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger discarded = Logger.getAnonymousLogger();
+        discarded.setLevel(Level.OFF);
+        CommandBookShim.install(discarded);
+    }
+
+    /**
+     * Stops the bot.
+     */
+    @After
+    public void tearDown() {
+        gate.countDown();
+        if (bot != null) {
+            bot.closeConnection();
+        }
+    }
+
+    /**
+     * While normal and bulk messages wait, they are send with a weight of
+     * four to one, so bulk messages are neither starved nor preferred.
+     * 
+     * @throws Exception
+     *             on failure
+     */
+    @Test
+    public void testLaneWeighting() throws Exception {
+        bot = new QueuedChatBot(new RecordingBot(), 20);
+        List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+        futures.add(block());
+        for (int i = 0; i < 10; i++) {
+            futures.add(bot.sendMessageAsync(RECIPIENT, "bulk" + i, Priority.BULK));
+        }
+        for (int i = 0; i < 10; i++) {
+            futures.add(bot.sendMessageAsync(RECIPIENT, "normal" + i, Priority.NORMAL));
+        }
+        gate.countDown();
+        awaitAll(futures);
+
+        StringBuilder order = new StringBuilder();
+        List<String> normal = new ArrayList<String>();
+        List<String> bulk = new ArrayList<String>();
+        synchronized (sent) {
+            for (String msg : sent.subList(1, sent.size())) {
+                if (msg.startsWith("normal")) {
+                    order.append('N');
+                    normal.add(msg);
+                } else {
+                    order.append('B');
+                    bulk.add(msg);
+                }
+            }
+        }
+        assertEquals("NNBNNNNBNNNNBBBBBBBB", order.toString());
+        // every lane keeps its order
+        for (int i = 0; i < 10; i++) {
+            assertEquals("normal" + i, normal.get(i));
+            assertEquals("bulk" + i, bulk.get(i));
+        }
+    }
+
+    /**
+     * Urgent messages are send by their own worker while the other worker is
+     * busy.
+     * 
+     * @throws Exception
+     *             on failure
+     */
+    @Test
+    public void testUrgentOvertakes() throws Exception {
+        bot = new QueuedChatBot(new RecordingBot(), 20);
+        ListenableFuture<Void> blocker = block();
+        ListenableFuture<Void> normal = bot.sendMessageAsync(RECIPIENT, "normal", Priority.NORMAL);
+        bot.sendMessageAsync(RECIPIENT, "urgent", Priority.URGENT).get(5, TimeUnit.SECONDS);
+        assertFalse(normal.isDone());
+
+        gate.countDown();
+        blocker.get(5, TimeUnit.SECONDS);
+        normal.get(5, TimeUnit.SECONDS);
+        synchronized (sent) {
+            assertEquals("urgent", sent.get(0));
+        }
+    }
+
+    /**
+     * Messages that do not fit into the queue of their priority fail
+     * immediately, without affecting the messages that were queued before or
+     * the queues of other priorities.
+     * 
+     * @throws Exception
+     *             on failure
+     */
+    @Test
+    public void testOverflow() throws Exception {
+        bot = new QueuedChatBot(new RecordingBot(), 2);
+        List<ListenableFuture<Void>> accepted = new ArrayList<ListenableFuture<Void>>();
+        accepted.add(block());
+        accepted.add(bot.sendMessageAsync(RECIPIENT, "first", Priority.NORMAL));
+        accepted.add(bot.sendMessageAsync(RECIPIENT, "second", Priority.NORMAL));
+        assertEquals(0, bot.getRemainingCapacity(Priority.NORMAL));
+
+        ListenableFuture<Void> rejected = bot.sendMessageAsync(RECIPIENT, "third", Priority.NORMAL);
+        assertTrue(rejected.isDone());
+        try {
+            rejected.get();
+            fail("The message should not fit into the queue.");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof OverloadException);
+        }
+
+        assertEquals(2, bot.getRemainingCapacity(Priority.BULK));
+        accepted.add(bot.sendMessageAsync(RECIPIENT, "bulk", Priority.BULK));
+
+        gate.countDown();
+        awaitAll(accepted);
+        synchronized (sent) {
+            assertEquals(4, sent.size());
+            assertFalse(sent.contains("third"));
+        }
+    }
+
+    /**
+     * Queues the message that blocks the regular worker and waits until the
+     * worker sends it.
+     * 
+     * @return the future of the message
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    private ListenableFuture<Void> block() throws InterruptedException {
+        ListenableFuture<Void> future = bot.sendMessageAsync(RECIPIENT, BLOCKER, Priority.NORMAL);
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        return future;
+    }
+
+    /**
+     * Waits until all given messages have been send.
+     * 
+     * @param futures
+     *            the futures of the messages
+     * @throws Exception
+     *             if a message failed or was not send in time
+     */
+    private static void awaitAll(List<ListenableFuture<Void>> futures) throws Exception {
+        for (ListenableFuture<Void> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * A connected bot that records the messages it sends and holds the
+     * {@link #BLOCKER} until the gate opens.
+     */
+    private class RecordingBot implements ChatBot {
+
+        @Override
+        public void sendMessage(String recipientId, String msg) throws BotException {
+            if (msg.equals(BLOCKER)) {
+                entered.countDown();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new BotException(e);
+                }
+            }
+            synchronized (sent) {
+                sent.add(msg);
+            }
+        }
+
+        @Override
+        public void sendMessage(Collection<String> recipientIds, String msg) throws BotException {
+            sendMessage(recipientIds.toString(), msg);
+        }
+
+        @Override
+        public void sendRoomMessage(String roomId, String msg) throws BotException {
+            sendMessage(roomId, msg);
+        }
+
+        @Override
+        public ConnectionState getConnectionState() {
+            return ConnectionState.CONNECTED;
+        }
+
+        @Override
+        public ConnectionState getConnectionState(String userId) {
+            return ConnectionState.CONNECTED;
+        }
+
+        @Override
+        public UserStatus getUserStatus(String userId) {
+            return UserStatus.OFFLINE;
+        }
+
+        @Override
+        public void addListener(ChatBotListener listener) {
+            // the bot does not emit events
+        }
+
+        @Override
+        public void removeListener(ChatBotListener listener) {
+            // the bot does not emit events
+        }
+
+        @Override
+        public void updateBuddyList(Collection<String> userIds, boolean removeNotIncluded) {
+            // there is no buddy list
+        }
+
+        @Override
+        public void closeConnection() {
+            // there is no connection
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link TimerWheel}.
+ */
+public class TimerWheelTest {
+
+    /**
+     * Advances the given wheel by the given number of ticks.
+     * 
+     * @param wheel
+     *            the wheel
+     * @param ticks
+     *            the number of ticks
+     * @return the values that expired during the ticks
+     */
+    private static List<Integer> advance(TimerWheel<Integer> wheel, int ticks) {
+        List<Integer> expired = new ArrayList<Integer>();
+        for (int i = 0; i < ticks; i++) {
+            expired.addAll(wheel.advance());
+        }
+        return expired;
+    }
+
+    /**
+     * A timeout expires with the tick that covers its delay, not before.
+     */
+    @Test
+    public void testExpiry() {
+        TimerWheel<Integer> wheel = new TimerWheel<Integer>(8, 10);
+        wheel.add("a", 1, 30);
+        assertEquals(Collections.emptyList(), advance(wheel, 2));
+        assertEquals(Arrays.asList(1), wheel.advance());
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * Delays shorter than a tick expire with the next tick.
+     */
+    @Test
+    public void testShortDelay() {
+        TimerWheel<Integer> wheel = new TimerWheel<Integer>(8, 10);
+        wheel.add("a", 1, 0);
+        wheel.add("b", 2, 5);
+        assertEquals(Arrays.asList(1, 2), wheel.advance());
+    }
+
+    /**
+     * Timeouts that are further away than one rotation wait for the
+     * additional rounds, while timeouts in the same slot expire earlier.
+     */
+    @Test
+    public void testRounds() {
+        TimerWheel<Integer> wheel = new TimerWheel<Integer>(4, 10);
+        // both are stored in the first slot, one and two rotations later
+        wheel.add("near", 1, 10);
+        wheel.add("far", 2, 50);
+        wheel.add("farthest", 3, 90);
+        assertEquals(Arrays.asList(1), wheel.advance());
+        assertEquals(Collections.emptyList(), advance(wheel, 3));
+        assertEquals(Arrays.asList(2), wheel.advance());
+        assertEquals(Collections.emptyList(), advance(wheel, 3));
+        assertEquals(Arrays.asList(3), wheel.advance());
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * A removed timeout never expires.
+     */
+    @Test
+    public void testRemove() {
+        TimerWheel<Integer> wheel = new TimerWheel<Integer>(4, 10);
+        wheel.add("a", 1, 20);
+        assertEquals(Integer.valueOf(1), wheel.remove("a"));
+        assertNull(wheel.remove("a"));
+        assertTrue(advance(wheel, 8).isEmpty());
+    }
+
+    /**
+     * Adding a timeout for an existing key replaces the previous timeout.
+     */
+    @Test
+    public void testReplace() {
+        TimerWheel<Integer> wheel = new TimerWheel<Integer>(4, 10);
+        wheel.add("a", 1, 10);
+        wheel.add("a", 2, 30);
+        assertEquals(1, wheel.size());
+        assertEquals(Collections.emptyList(), advance(wheel, 2));
+        assertEquals(Arrays.asList(2), wheel.advance());
+    }
+}
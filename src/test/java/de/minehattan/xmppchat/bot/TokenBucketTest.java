@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.bot;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests the {@link TokenBucket}.
+ */
+public class TokenBucketTest {
+
+    /**
+     * A new bucket allows a burst of its capacity and then refuses tokens.
+     */
+    @Test
+    public void testBurst() {
+        TokenBucket bucket = new TokenBucket(3, 1);
+        assertTrue(bucket.isFull());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(bucket.tryAcquire());
+        }
+        assertFalse(bucket.tryAcquire());
+        assertFalse(bucket.isFull());
+    }
+
+    /**
+     * Tokens are refilled at the configured rate.
+     * 
+     * @throws InterruptedException
+     *             if interrupted while waiting for the refill
+     */
+    @Test
+    public void testRefill() throws InterruptedException {
+        // one token every 100 milliseconds
+        TokenBucket bucket = new TokenBucket(1, 600);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        Thread.sleep(150);
+        assertTrue(bucket.isFull());
+        assertTrue(bucket.tryAcquire());
+    }
+
+    /**
+     * A released token can be taken again.
+     */
+    @Test
+    public void testRelease() {
+        TokenBucket bucket = new TokenBucket(2, 1);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        bucket.release();
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    /**
+     * Releasing tokens never raises the number of tokens above the capacity.
+     */
+    @Test
+    public void testReleaseWhenFull() {
+        TokenBucket bucket = new TokenBucket(2, 1);
+        bucket.release();
+        bucket.release();
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+    }
+
+    /**
+     * Buckets without capacity are rejected.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new TokenBucket(0, 1);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.storage;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import de.minehattan.xmppchat.storage.RecordLog.RecordReader;
+import de.minehattan.xmppchat.testkit.CommandBookShim;
+
+/**
+ * Tests the {@link RecordLog}.
+ */
+public class RecordLogTest {
+
+    private File file;
+
+    /**
+     * Provides the logger that reports discarded records.
+     * 
+     * @throws Exception
+     *             if CommandBook cannot be provided
+     */
+    @BeforeClass
+    public static void setUpClass() throws Exception {
+        Logger discarded = Logger.getAnonymousLogger();
+        discarded.setLevel(Level.OFF);
+        CommandBookShim.install(discarded);
+    }
+
+    /**
+     * Creates an empty file for the log.
+     * 
+     * @throws IOException
+     *             if the file cannot be created
+     */
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("records", ".log");
+    }
+
+    /**
+     * Deletes the file of the log.
+     */
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Appended records are read again in order when the log is opened.
+     * 
+     * @throws IOException
+     *             on failure
+     */
+    @Test
+    public void testRecovery() throws IOException {
+        RecordLog log = open(new ArrayList<String>());
+        append(log, "first");
+        append(log, "second");
+        append(log, "third");
+        long size = log.size();
+        log.close();
+
+        List<String> read = new ArrayList<String>();
+        log = open(read);
+        assertEquals(Arrays.asList("first", "second", "third"), read);
+        assertEquals(size, log.size());
+        log.close();
+    }
+
+    /**
+     * A record that was only partially written is cut off, so records that
+     * are appended afterwards are recovered as well.
+     * 
+     * @throws IOException
+     *             on failure
+     */
+    @Test
+    public void testTruncatesPartialRecord() throws IOException {
+        RecordLog log = open(new ArrayList<String>());
+        append(log, "first");
+        append(log, "second");
+        long size = log.size();
+        log.close();
+
+        // a header that announces more bytes than were written
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(size);
+        raf.writeInt(100);
+        raf.writeInt(0);
+        raf.write(new byte[10]);
+        raf.close();
+
+        List<String> read = new ArrayList<String>();
+        log = open(read);
+        assertEquals(Arrays.asList("first", "second"), read);
+        assertEquals(size, file.length());
+        append(log, "third");
+        log.close();
+
+        read.clear();
+        open(read).close();
+        assertEquals(Arrays.asList("first", "second", "third"), read);
+    }
+
+    /**
+     * A record whose checksum does not match is cut off with everything after
+     * it.
+     * 
+     * @throws IOException
+     *             on failure
+     */
+    @Test
+    public void testTruncatesCorruptRecord() throws IOException {
+        RecordLog log = open(new ArrayList<String>());
+        append(log, "first");
+        long size = log.size();
+        append(log, "second");
+        append(log, "third");
+        log.close();
+
+        // flip a byte in the payload of the second record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(size + 10);
+        int b = raf.read();
+        raf.seek(size + 10);
+        raf.write(b ^ 0xFF);
+        raf.close();
+
+        List<String> read = new ArrayList<String>();
+        open(read).close();
+        assertEquals(Arrays.asList("first"), read);
+        assertEquals(size, file.length());
+    }
+
+    /**
+     * Opens the log and collects its records.
+     * 
+     * @param read
+     *            receives the records
+     * @return the log
+     * @throws IOException
+     *             if the log cannot be opened
+     */
+    private RecordLog open(final List<String> read) throws IOException {
+        return RecordLog.open(file, new RecordReader() {
+
+            @Override
+            public void read(DataInput record) throws IOException {
+                read.add(record.readUTF());
+            }
+        }, false);
+    }
+
+    /**
+     * Appends the given string as a record.
+     * 
+     * @param log
+     *            the log
+     * @param value
+     *            the string
+     * @throws IOException
+     *             if the record cannot be appended
+     */
+    private static void append(RecordLog log, String value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(value);
+        out.close();
+        log.append(bytes.toByteArray());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2013 - 2015, XMPPChat team and contributors
+ *
+ * This file is part of XMPPChat.
+ *
+ * XMPPChat is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * XMPPChat is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with XMPPChat. If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.minehattan.xmppchat.testkit;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.logging.Logger;
+
+import org.bukkit.Server;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.PluginLogger;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import com.sk89q.commandbook.CommandBook;
+
+/**
+ * Provides the classes of XMPPChat with {@link CommandBook#logger()} outside of
+ * a Bukkit server, for the tests, the benchmarks and the load test. A
+ * CommandBook instance is allocated without running its constructor, which
+ * refuses to run outside of the plugin class loader, and only receives what
+ * its logger needs.
+ */
+public final class CommandBookShim {
+
+    /**
+     * Hidden constructor.
+     */
+    private CommandBookShim() {
+    }
+
+    /**
+     * Installs the instance.
+     * 
+     * @param parent
+     *            the logger the messages of CommandBook are logged to
+     * @throws Exception
+     *             if the instance cannot be created
+     */
+    public static void install(final Logger parent) throws Exception {
+        Field unsafeField = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+        unsafeField.setAccessible(true);
+        Object unsafe = unsafeField.get(null);
+        CommandBook plugin = (CommandBook) unsafe.getClass().getMethod("allocateInstance", Class.class)
+                .invoke(unsafe, CommandBook.class);
+
+        Server server = (Server) Proxy.newProxyInstance(Server.class.getClassLoader(),
+                new Class<?>[] { Server.class }, new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getLogger")) {
+                            return parent;
+                        }
+                        if (method.getName().equals("toString")) {
+                            return "XMPPChat testkit";
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        set(plugin, JavaPlugin.class, Server.class, server);
+        set(plugin, JavaPlugin.class, PluginDescriptionFile.class, new PluginDescriptionFile("CommandBook", "2.4",
+                CommandBook.class.getName()));
+        set(plugin, JavaPlugin.class, PluginLogger.class, new PluginLogger(plugin));
+        set(null, CommandBook.class, CommandBook.class, plugin);
+    }
+
+    /**
+     * Sets the field of the given type that is declared by the given class.
+     * 
+     * @param target
+     *            the object, {@code null} for a static field
+     * @param declaringClass
+     *            the class that declares the field
+     * @param type
+     *            the type of the field
+     * @param value
+     *            the new value
+     * @throws NoSuchFieldException
+     *             if there is no such field
+     * @throws IllegalAccessException
+     *             if the field cannot be set
+     */
+    private static void set(Object target, Class<?> declaringClass, Class<?> type, Object value)
+            throws NoSuchFieldException, IllegalAccessException {
+        for (Field field : declaringClass.getDeclaredFields()) {
+            if (field.getType() == type && Modifier.isStatic(field.getModifiers()) == (target == null)) {
+                field.setAccessible(true);
+                field.set(target, value);
+                return;
+            }
+        }
+        throw new NoSuchFieldException(type.getSimpleName() + " in " + declaringClass.getName());
+    }
+}